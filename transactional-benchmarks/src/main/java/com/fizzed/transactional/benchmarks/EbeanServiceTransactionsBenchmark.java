@@ -0,0 +1,126 @@
+package com.fizzed.transactional.benchmarks;
+
+import com.fizzed.transactional.ServiceTransaction;
+import com.fizzed.transactional.ServiceTransactionAdapter;
+import com.fizzed.transactional.ServiceTransactions;
+import com.fizzed.transactional.ebean.EbeanServiceTransactionManager;
+import io.ebean.EbeanServer;
+import io.ebean.EbeanServerFactory;
+import io.ebean.config.ServerConfig;
+import io.ebean.datasource.DataSourceConfig;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a group of nested service transactions backed by a real Ebean
+ * transaction against an in-memory H2 database.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EbeanServiceTransactionsBenchmark {
+    
+    /**
+     * How many transactions are nested inside the group (only the first does
+     * a real begin and commit).
+     */
+    @Param({ "1", "8" })
+    public int depth;
+    
+    /**
+     * Whether the inner-most transaction runs a query.
+     */
+    @Param({ "false", "true" })
+    public boolean query;
+    
+    /**
+     * Whether the ebean transaction is only begun on first use.
+     */
+    @Param({ "false", "true" })
+    public boolean lazy;
+    
+    private String[] descriptors;
+    private EbeanServer ebean;
+    private EbeanServiceTransactionManager manager;
+    private Function<Boolean,ServiceTransactionAdapter> supplier;
+    
+    @Setup
+    public void setup() {
+        this.descriptors = new String[this.depth];
+        for (int i = 0; i < this.depth; i++) {
+            this.descriptors[i] = "service" + i;
+        }
+        
+        final DataSourceConfig dataSourceConfig = new DataSourceConfig();
+        dataSourceConfig.setDriver("org.h2.Driver");
+        dataSourceConfig.setUrl("jdbc:h2:mem:benchmarks;DB_CLOSE_DELAY=-1");
+        dataSourceConfig.setUsername("sa");
+        dataSourceConfig.setPassword("");
+        
+        final ServerConfig config = new ServerConfig();
+        config.setName("benchmarks");
+        config.setDataSourceConfig(dataSourceConfig);
+        config.setRegister(false);
+        config.setDefaultServer(false);
+        config.setDdlGenerate(false);
+        config.setDdlRun(false);
+        
+        this.ebean = EbeanServerFactory.create(config);
+        this.manager = new EbeanServiceTransactionManager(this.ebean);
+        this.supplier = this.lazy ? this.manager.lazySupplier() : this.manager.supplier();
+    }
+    
+    @TearDown
+    public void tearDown() {
+        this.ebean.shutdown();
+    }
+    
+    private int execute(int level, boolean commit) {
+        try (ServiceTransaction transaction = ServiceTransactions.begin(this.descriptors[level], "h2", this.supplier)) {
+            final int result;
+            if (level + 1 < this.depth) {
+                result = this.execute(level + 1, commit);
+            }
+            else if (this.query) {
+                // begins a lazy transaction (which becomes the current one)
+                this.manager.transaction(transaction);
+                result = this.ebean.sqlQuery("select 1 as one").findOne().getInteger("one");
+            }
+            else {
+                result = level;
+            }
+            
+            if (commit) {
+                transaction.commit();
+            }
+            
+            return result;
+        }
+    }
+    
+    @Benchmark
+    public int commit() {
+        return this.execute(0, true);
+    }
+    
+    @Benchmark
+    public int rollback() {
+        return this.execute(0, false);
+    }
+    
+}
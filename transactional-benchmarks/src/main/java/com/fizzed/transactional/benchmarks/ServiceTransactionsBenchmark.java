@@ -0,0 +1,116 @@
+package com.fizzed.transactional.benchmarks;
+
+import com.fizzed.transactional.ServiceTransaction;
+import com.fizzed.transactional.ServiceTransactionAdapter;
+import com.fizzed.transactional.ServiceTransactionGroup;
+import com.fizzed.transactional.ServiceTransactionListener;
+import com.fizzed.transactional.ServiceTransactionNoopAdapter;
+import com.fizzed.transactional.ServiceTransactions;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the overhead of the begin -> commit -> end lifecycle of a group of
+ * nested service transactions backed by noop adapters.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ServiceTransactionsBenchmark {
+    
+    static private final ServiceTransactionAdapter NOOP = new ServiceTransactionNoopAdapter();
+    static private final Function<Boolean,ServiceTransactionAdapter> SUPPLIER = first -> NOOP;
+    static private final ServiceTransactionListener LISTENER = success -> {};
+    
+    /**
+     * How many transactions are nested inside the group.
+     */
+    @Param({ "1", "8", "64", "256" })
+    public int depth;
+    
+    /**
+     * How many distinct idempotency keys the nested transactions rotate
+     * through (0 for none).
+     */
+    @Param({ "0", "1", "8" })
+    public int idempotencies;
+    
+    /**
+     * How many listeners are registered on the group.
+     */
+    @Param({ "0", "1", "8" })
+    public int listeners;
+    
+    /**
+     * Whether groups are recycled per thread.
+     */
+    @Param({ "false", "true" })
+    public boolean pooled;
+    
+    private String[] descriptors;
+    private String[] keys;
+    private ServiceTransaction[] transactions;
+    
+    @Setup
+    public void setup() {
+        ServiceTransactions.setPooled(this.pooled);
+        
+        this.descriptors = new String[this.depth];
+        this.keys = new String[this.depth];
+        this.transactions = new ServiceTransaction[this.depth];
+        
+        for (int i = 0; i < this.depth; i++) {
+            this.descriptors[i] = "service" + i;
+            this.keys[i] = this.idempotencies > 0 ? "resource" + (i % this.idempotencies) : null;
+        }
+    }
+    
+    private void begin() {
+        for (int i = 0; i < this.depth; i++) {
+            this.transactions[i] = ServiceTransactions.begin(this.descriptors[i], this.keys[i], SUPPLIER);
+        }
+        
+        for (int i = 0; i < this.listeners; i++) {
+            this.transactions[0].addListener(LISTENER);
+        }
+    }
+    
+    @Benchmark
+    public ServiceTransactionGroup commit() {
+        this.begin();
+        
+        for (int i = this.depth - 1; i >= 0; i--) {
+            this.transactions[i].commit();
+            this.transactions[i].end();
+        }
+        
+        return this.transactions[0].getGroup();
+    }
+    
+    @Benchmark
+    public ServiceTransactionGroup rollback() {
+        this.begin();
+        
+        // nothing was committed, so every end is an implicit rollback
+        for (int i = this.depth - 1; i >= 0; i--) {
+            this.transactions[i].end();
+        }
+        
+        return this.transactions[0].getGroup();
+    }
+    
+}
@@ -0,0 +1,26 @@
+package com.fizzed.transactional;
+
+/**
+ * Decides if an exception thrown by an optimistic operation is a conflict
+ * worth retrying.
+ */
+public interface OptimisticExceptionClassifier {
+    
+    static public enum Conflict {
+        /** not a conflict, the exception is thrown right away */
+        NONE,
+        /** an optimistic lock (version) check failed */
+        LOCK,
+        /** a concurrent insert of the same key won */
+        DUPLICATE,
+        /** a deadlock or serialization failure the database rolled back */
+        TRANSIENT;
+        
+        public boolean isRetryable() {
+            return this != NONE;
+        }
+    }
+    
+    Conflict classify(Throwable t);
+    
+}
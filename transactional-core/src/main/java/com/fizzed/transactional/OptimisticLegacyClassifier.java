@@ -0,0 +1,34 @@
+package com.fizzed.transactional;
+
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PersistenceException;
+
+/**
+ * Classifies conflicts exactly as OptimisticTransactions.retryable always
+ * has: only a PersistenceException that is an OptimisticLockException or
+ * whose message contains the MySQL "Duplicate entry" text is a conflict. The
+ * cause chain and SQLState are not inspected (use OptimisticSqlStateClassifier
+ * for that).
+ */
+public class OptimisticLegacyClassifier implements OptimisticExceptionClassifier {
+    
+    static public final OptimisticLegacyClassifier INSTANCE = new OptimisticLegacyClassifier();
+    
+    @Override
+    public Conflict classify(Throwable t) {
+        if (!(t instanceof PersistenceException)) {
+            return Conflict.NONE;
+        }
+        
+        if (t instanceof OptimisticLockException) {
+            return Conflict.LOCK;
+        }
+        
+        if (t.getMessage() != null && t.getMessage().contains("Duplicate entry")) {
+            return Conflict.DUPLICATE;
+        }
+        
+        return Conflict.NONE;
+    }
+    
+}
@@ -0,0 +1,212 @@
+package com.fizzed.transactional;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits how many times optimistic operations may retry, per operation (the
+ * message passed to OptimisticTransactions.execute), by the rate of attempts
+ * that conflicted over a sliding window. Below the throttle rate the attempts
+ * of the policy are allowed. Between the throttle rate and the fail fast
+ * rate, the allowed attempts drop linearly. At or above the fail fast rate no
+ * retries are allowed, so a conflict is thrown at once rather than amplifying
+ * the load on a hot entity. Counts are approximate (a bucket that rolls over
+ * while being written may lose a few), which is plenty for a rate.
+ * 
+ * <pre>
+ * OptimisticRetryPolicy policy = new OptimisticRetryPolicy()
+ *     .attempts(5)
+ *     .budget(new OptimisticRetryBudget(10, TimeUnit.SECONDS, 0.1d, 0.5d, 20));
+ * </pre>
+ */
+public class OptimisticRetryBudget {
+    
+    static private final int BUCKETS = 10;
+    
+    private final long bucketNanos;
+    private final double throttleRate;
+    private final double failFastRate;
+    private final int minSamples;
+    private final LongSupplier clock;
+    private final ConcurrentMap<String,Window> windows;
+
+    /**
+     * @param window the length of the sliding window
+     * @param unit the unit of the window
+     * @param throttleRate the conflict rate (0.0 to 1.0) above which retries are reduced
+     * @param failFastRate the conflict rate (0.0 to 1.0) at which retries stop
+     * @param minSamples the attempts in the window needed before any limit applies
+     */
+    public OptimisticRetryBudget(long window, TimeUnit unit, double throttleRate, double failFastRate, int minSamples) {
+        this(window, unit, throttleRate, failFastRate, minSamples, System::nanoTime);
+    }
+    
+    OptimisticRetryBudget(long window, TimeUnit unit, double throttleRate, double failFastRate, int minSamples, LongSupplier clock) {
+        if (unit.toNanos(window) < BUCKETS) {
+            throw new IllegalArgumentException("window too small");
+        }
+        
+        if (throttleRate < 0.0d || failFastRate > 1.0d || throttleRate > failFastRate) {
+            throw new IllegalArgumentException("rates must be 0.0 <= throttleRate <= failFastRate <= 1.0");
+        }
+        
+        this.bucketNanos = unit.toNanos(window) / BUCKETS;
+        this.throttleRate = throttleRate;
+        this.failFastRate = failFastRate;
+        this.minSamples = minSamples;
+        this.clock = clock;
+        this.windows = new ConcurrentHashMap<>();
+    }
+
+    public double getThrottleRate() {
+        return throttleRate;
+    }
+
+    public double getFailFastRate() {
+        return failFastRate;
+    }
+
+    public int getMinSamples() {
+        return minSamples;
+    }
+    
+    /**
+     * The attempts an operation may make right now.
+     * 
+     * @param message the name of the operation
+     * @param attempts the attempts the policy allows
+     * @return the allowed attempts (at least 1)
+     */
+    public int allowedAttempts(String message, int attempts) {
+        final Window w = this.windows.get(key(message));
+        if (w == null || attempts <= 1) {
+            return attempts;
+        }
+        
+        final long now = this.clock.getAsLong();
+        final long samples = w.attempts(now);
+        if (samples < this.minSamples) {
+            return attempts;
+        }
+        
+        final double rate = (double)w.conflicts(now) / samples;
+        
+        if (rate >= this.failFastRate) {
+            return 1;
+        }
+        
+        if (rate <= this.throttleRate) {
+            return attempts;
+        }
+        
+        // scale the retries (not the first attempt) down towards none
+        final double headroom = (this.failFastRate - rate) / (this.failFastRate - this.throttleRate);
+        return 1 + (int)Math.round((attempts - 1) * headroom);
+    }
+    
+    /**
+     * Records an attempt of an operation.
+     * 
+     * @param message the name of the operation
+     * @param conflict true if the attempt failed with a conflict
+     */
+    public void record(String message, boolean conflict) {
+        final String key = key(message);
+        
+        // a plain get does not lock, unlike computeIfAbsent on java 8
+        Window w = this.windows.get(key);
+        if (w == null) {
+            w = this.windows.computeIfAbsent(key, k -> new Window(this.bucketNanos));
+        }
+        
+        w.record(this.clock.getAsLong(), conflict);
+    }
+    
+    /**
+     * The rate of attempts of an operation that conflicted over the window.
+     * 
+     * @param message the name of the operation
+     * @return the rate (0.0 to 1.0)
+     */
+    public double getConflictRate(String message) {
+        final Window w = this.windows.get(key(message));
+        if (w == null) {
+            return 0.0d;
+        }
+        final long now = this.clock.getAsLong();
+        final long samples = w.attempts(now);
+        return samples > 0 ? (double)w.conflicts(now) / samples : 0.0d;
+    }
+    
+    public Set<String> getOperations() {
+        return Collections.unmodifiableSet(this.windows.keySet());
+    }
+    
+    static private String key(String message) {
+        return message != null ? message : "";
+    }
+    
+    static private class Window {
+        
+        private final long bucketNanos;
+        private final AtomicLong[] epochs;
+        private final AtomicLong[] attempts;
+        private final AtomicLong[] conflicts;
+
+        public Window(long bucketNanos) {
+            this.bucketNanos = bucketNanos;
+            this.epochs = new AtomicLong[BUCKETS];
+            this.attempts = new AtomicLong[BUCKETS];
+            this.conflicts = new AtomicLong[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                this.epochs[i] = new AtomicLong(Long.MIN_VALUE);
+                this.attempts[i] = new AtomicLong();
+                this.conflicts[i] = new AtomicLong();
+            }
+        }
+        
+        public void record(long now, boolean conflict) {
+            final long epoch = Math.floorDiv(now, this.bucketNanos);
+            final int i = (int)Math.floorMod(epoch, (long)BUCKETS);
+            
+            // first writer into a stale bucket rolls it over
+            final long current = this.epochs[i].get();
+            if (current != epoch && this.epochs[i].compareAndSet(current, epoch)) {
+                this.attempts[i].set(0L);
+                this.conflicts[i].set(0L);
+            }
+            
+            this.attempts[i].incrementAndGet();
+            if (conflict) {
+                this.conflicts[i].incrementAndGet();
+            }
+        }
+        
+        public long attempts(long now) {
+            return this.sum(this.attempts, now);
+        }
+        
+        public long conflicts(long now) {
+            return this.sum(this.conflicts, now);
+        }
+        
+        private long sum(AtomicLong[] counts, long now) {
+            final long epoch = Math.floorDiv(now, this.bucketNanos);
+            long sum = 0L;
+            for (int i = 0; i < BUCKETS; i++) {
+                final long e = this.epochs[i].get();
+                if (e <= epoch && e > epoch - BUCKETS) {
+                    sum += counts[i].get();
+                }
+            }
+            return sum;
+        }
+        
+    }
+    
+}
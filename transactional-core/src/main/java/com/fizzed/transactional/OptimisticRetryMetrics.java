@@ -0,0 +1,160 @@
+package com.fizzed.transactional;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free counters of optimistic operations, per operation (the message
+ * passed to OptimisticTransactions.execute).
+ */
+public class OptimisticRetryMetrics {
+    
+    static public class Operation {
+        
+        private final LongAdder calls;
+        private final LongAdder attempts;
+        private final LongAdder conflicts;
+        private final LongAdder succeeded;
+        private final LongAdder recovered;
+        private final LongAdder exhausted;
+        private final LongAdder failed;
+        private final LongAdder throttled;
+        private final LongAdder backoffNanos;
+
+        public Operation() {
+            this.calls = new LongAdder();
+            this.attempts = new LongAdder();
+            this.conflicts = new LongAdder();
+            this.succeeded = new LongAdder();
+            this.recovered = new LongAdder();
+            this.exhausted = new LongAdder();
+            this.failed = new LongAdder();
+            this.throttled = new LongAdder();
+            this.backoffNanos = new LongAdder();
+        }
+
+        public long getCalls() {
+            return calls.sum();
+        }
+
+        public long getAttempts() {
+            return attempts.sum();
+        }
+
+        public long getConflicts() {
+            return conflicts.sum();
+        }
+
+        public long getSucceeded() {
+            return succeeded.sum();
+        }
+
+        /**
+         * Calls that succeeded after at least one conflict.
+         * 
+         * @return the count
+         */
+        public long getRecovered() {
+            return recovered.sum();
+        }
+
+        /**
+         * Calls that ran out of attempts.
+         * 
+         * @return the count
+         */
+        public long getExhausted() {
+            return exhausted.sum();
+        }
+
+        /**
+         * Calls that failed with an exception that was not a conflict.
+         * 
+         * @return the count
+         */
+        public long getFailed() {
+            return failed.sum();
+        }
+
+        /**
+         * Calls allowed fewer attempts by the retry budget.
+         * 
+         * @return the count
+         */
+        public long getThrottled() {
+            return throttled.sum();
+        }
+
+        public long getBackoffNanos() {
+            return backoffNanos.sum();
+        }
+        
+    }
+    
+    private final ConcurrentMap<String,Operation> operations;
+
+    public OptimisticRetryMetrics() {
+        this.operations = new ConcurrentHashMap<>();
+    }
+    
+    Operation operation(String message) {
+        final String key = message != null ? message : "";
+        
+        // a plain get does not lock, unlike computeIfAbsent on java 8
+        Operation o = this.operations.get(key);
+        if (o == null) {
+            o = this.operations.computeIfAbsent(key, k -> new Operation());
+        }
+        
+        return o;
+    }
+    
+    void recordAttempt(Operation o, int attempt) {
+        o.attempts.increment();
+        if (attempt == 1) {
+            o.calls.increment();
+        }
+    }
+    
+    void recordConflict(Operation o, long backoffNanos) {
+        o.conflicts.increment();
+        o.backoffNanos.add(backoffNanos);
+    }
+    
+    void recordSucceeded(Operation o, int attempt) {
+        o.succeeded.increment();
+        if (attempt > 1) {
+            o.recovered.increment();
+        }
+    }
+    
+    void recordThrottled(Operation o) {
+        o.throttled.increment();
+    }
+    
+    void recordExhausted(Operation o) {
+        o.exhausted.increment();
+    }
+    
+    void recordFailed(Operation o) {
+        o.failed.increment();
+    }
+    
+    public Set<String> getOperations() {
+        return Collections.unmodifiableSet(this.operations.keySet());
+    }
+    
+    /**
+     * Gets the metrics of an operation.
+     * 
+     * @param message the message of the operation
+     * @return the metrics or null if nothing was recorded for it
+     */
+    public Operation getOperation(String message) {
+        return this.operations.get(message);
+    }
+    
+}
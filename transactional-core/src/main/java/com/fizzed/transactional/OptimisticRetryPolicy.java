@@ -0,0 +1,161 @@
+package com.fizzed.transactional;
+
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How OptimisticTransactions.execute retries conflicts. The delay before
+ * retry n (starting at 1) is the initial delay times the multiplier to the
+ * power of n-1, capped at the max delay, then reduced by a random amount of up
+ * to the jitter fraction so that colliding callers spread out.
+ * 
+ * <pre>
+ * OptimisticRetryPolicy policy = new OptimisticRetryPolicy()
+ *     .attempts(5)
+ *     .delay(10, 1000, TimeUnit.MILLISECONDS)
+ *     .multiplier(2.0d)
+ *     .jitter(0.5d);
+ * </pre>
+ */
+public class OptimisticRetryPolicy {
+    
+    private int attempts;
+    private long initialDelayNanos;
+    private long maxDelayNanos;
+    private double multiplier;
+    private double jitter;
+    private OptimisticExceptionClassifier classifier;
+    private OptimisticRetryMetrics metrics;
+    private OptimisticRetryBudget budget;
+
+    public OptimisticRetryPolicy() {
+        this.attempts = 3;
+        this.initialDelayNanos = 0L;
+        this.maxDelayNanos = 0L;
+        this.multiplier = 2.0d;
+        this.jitter = 0.0d;
+        this.classifier = OptimisticSqlStateClassifier.INSTANCE;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @param attempts the maximum number of times to run the operation
+     * @return this policy
+     */
+    public OptimisticRetryPolicy attempts(int attempts) {
+        if (attempts <= 0) {
+            throw new IllegalArgumentException("attempts must be > 0");
+        }
+        this.attempts = attempts;
+        return this;
+    }
+
+    public long getInitialDelayNanos() {
+        return initialDelayNanos;
+    }
+
+    public long getMaxDelayNanos() {
+        return maxDelayNanos;
+    }
+
+    public OptimisticRetryPolicy delay(long initialDelay, long maxDelay, TimeUnit unit) {
+        Objects.requireNonNull(unit, "unit was null");
+        if (initialDelay < 0 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException("delays must be >= 0 and initialDelay <= maxDelay");
+        }
+        this.initialDelayNanos = unit.toNanos(initialDelay);
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        return this;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    public OptimisticRetryPolicy multiplier(double multiplier) {
+        if (multiplier < 1.0d) {
+            throw new IllegalArgumentException("multiplier must be >= 1.0");
+        }
+        this.multiplier = multiplier;
+        return this;
+    }
+
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * @param jitter the fraction (0.0 to 1.0) of each delay that is random
+     * @return this policy
+     */
+    public OptimisticRetryPolicy jitter(double jitter) {
+        if (jitter < 0.0d || jitter > 1.0d) {
+            throw new IllegalArgumentException("jitter must be between 0.0 and 1.0");
+        }
+        this.jitter = jitter;
+        return this;
+    }
+
+    public OptimisticExceptionClassifier getClassifier() {
+        return classifier;
+    }
+
+    public OptimisticRetryPolicy classifier(OptimisticExceptionClassifier classifier) {
+        Objects.requireNonNull(classifier, "classifier was null");
+        this.classifier = classifier;
+        return this;
+    }
+
+    public OptimisticRetryMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param metrics the metrics to record each operation to or null for none
+     * @return this policy
+     */
+    public OptimisticRetryPolicy metrics(OptimisticRetryMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+    
+    public OptimisticRetryBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * @param budget the budget that limits retries by the recent conflict
+     *      rate of each operation or null for no limit
+     * @return this policy
+     */
+    public OptimisticRetryPolicy budget(OptimisticRetryBudget budget) {
+        this.budget = budget;
+        return this;
+    }
+    
+    /**
+     * Nanoseconds to wait before a retry.
+     * 
+     * @param retry the retry number (starting at 1)
+     * @return the delay
+     */
+    public long delayNanos(int retry) {
+        if (this.initialDelayNanos <= 0L) {
+            return 0L;
+        }
+        
+        final double exponential = this.initialDelayNanos * Math.pow(this.multiplier, retry - 1);
+        final long delay = (long)Math.min(exponential, (double)this.maxDelayNanos);
+        
+        if (this.jitter <= 0.0d) {
+            return delay;
+        }
+        
+        return delay - (long)(delay * this.jitter * ThreadLocalRandom.current().nextDouble());
+    }
+    
+}
@@ -0,0 +1,78 @@
+package com.fizzed.transactional;
+
+import java.sql.SQLException;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PersistenceException;
+
+/**
+ * Classifies conflicts by the SQLState (and for the generic integrity state,
+ * the vendor error code) of the SQLException in the cause chain, rather than
+ * by message text.
+ * 
+ * <ul>
+ * <li>23505 - unique violation (PostgreSQL, H2, DB2, Derby)</li>
+ * <li>23000 with code 1062 (MySQL, MariaDB), 1 (Oracle), 2601 or 2627 (SQL Server) - unique violation</li>
+ * <li>40001 - serialization failure (and MySQL deadlock)</li>
+ * <li>40P01 - deadlock (PostgreSQL)</li>
+ * </ul>
+ */
+public class OptimisticSqlStateClassifier implements OptimisticExceptionClassifier {
+    
+    static public final OptimisticSqlStateClassifier INSTANCE = new OptimisticSqlStateClassifier();
+    
+    static private final int MAX_CAUSES = 16;
+    
+    @Override
+    public Conflict classify(Throwable t) {
+        // walk the cause chain (defend against cycles)
+        Throwable c = t;
+        for (int i = 0; c != null && i < MAX_CAUSES; i++, c = c.getCause()) {
+            if (c instanceof OptimisticLockException) {
+                return Conflict.LOCK;
+            }
+            
+            if (c instanceof SQLException) {
+                final Conflict conflict = this.classify((SQLException)c);
+                if (conflict != Conflict.NONE) {
+                    return conflict;
+                }
+            }
+        }
+        
+        // the mysql message was the only check once, keep it for drivers that omit the state
+        if (t instanceof PersistenceException && t.getMessage() != null && t.getMessage().contains("Duplicate entry")) {
+            return Conflict.DUPLICATE;
+        }
+        
+        return Conflict.NONE;
+    }
+    
+    protected Conflict classify(SQLException e) {
+        final String state = e.getSQLState();
+        
+        if (state == null) {
+            return Conflict.NONE;
+        }
+        
+        switch (state) {
+            case "23505":
+                return Conflict.DUPLICATE;
+            case "23000":
+                switch (e.getErrorCode()) {
+                    case 1062:      // mysql, mariadb
+                    case 1:         // oracle
+                    case 2601:      // sql server
+                    case 2627:      // sql server
+                        return Conflict.DUPLICATE;
+                    default:
+                        return Conflict.NONE;
+                }
+            case "40001":
+            case "40P01":
+                return Conflict.TRANSIENT;
+            default:
+                return Conflict.NONE;
+        }
+    }
+    
+}
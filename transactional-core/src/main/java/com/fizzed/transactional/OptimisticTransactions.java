@@ -1,7 +1,7 @@
 package com.fizzed.transactional;
 
-import javax.persistence.OptimisticLockException;
-import javax.persistence.PersistenceException;
+import com.fizzed.transactional.OptimisticExceptionClassifier.Conflict;
+import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 
 public class OptimisticTransactions {
@@ -38,30 +38,142 @@ public class OptimisticTransactions {
         void apply() throws Exception;
     }
     
+    static public interface Operation<T> {
+        T apply() throws Exception;
+    }
+    
     static public void retryable(Logger logger, String message, int attempts, Method method) throws Exception {
-        PersistenceException exception = null;
+        if (attempts <= 0) {
+            return;
+        }
+        
+        // the legacy classifier keeps what is retried the same as it always was
+        final OptimisticRetryPolicy policy = new OptimisticRetryPolicy()
+            .attempts(attempts)
+            .classifier(OptimisticLegacyClassifier.INSTANCE);
+        
+        execute(logger, message, policy, () -> {
+            method.apply();
+            return null;
+        });
+    }
+    
+    /**
+     * Same as execute, but holds the lock of the key across all attempts so
+     * writers of the same key in this JVM do not conflict with each other. If
+     * a group is running, the lock is held until it completes (when the
+     * writes are truly committed).
+     * 
+     * @param <T> the type of value
+     * @param logger the logger to log conflicts to
+     * @param message the name of the operation (for logging and metrics)
+     * @param policy the retry policy
+     * @param locks the key locks
+     * @param key the key to lock (e.g. an entity id)
+     * @param operation the operation
+     * @return the value of the first successful attempt
+     * @throws Exception the exception of the last attempt, or the first one
+     *      that was not a conflict, or a ServiceTransactionLockTimeoutException
+     */
+    static public <T> T execute(Logger logger, String message, OptimisticRetryPolicy policy, ServiceTransactionKeyLocks locks, Object key, Operation<T> operation) throws Exception {
+        final ServiceTransactionGroup group = ServiceTransactions.active();
+        
+        if (group != null) {
+            locks.lock(group, key);
+            return execute(logger, message, policy, operation);
+        }
+        
+        return locks.call(key, () -> execute(logger, message, policy, operation));
+    }
+    
+    /**
+     * Runs the operation, retrying it (after the backoff of the policy) for
+     * as long as it fails with an exception the classifier of the policy
+     * considers a conflict and attempts remain.
+     * 
+     * @param <T> the type of value
+     * @param logger the logger to log conflicts to
+     * @param message the name of the operation (for logging and metrics)
+     * @param policy the retry policy
+     * @param operation the operation
+     * @return the value of the first successful attempt
+     * @throws Exception the exception of the last attempt, or the first one
+     *      that was not a conflict
+     */
+    static public <T> T execute(Logger logger, String message, OptimisticRetryPolicy policy, Operation<T> operation) throws Exception {
+        final OptimisticRetryMetrics metrics = policy.getMetrics();
+        final OptimisticRetryMetrics.Operation stats = metrics != null ? metrics.operation(message) : null;
+        final OptimisticRetryBudget budget = policy.getBudget();
+        
+        // a hot operation gets fewer retries (or none) so it does not amplify the load
+        final int attempts = budget != null
+            ? budget.allowedAttempts(message, policy.getAttempts()) : policy.getAttempts();
+        
+        if (attempts < policy.getAttempts()) {
+            logger.warn("{} retries limited by conflict rate (to {}/{} attempts)", message, attempts, policy.getAttempts());
+            if (stats != null) {
+                metrics.recordThrottled(stats);
+            }
+        }
+        
+        Exception exception = null;
         for (int attempt = 1; attempt <= attempts; attempt++) {
+            if (stats != null) {
+                metrics.recordAttempt(stats, attempt);
+            }
             try {
-                method.apply();
+                final T value = operation.apply();
                 if (attempt > 1) {
                     logger.info("{} recovered from optimistic exception :-) (on attempt {}/{})", message, attempt, attempts);
                 }
-                return;
-            } catch (PersistenceException e) {
-                exception = e;
-                if (e instanceof OptimisticLockException) {
-                    logger.warn("{} optimistic lock exception (on attempt {}/{}) ({})", message, attempt, attempts, e.getMessage());
-                } else if (e.getMessage() != null & e.getMessage().contains("Duplicate entry")) {
-                    logger.warn("{} optimistic duplicate exception (on attempt {}/{}) ({})", message, attempt, attempts, e.getMessage());
-                } else {
+                if (stats != null) {
+                    metrics.recordSucceeded(stats, attempt);
+                }
+                if (budget != null) {
+                    budget.record(message, false);
+                }
+                return value;
+            } catch (Exception e) {
+                final Conflict conflict = policy.getClassifier().classify(e);
+                if (budget != null) {
+                    budget.record(message, conflict.isRetryable());
+                }
+                if (!conflict.isRetryable()) {
+                    if (stats != null) {
+                        metrics.recordFailed(stats);
+                    }
                     throw e;
                 }
+                
+                exception = e;
+                logger.warn("{} optimistic {} exception (on attempt {}/{}) ({})",
+                    message, conflict.name().toLowerCase(), attempt, attempts, e.getMessage());
+                
+                // back off so colliding callers spread out rather than collide again
+                final long delayNanos = attempt < attempts ? policy.delayNanos(attempt) : 0L;
+                if (stats != null) {
+                    metrics.recordConflict(stats, delayNanos);
+                }
+                final ServiceTransactionTracer tracer = ServiceTransactions.getTracer();
+                if (tracer != null) {
+                    try {
+                        tracer.optimisticConflict(message, attempt, attempts, conflict, delayNanos);
+                    }
+                    catch (Throwable t) {
+                        logger.error("Unhandled throwable in transaction tracer!", t);
+                    }
+                }
+                if (delayNanos > 0L) {
+                    TimeUnit.NANOSECONDS.sleep(delayNanos);
+                }
             }
         }
-        if (exception != null) {
-            logger.warn("{} unable to recover from optimistic lock exception after {} attempts", message, attempts);
-            throw exception;
+        
+        if (stats != null) {
+            metrics.recordExhausted(stats);
         }
+        logger.warn("{} unable to recover from optimistic exception after {} attempts", message, attempts);
+        throw exception;
     }
     
 }
@@ -1,8 +1,10 @@
 package com.fizzed.transactional;
 
-import static com.fizzed.crux.util.MoreObjects.in;
+import com.fizzed.transactional.ServiceTransactionFlightRecorder.Event;
 import java.io.Closeable;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -16,12 +18,17 @@ public class ServiceTransaction implements Closeable {
     }
     
     private final ServiceTransactionGroup group;
-    private final int index;
-    private final String idempotency;
-    private final String descriptor;
-    private final ServiceTransactionAdapter adapter;
+    private int index;
+    private String idempotency;
+    private String descriptor;
+    private ServiceTransactionAdapter adapter;
+    private boolean readOnly;
+    private long beginNanos;
     private State state;
     private Throwable cause;
+    // a deadline scoped to this (nested) transaction while active
+    private boolean deadline;
+    private long deadlineNanos;
     
     public ServiceTransaction(
             ServiceTransactionGroup group,
@@ -31,13 +38,48 @@ public class ServiceTransaction implements Closeable {
             ServiceTransactionAdapter adapter,
             boolean realCommit) {
         
+        this(group, index, idempotency, descriptor, adapter, realCommit, false);
+    }
+    
+    public ServiceTransaction(
+            ServiceTransactionGroup group,
+            int index,
+            String idempotency,
+            String descriptor,
+            ServiceTransactionAdapter adapter,
+            boolean realCommit,
+            boolean readOnly) {
+        
         this.group = group;
         this.index = index;
         this.idempotency = idempotency;
         this.descriptor = descriptor;
         this.adapter = adapter;
+        this.readOnly = readOnly;
+        this.beginNanos = System.nanoTime();
         this.state = State.ACTIVE;
     }
+    
+    /**
+     * Re-initializes a transaction owned by a pooled group so it can be reused.
+     */
+    void reset(
+            int index,
+            String idempotency,
+            String descriptor,
+            ServiceTransactionAdapter adapter,
+            boolean readOnly) {
+        
+        this.index = index;
+        this.idempotency = idempotency;
+        this.descriptor = descriptor;
+        this.adapter = adapter;
+        this.readOnly = readOnly;
+        this.beginNanos = System.nanoTime();
+        this.state = State.ACTIVE;
+        this.cause = null;
+        this.deadline = false;
+    }
 
     public void addListener(ServiceTransactionListener listener) {
         Objects.requireNonNull(listener, "listener was null");
@@ -61,6 +103,19 @@ public class ServiceTransaction implements Closeable {
         });
     }
     
+    /**
+     * Adds a key to the executor once this group succeeds, to be handled in a
+     * batch with the keys of other groups.
+     * 
+     * @param <K> the type of key
+     * @param executor the executor
+     * @param key the key
+     */
+    public <K> void afterCommit(ServiceTransactionCoalescingExecutor<K> executor, K key) {
+        Objects.requireNonNull(executor, "executor was null");
+        executor.afterCommit(this, key);
+    }
+    
     String getIdempotency() {
         return idempotency;
     }
@@ -68,11 +123,63 @@ public class ServiceTransaction implements Closeable {
     ServiceTransactionAdapter getAdapter() {
         return adapter;
     }
+    
+    boolean hasDeadline() {
+        return deadline;
+    }
+    
+    long getDeadlineNanos() {
+        return deadlineNanos;
+    }
+    
+    void setDeadlineNanos(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+        this.deadline = true;
+    }
+    
+    void clearDeadline() {
+        this.deadline = false;
+    }
+    
+    /**
+     * Gets the adapter that owns the real resource of this transaction. That
+     * is its own adapter if it was the first of its idempotency in the group,
+     * otherwise the adapter of that first transaction.
+     * 
+     * @return the adapter
+     */
+    public ServiceTransactionAdapter getResourceAdapter() {
+        if (this.idempotency != null) {
+            final ServiceTransaction first = this.group.getFirst(this.idempotency);
+            if (first != null) {
+                return first.adapter;
+            }
+        }
+        return this.adapter;
+    }
+
+    /**
+     * If this transaction was begun read-only (it promised not to write).
+     * 
+     * @return true if read-only
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
 
     public int getIndex() {
         return index;
     }
 
+    /**
+     * The System.nanoTime() this transaction began at.
+     * 
+     * @return the nano time
+     */
+    public long getBeginNanos() {
+        return beginNanos;
+    }
+
     public State getState() {
         return state;
     }
@@ -95,13 +202,17 @@ public class ServiceTransaction implements Closeable {
     }
     
     public void rollback() {
-        if (in(this.state, State.ROLLBACK)) {
+        if (this.state == State.ROLLBACK) {
             return;
         }
         
-        if (!in(this.state, State.ACTIVE)) {
+        if (this.state != State.ACTIVE) {
             throw new IllegalStateException("Unable to rollback (transaction state is " + this.state + ")");
         }
+        
+        if (this.deadline) {
+            this.group.endDeadline(this);
+        }
 
         try {
             this.realRollback();
@@ -113,37 +224,141 @@ public class ServiceTransaction implements Closeable {
     }
     
     public void commit() {
-        if (!in(this.state, State.ACTIVE, State.COMMIT_SCHEDULED)) {
+        if (this.state != State.ACTIVE && this.state != State.COMMIT_SCHEDULED) {
             throw new IllegalStateException("Unable to commit (transaction state is " + this.state + ")");
         }
         
+        if (this.deadline) {
+            this.endDeadline();
+        }
+        
         this.state = State.COMMIT_SCHEDULED;
         
         this.group.commit(this.index);
     }
     
+    /**
+     * Commits without blocking on the real commits. Only the first transaction
+     * in the group truly commits (the rest complete immediately). Adapters that
+     * implement ServiceTransactionAsyncAdapter are committed asynchronously,
+     * any other adapter is committed inline. The group is released from its
+     * storage before this returns, so its completion (and listeners) may run
+     * on whatever thread completes the last adapter future.
+     * 
+     * @return a future completed once the group is completed, or completed
+     *      exceptionally with a ServiceTransactionException if it failed
+     */
+    public CompletableFuture<Void> commitAsync() {
+        if (this.state != State.ACTIVE && this.state != State.COMMIT_SCHEDULED) {
+            throw new IllegalStateException("Unable to commit (transaction state is " + this.state + ")");
+        }
+        
+        if (this.deadline) {
+            try {
+                this.endDeadline();
+            }
+            catch (ServiceTransactionTimeoutException e) {
+                return ServiceTransactionFutures.failed(e);
+            }
+        }
+        
+        this.state = State.COMMIT_SCHEDULED;
+        
+        return this.group.commitAsync(this.index);
+    }
+    
+    /**
+     * Ends the deadline scoped to this (nested) transaction as it commits. A
+     * scope that overran it is rolled back instead, which fails the group.
+     */
+    private void endDeadline() {
+        final long overdueNanos = System.nanoTime() - this.deadlineNanos;
+        
+        this.group.endDeadline(this);
+        
+        if (overdueNanos >= 0) {
+            final ServiceTransactionTimeoutException e = new ServiceTransactionTimeoutException("Unable to commit "
+                + this.descriptor + " (deadline passed " + TimeUnit.NANOSECONDS.toMillis(overdueNanos) + " ms ago)");
+            // failed, so even a savepoint rollback does not let the group commit
+            this.fail(e);
+            this.rollback();
+            throw e;
+        }
+    }
+    
     public void end() {
-        if (!in(this.state, State.COMMIT_SCHEDULED, State.COMMITTED)) {
+        if (!this.isReadyForRealCommit()) {
             // this is an implicit rollback :-(
             this.rollback();
         }
     }
     
     boolean isReadyForRealCommit() {
-        return in(this.state, State.COMMIT_SCHEDULED, State.COMMITTED);
+        return this.state == State.COMMIT_SCHEDULED || this.state == State.COMMITTED
+            || this.isRolledBackToSavepoint();
+    }
+    
+    /**
+     * If this nested transaction was rolled back to its savepoint, which only
+     * undid its own work and leaves the rest of the group free to commit.
+     * 
+     * @return true if rolled back to its savepoint
+     */
+    public boolean isRolledBackToSavepoint() {
+        return this.state == State.ROLLBACK
+            && this.cause == null
+            && this.index > 0
+            && this.adapter instanceof ServiceTransactionSavepointAdapter;
+    }
+    
+    /**
+     * Gets the two-phase adapter of this transaction (unwrapping a lazy one),
+     * or null if it has no real resource to prepare.
+     */
+    ServiceTransactionTwoPhaseAdapter getTwoPhaseAdapter() {
+        ServiceTransactionAdapter a = this.adapter;
+        
+        if (a instanceof ServiceTransactionLazyAdapter) {
+            final ServiceTransactionLazyAdapter<?> lazy = (ServiceTransactionLazyAdapter<?>)a;
+            a = lazy.isAcquired() ? lazy.get() : null;
+        }
+        
+        return a instanceof ServiceTransactionTwoPhaseAdapter ? (ServiceTransactionTwoPhaseAdapter)a : null;
+    }
+    
+    void realPrepare(String xid) {
+        try {
+            this.getTwoPhaseAdapter().prepare(xid);
+            this.group.record(Event.REAL_PREPARE, this.index, this.descriptor);
+        }
+        catch (Throwable e) {
+            this.cause = e;
+            this.group.record(Event.REAL_PREPARE_FAILED, this.index, this.descriptor);
+            throw e;
+        }
+    }
+    
+    void fail(Throwable cause) {
+        this.cause = cause;
     }
     
     void realRollback() {
         // defend against multiple calls
-        if (in(this.state, State.ROLLBACK)) {
+        if (this.state == State.ROLLBACK) {
             return;
         }
         
+        final Object span = this.group.traceStarted(this.index, this.descriptor, false);
+        
         try {
             this.adapter.rollback();
+            this.group.record(Event.REAL_ROLLBACK, this.index, this.descriptor);
+            this.group.traceEnded(span, null);
         }
         catch (Throwable e) {
             this.cause = e;
+            this.group.record(Event.REAL_ROLLBACK_FAILED, this.index, this.descriptor);
+            this.group.traceEnded(span, e);
             throw e;
         }
         finally {
@@ -153,26 +368,136 @@ public class ServiceTransaction implements Closeable {
     
     void realCommit() throws Exception {
         // defend against multiple calls
-        if (in(this.state, State.COMMITTED)) {
+        if (this.state == State.COMMITTED || this.isRolledBackToSavepoint()) {
             return;
         }
         
-        if (!in(this.state, State.ACTIVE, State.COMMIT_SCHEDULED)) {
+        if (this.state != State.ACTIVE && this.state != State.COMMIT_SCHEDULED) {
             throw new IllegalStateException("Unable to truly commit (transaction state is " + this.state + ")");
         }
         
+        final Object span = this.group.traceStarted(this.index, this.descriptor, true);
+        
         try {
             this.adapter.commit();
             this.state = State.COMMITTED;
+            this.group.record(Event.REAL_COMMIT, this.index, this.descriptor);
+            this.group.traceEnded(span, null);
         }
         catch (Throwable e) {
             this.cause = e;
+            this.group.record(Event.REAL_COMMIT_FAILED, this.index, this.descriptor);
+            this.group.traceEnded(span, e);
             // if a commit fails, its implied it was already rolled back
             this.state = State.ROLLBACK;
             throw e;
         }
     }
     
+    /**
+     * Commits the work prepared by realPrepare once the commit decision of the
+     * group is logged. Unlike realCommit, a failure does not roll it back: the
+     * work stays prepared (in doubt) under its xid and the coordinator commits
+     * it on recovery, so the transaction counts as committed either way.
+     */
+    void realCommitPrepared() throws Exception {
+        // defend against multiple calls
+        if (this.state == State.COMMITTED || this.isRolledBackToSavepoint()) {
+            return;
+        }
+        
+        if (this.state != State.ACTIVE && this.state != State.COMMIT_SCHEDULED) {
+            throw new IllegalStateException("Unable to truly commit (transaction state is " + this.state + ")");
+        }
+        
+        final Object span = this.group.traceStarted(this.index, this.descriptor, true);
+        
+        try {
+            this.adapter.commit();
+            this.group.record(Event.REAL_COMMIT, this.index, this.descriptor);
+            this.group.traceEnded(span, null);
+        }
+        catch (Throwable e) {
+            this.group.record(Event.REAL_COMMIT_FAILED, this.index, this.descriptor);
+            this.group.traceEnded(span, e);
+            throw e;
+        }
+        finally {
+            // the decision to commit is logged, so it will be
+            this.state = State.COMMITTED;
+        }
+    }
+    
+    CompletableFuture<Void> realRollbackAsync() {
+        // defend against multiple calls
+        if (this.state == State.ROLLBACK) {
+            return ServiceTransactionFutures.completed();
+        }
+        
+        final Object span = this.group.traceStarted(this.index, this.descriptor, false);
+        
+        CompletableFuture<Void> future;
+        try {
+            if (this.adapter instanceof ServiceTransactionAsyncAdapter) {
+                future = ((ServiceTransactionAsyncAdapter)this.adapter).rollbackAsync();
+            } else {
+                this.adapter.rollback();
+                future = ServiceTransactionFutures.completed();
+            }
+        }
+        catch (Throwable e) {
+            future = ServiceTransactionFutures.failed(e);
+        }
+        
+        return future.whenComplete((v, e) -> {
+            if (e != null) {
+                this.cause = ServiceTransactionFutures.unwrap(e);
+            }
+            this.state = State.ROLLBACK;
+            this.group.record(e != null ? Event.REAL_ROLLBACK_FAILED : Event.REAL_ROLLBACK, this.index, this.descriptor);
+            this.group.traceEnded(span, e != null ? this.cause : null);
+        });
+    }
+    
+    CompletableFuture<Void> realCommitAsync() {
+        // defend against multiple calls
+        if (this.state == State.COMMITTED || this.isRolledBackToSavepoint()) {
+            return ServiceTransactionFutures.completed();
+        }
+        
+        if (this.state != State.ACTIVE && this.state != State.COMMIT_SCHEDULED) {
+            return ServiceTransactionFutures.failed(
+                new IllegalStateException("Unable to truly commit (transaction state is " + this.state + ")"));
+        }
+        
+        final Object span = this.group.traceStarted(this.index, this.descriptor, true);
+        
+        CompletableFuture<Void> future;
+        try {
+            if (this.adapter instanceof ServiceTransactionAsyncAdapter) {
+                future = ((ServiceTransactionAsyncAdapter)this.adapter).commitAsync();
+            } else {
+                this.adapter.commit();
+                future = ServiceTransactionFutures.completed();
+            }
+        }
+        catch (Throwable e) {
+            future = ServiceTransactionFutures.failed(e);
+        }
+        
+        return future.whenComplete((v, e) -> {
+            if (e != null) {
+                this.cause = ServiceTransactionFutures.unwrap(e);
+                // if a commit fails, its implied it was already rolled back
+                this.state = State.ROLLBACK;
+            } else {
+                this.state = State.COMMITTED;
+            }
+            this.group.record(e != null ? Event.REAL_COMMIT_FAILED : Event.REAL_COMMIT, this.index, this.descriptor);
+            this.group.traceEnded(span, e != null ? this.cause : null);
+        });
+    }
+    
     public void execute(Consumer<ServiceTransaction> executor) {
         try {
             executor.accept(this);
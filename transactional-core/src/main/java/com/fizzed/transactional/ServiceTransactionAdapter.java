@@ -6,4 +6,47 @@ public interface ServiceTransactionAdapter {
 
     void commit();
     
+    /**
+     * If the commit of this adapter only ends its resource rather than making
+     * writes durable. Such an adapter may only be used by a read-only begin.
+     * 
+     * @return true if read-only
+     */
+    default boolean isReadOnly() {
+        return false;
+    }
+    
+    /**
+     * Called right after this adapter was supplied for a read-only begin, so
+     * its resource can honor it (e.g. mark its connection read-only and skip
+     * the commit). Does nothing by default.
+     */
+    default void markReadOnly() {
+        // nothing to do
+    }
+    
+    /**
+     * Called right after this adapter was supplied for a group with a
+     * deadline, so its resource can bound its own work by it (e.g. with a
+     * timeout on its connection). Does nothing by default.
+     * 
+     * @param deadlineNanos the deadline, in System.nanoTime terms
+     */
+    default void applyDeadline(long deadlineNanos) {
+        // nothing to do
+    }
+    
+    /**
+     * Called on the thread of a parallel task once it ends (see
+     * ServiceTransactions.parallel), so a resource the task bound to that
+     * thread (e.g. as the current transaction of an ORM) is unbound before the
+     * thread runs unrelated work. The resource stays open until the group
+     * commits or rolls back. It may be called for adapters another task
+     * supplied, so it must only unbind what is bound to the current thread.
+     * Does nothing by default.
+     */
+    default void detach() {
+        // nothing to do
+    }
+    
 }
@@ -0,0 +1,27 @@
+package com.fizzed.transactional;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * An adapter whose commit and rollback do not block the caller. Used by
+ * ServiceTransaction.commitAsync() so the real commits of a group can complete
+ * without parking the calling thread. The blocking methods simply wait on the
+ * futures.
+ */
+public interface ServiceTransactionAsyncAdapter extends ServiceTransactionAdapter {
+
+    CompletableFuture<Void> rollbackAsync();
+
+    CompletableFuture<Void> commitAsync();
+    
+    @Override
+    default void rollback() {
+        ServiceTransactionFutures.join(this.rollbackAsync());
+    }
+
+    @Override
+    default void commit() {
+        ServiceTransactionFutures.join(this.commitAsync());
+    }
+    
+}
@@ -0,0 +1,332 @@
+package com.fizzed.transactional;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs after-commit work of one kind (e.g. cache evictions) in batches across
+ * groups. Keys added for a group are only submitted if it succeeds, and are
+ * then coalesced with the keys of every other group for a window: once the
+ * first key of a window arrives, keys are gathered (duplicates dropped) until
+ * the window elapses or a batch is full, then the handler is called once on a
+ * background thread with the batch. A failed batch is logged and not retried.
+ * 
+ * <pre>
+ * ServiceTransactionCoalescingExecutor&lt;String&gt; evictions = new ServiceTransactionCoalescingExecutor&lt;&gt;(
+ *     "cache-evictions", (keys) -&gt; cache.invalidateAll(keys), 1000, 10, TimeUnit.MILLISECONDS);
+ * 
+ * try (ServiceTransaction tx = ServiceTransactions.begin("UserService.update", "db", supplier)) {
+ *     ...
+ *     tx.afterCommit(evictions, "user:" + userId);
+ *     tx.commit();
+ * }
+ * </pre>
+ * 
+ * @param <K> the type of key
+ */
+public class ServiceTransactionCoalescingExecutor<K> implements AutoCloseable {
+    static private final Logger log = LoggerFactory.getLogger(ServiceTransactionCoalescingExecutor.class);
+    static private final AtomicInteger INSTANCES = new AtomicInteger();
+    static private final long IDLE_MILLIS = 100L;
+    
+    static public interface Handler<K> {
+        
+        void handle(Set<K> keys) throws Exception;
+    
+    }
+    
+    private final String name;
+    private final Handler<K> handler;
+    private final int maxBatchSize;
+    private final long windowNanos;
+    private final ConcurrentMap<ServiceTransactionGroup,Pending> groups;
+    private final Object lock;
+    private final Thread thread;
+    private final LongAdder submitted;
+    private final LongAdder coalesced;
+    private final LongAdder batches;
+    private final LongAdder failures;
+    private Set<K> pending;             // guarded by lock
+    private volatile boolean closed;
+    
+    /**
+     * @param name the name (of the thread) of the executor
+     * @param handler the handler of the batches
+     * @param maxBatchSize the maximum number of keys per batch
+     * @param window how long keys are gathered for once the first arrives
+     * @param unit the unit of the window
+     */
+    public ServiceTransactionCoalescingExecutor(String name, Handler<K> handler, int maxBatchSize, long window, TimeUnit unit) {
+        Objects.requireNonNull(name, "name was null");
+        Objects.requireNonNull(handler, "handler was null");
+        Objects.requireNonNull(unit, "unit was null");
+        
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize must be > 0");
+        }
+        
+        if (window < 0) {
+            throw new IllegalArgumentException("window must be >= 0");
+        }
+        
+        this.name = name;
+        this.handler = handler;
+        this.maxBatchSize = maxBatchSize;
+        this.windowNanos = unit.toNanos(window);
+        this.groups = new ConcurrentHashMap<>();
+        this.lock = new Object();
+        this.pending = new LinkedHashSet<>();
+        this.submitted = new LongAdder();
+        this.coalesced = new LongAdder();
+        this.batches = new LongAdder();
+        this.failures = new LongAdder();
+        this.thread = new Thread(this::loop, name + "-" + INSTANCES.incrementAndGet());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+    
+    /**
+     * Number of keys submitted (including duplicates).
+     * 
+     * @return the count
+     */
+    public long getSubmitted() {
+        return this.submitted.sum();
+    }
+    
+    /**
+     * Number of keys dropped as duplicates of a key already waiting.
+     * 
+     * @return the count
+     */
+    public long getCoalesced() {
+        return this.coalesced.sum();
+    }
+    
+    public long getBatches() {
+        return this.batches.sum();
+    }
+    
+    public long getFailures() {
+        return this.failures.sum();
+    }
+    
+    /**
+     * Adds a key to be submitted once the group of the transaction succeeds
+     * (and discarded if it fails).
+     * 
+     * @param transaction the transaction
+     * @param key the key
+     */
+    public void afterCommit(ServiceTransaction transaction, K key) {
+        Objects.requireNonNull(transaction, "transaction was null");
+        Objects.requireNonNull(key, "key was null");
+        
+        final ServiceTransactionGroup group = transaction.getGroup();
+        
+        if (group.isCompleted()) {
+            throw new IllegalStateException("Unable to add key for group " + group.getId() + " (completed)");
+        }
+        
+        // a plain get does not lock, unlike computeIfAbsent on java 8
+        Pending p = this.groups.get(group);
+        if (p == null) {
+            // parallel tasks of the group may race to create it, only one wins
+            final Pending created = new Pending(group);
+            p = this.groups.putIfAbsent(group, created);
+            if (p == null) {
+                p = created;
+                group.addCompletionListener(created);
+            }
+        }
+        
+        p.add(key);
+    }
+    
+    public void submit(K key) {
+        Objects.requireNonNull(key, "key was null");
+        
+        if (this.closed) {
+            throw new IllegalStateException("Coalescing executor " + this.name + " is closed");
+        }
+        
+        this.submitted.increment();
+        
+        synchronized (this.lock) {
+            if (!this.pending.add(key)) {
+                this.coalesced.increment();
+            }
+            // the first key starts a window and a full batch cuts it short
+            if (this.pending.size() == 1 || this.pending.size() >= this.maxBatchSize) {
+                this.lock.notifyAll();
+            }
+        }
+    }
+    
+    public void submitAll(Collection<K> keys) {
+        if (this.closed) {
+            throw new IllegalStateException("Coalescing executor " + this.name + " is closed");
+        }
+        
+        this.submitted.add(keys.size());
+        
+        synchronized (this.lock) {
+            final boolean empty = this.pending.isEmpty();
+            for (K key : keys) {
+                if (!this.pending.add(key)) {
+                    this.coalesced.increment();
+                }
+            }
+            if ((empty && !this.pending.isEmpty()) || this.pending.size() >= this.maxBatchSize) {
+                this.lock.notifyAll();
+            }
+        }
+    }
+    
+    /**
+     * Stops accepting keys and waits for the ones waiting to be handled.
+     * 
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return true if all keys were handled
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        this.close();
+        this.thread.join(Math.max(1L, unit.toMillis(timeout)));
+        return !this.thread.isAlive();
+    }
+    
+    @Override
+    public void close() {
+        // the executor handles what is waiting before it stops
+        this.closed = true;
+        synchronized (this.lock) {
+            this.lock.notifyAll();
+        }
+    }
+    
+    private void loop() {
+        while (true) {
+            final Set<K> keys;
+            
+            try {
+                synchronized (this.lock) {
+                    while (this.pending.isEmpty()) {
+                        if (this.closed) {
+                            return;     // closed and drained
+                        }
+                        this.lock.wait(IDLE_MILLIS);
+                    }
+                    
+                    final long deadline = System.nanoTime() + this.windowNanos;
+                    
+                    while (this.pending.size() < this.maxBatchSize && !this.closed) {
+                        final long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(this.lock, remaining);
+                    }
+                    
+                    keys = this.pending;
+                    this.pending = new LinkedHashSet<>();
+                }
+            }
+            catch (InterruptedException e) {
+                log.warn("Coalescing executor {} interrupted (will stop)", this.name);
+                Thread.currentThread().interrupt();
+                this.closed = true;
+                return;
+            }
+            
+            this.handle(keys);
+        }
+    }
+    
+    private void handle(Set<K> keys) {
+        // keys arriving while the lock was not held may overfill a batch
+        if (keys.size() <= this.maxBatchSize) {
+            this.run(keys);
+            return;
+        }
+        
+        final Iterator<K> it = keys.iterator();
+        while (it.hasNext()) {
+            final Set<K> batch = new LinkedHashSet<>();
+            while (it.hasNext() && batch.size() < this.maxBatchSize) {
+                batch.add(it.next());
+            }
+            this.run(batch);
+        }
+    }
+    
+    private void run(Set<K> batch) {
+        this.batches.increment();
+        try {
+            this.handler.handle(batch);
+        }
+        catch (Throwable t) {
+            this.failures.increment();
+            log.error("Unhandled throwable in coalescing executor " + this.name + " (" + batch.size() + " keys dropped)!", t);
+        }
+    }
+    
+    private class Pending implements ServiceTransactionListener {
+        
+        private final ServiceTransactionGroup group;
+        private final List<K> keys;         // guarded by this
+        private boolean completed;          // guarded by this
+        
+        public Pending(ServiceTransactionGroup group) {
+            this.group = group;
+            this.keys = new ArrayList<>();
+        }
+        
+        synchronized void add(K key) {
+            if (this.completed) {
+                throw new IllegalStateException("Unable to add key for group " + this.group.getId() + " (completed)");
+            }
+            this.keys.add(key);
+        }
+        
+        @Override
+        public void onComplete(boolean success) {
+            synchronized (this) {
+                // defend against multiple calls
+                if (this.completed) {
+                    return;
+                }
+                this.completed = true;
+            }
+            
+            groups.remove(this.group, this);
+            
+            if (success) {
+                submitAll(this.keys);
+            }
+        }
+    
+    }
+
+}
@@ -0,0 +1,28 @@
+package com.fizzed.transactional;
+
+/**
+ * An explicit holder of the current group that the caller passes around (e.g.
+ * on a request object) instead of relying on thread-bound state. A context
+ * may be handed from one thread to another, but must only be used by one
+ * thread at a time.
+ */
+public class ServiceTransactionContext implements ServiceTransactionStorage {
+
+    private volatile ServiceTransactionGroup group;
+    
+    @Override
+    public ServiceTransactionGroup get() {
+        return this.group;
+    }
+
+    @Override
+    public void set(ServiceTransactionGroup group) {
+        this.group = group;
+    }
+
+    @Override
+    public void remove() {
+        this.group = null;
+    }
+    
+}
@@ -0,0 +1,462 @@
+package com.fizzed.transactional;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coordinates the two-phase commit of groups with more than one real resource
+ * when all of them are ServiceTransactionTwoPhaseAdapters: every resource is
+ * prepared, the commit decision is logged, then every resource is committed.
+ * A group with any other (one-phase) resource commits one by one as usual.
+ * 
+ * Decisions are appended to a memory-mapped log in a directory (two files
+ * used in turn, a full one is replaced by the other carrying over the
+ * decisions still open). It is presumed abort: only commit decisions are
+ * logged (and ended once every resource committed), so recover() commits
+ * prepared work with an open decision and rolls back any other.
+ * 
+ * Once its decision is logged a group is committed: a resource that fails to
+ * commit in phase two keeps its work prepared (in doubt, holding its locks)
+ * and the next recover() commits it. Call recover() periodically (e.g. from a
+ * scheduled task) so in-doubt work of the current run does not wait for a
+ * restart.
+ * 
+ * A write to the mapped log is in the page cache of the OS as soon as it is
+ * made, so it survives the process dying without a sync. With force enabled
+ * each commit decision is also synced to disk before its group commits, so it
+ * survives the OS dying too. Groups logging decisions at the same time share
+ * one sync (group commit), so a sync is not paid per decision under load.
+ * 
+ * <pre>
+ * ServiceTransactionCoordinator coordinator = new ServiceTransactionCoordinator(Paths.get("/var/lib/app/tx"), 65536, true);
+ * coordinator.recover(ordersResource, paymentsResource);
+ * ServiceTransactions.setCoordinator(coordinator);
+ * </pre>
+ */
+public class ServiceTransactionCoordinator implements Closeable {
+    static private final Logger log = LoggerFactory.getLogger(ServiceTransactionCoordinator.class);
+    static private final int MAGIC = 0x53545843;
+    static private final int HEADER = 16;       // magic, unused, generation
+    static private final int RECORD = 24;       // type, run, group, checksum
+    static private final int COMMIT = 1;
+    static private final int END = 2;
+    static private final String XID_PREFIX = "stx-";
+    
+    private final Path directory;
+    private final boolean force;
+    private final long runId;
+    private final FileChannel[] channels;
+    private final MappedByteBuffer[] buffers;
+    // commit decisions logged but not ended (guarded by this)
+    private final Set<Decision> open;
+    // open decisions of this run whose phase two failed (guarded by this)
+    private final Set<Decision> doubt;
+    private final Object syncLock;
+    private int current;
+    private long generation;
+    private int position;
+    private boolean closed;
+    // records appended (guarded by this) and synced (guarded by syncLock)
+    private long appended;
+    private long synced;
+    
+    /**
+     * Opens (or creates) the log in the directory, loading the decisions
+     * still open from a previous run for recover().
+     * 
+     * @param directory the directory of the log
+     * @param capacity the number of decisions (and ends) a log file holds
+     * @param force true to sync each commit decision to disk
+     * @throws IOException if the log cannot be opened
+     */
+    public ServiceTransactionCoordinator(Path directory, int capacity, boolean force) throws IOException {
+        Objects.requireNonNull(directory, "directory was null");
+        
+        if (capacity <= 0 || capacity > (Integer.MAX_VALUE - HEADER) / RECORD) {
+            throw new IllegalArgumentException("capacity must be > 0 and fit in a 2GB file");
+        }
+        
+        Files.createDirectories(directory);
+        
+        this.directory = directory;
+        this.force = force;
+        this.channels = new FileChannel[2];
+        this.buffers = new MappedByteBuffer[2];
+        this.open = new HashSet<>();
+        this.doubt = new HashSet<>();
+        this.syncLock = new Object();
+        
+        try {
+            for (int i = 0; i < 2; i++) {
+                this.channels[i] = FileChannel.open(directory.resolve("coordinator." + i + ".log"),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                // never map less than an existing file (its records must stay readable)
+                final long size = Math.max(HEADER + (long)capacity * RECORD, this.channels[i].size());
+                this.buffers[i] = this.channels[i].map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+        catch (IOException e) {
+            this.closeChannels();
+            throw e;
+        }
+        
+        // the newest log holds every open decision (each log begins with the
+        // ones open when it replaced the other)
+        this.current = -1;
+        for (int i = 0; i < 2; i++) {
+            final MappedByteBuffer buffer = this.buffers[i];
+            if (buffer.getInt(0) == MAGIC && buffer.getLong(8) > this.generation) {
+                this.generation = buffer.getLong(8);
+                this.current = i;
+            }
+        }
+        
+        if (this.current >= 0) {
+            this.read(this.buffers[this.current], this.generation);
+        }
+        
+        long run;
+        do {
+            run = ThreadLocalRandom.current().nextLong();
+        } while (run == 0L || this.isOpenRun(run));
+        this.runId = run;
+        
+        if (!this.open.isEmpty()) {
+            log.warn("Coordinator log {} has {} commit decision(s) to recover", directory, this.open.size());
+        }
+        
+        // start on a fresh log
+        synchronized (this) {
+            this.roll();
+        }
+    }
+    
+    public Path getDirectory() {
+        return directory;
+    }
+    
+    public boolean isForce() {
+        return force;
+    }
+    
+    /**
+     * Number of commit decisions logged but not ended (groups committing now,
+     * or left in doubt by a failed commit or a previous run until recovered).
+     * 
+     * @return the count
+     */
+    public synchronized int getOpen() {
+        return this.open.size();
+    }
+    
+    /**
+     * Number of commit decisions of this run whose phase two failed, waiting
+     * for recover() to commit their prepared work.
+     * 
+     * @return the count
+     */
+    public synchronized int getInDoubt() {
+        return this.doubt.size();
+    }
+    
+    String xid(long groupId, int index) {
+        return XID_PREFIX + Long.toHexString(this.runId) + "-" + groupId + "-" + index;
+    }
+    
+    void logCommit(long groupId) {
+        final long sequence = this.append(COMMIT, this.runId, groupId);
+        if (this.force) {
+            this.sync(sequence);
+        }
+    }
+    
+    synchronized void markInDoubt(long groupId) {
+        final Decision decision = new Decision(this.runId, groupId);
+        // already ended if a concurrent recover() raced it, nothing to do
+        if (this.open.contains(decision)) {
+            this.doubt.add(decision);
+        }
+    }
+    
+    void logEnd(long groupId) {
+        this.append(END, this.runId, groupId);
+    }
+    
+    /**
+     * Completes the work left prepared on the resources by a previous run:
+     * commits it if its commit decision was logged, otherwise rolls it back.
+     * Also commits the work of this run left in doubt by a failed phase two
+     * (work of groups still committing is left alone). Every resource that
+     * may hold such work must be given, since decisions are ended once
+     * recovered. Safe to call while groups commit.
+     * 
+     * @param resources the resources
+     * @return the number of prepared transactions completed
+     */
+    public int recover(ServiceTransactionTwoPhaseResource... resources) {
+        final Set<Decision> failed = new HashSet<>();
+        int recovered = 0;
+        
+        // only the decisions in doubt now (one marked later may still be listed as in flight)
+        final Set<Decision> doubt;
+        synchronized (this) {
+            doubt = new HashSet<>(this.doubt);
+        }
+        
+        for (ServiceTransactionTwoPhaseResource resource : resources) {
+            for (String xid : resource.recover()) {
+                final Decision decision = parse(xid);
+                
+                // not ours or still being prepared or committed by this run
+                if (decision == null || (decision.run == this.runId && !doubt.contains(decision))) {
+                    continue;
+                }
+                
+                final boolean commit;
+                synchronized (this) {
+                    commit = this.open.contains(decision);
+                }
+                
+                try {
+                    if (commit) {
+                        resource.commit(xid);
+                    } else {
+                        resource.rollback(xid);
+                    }
+                    recovered++;
+                    log.info("Recovered prepared transaction {} ({})", xid, commit ? "committed" : "rolled back");
+                }
+                catch (RuntimeException e) {
+                    log.warn("Unable to recover prepared transaction {} (will remain in doubt): {}", xid, e.getMessage());
+                    failed.add(decision);
+                }
+            }
+        }
+        
+        // end the decisions of previous runs (and in doubt) that are now fully committed
+        final List<Decision> ended = new ArrayList<>();
+        synchronized (this) {
+            for (Decision decision : this.open) {
+                if ((decision.run != this.runId || doubt.contains(decision)) && !failed.contains(decision)) {
+                    ended.add(decision);
+                }
+            }
+        }
+        
+        for (Decision decision : ended) {
+            this.append(END, decision.run, decision.group);
+        }
+        
+        return recovered;
+    }
+    
+    @Override
+    public synchronized void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        if (this.force) {
+            this.buffers[this.current].force();
+        }
+        this.closeChannels();
+    }
+    
+    private void closeChannels() {
+        for (FileChannel channel : this.channels) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                }
+                catch (IOException e) {
+                    log.warn("Unable to close coordinator log: {}", e.getMessage());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Appends a record, returning its sequence for sync.
+     */
+    private synchronized long append(int type, long run, long group) {
+        if (this.closed) {
+            throw new IllegalStateException("Coordinator is closed");
+        }
+        
+        if (this.position + RECORD > this.buffers[this.current].capacity()) {
+            this.roll();
+        }
+        
+        final MappedByteBuffer buffer = this.buffers[this.current];
+        
+        write(buffer, this.position, this.generation, type, run, group);
+        this.position += RECORD;
+        
+        final Decision decision = new Decision(run, group);
+        if (type == COMMIT) {
+            this.open.add(decision);
+        } else {
+            this.open.remove(decision);
+            this.doubt.remove(decision);
+        }
+        
+        return ++this.appended;
+    }
+    
+    /**
+     * Syncs the log up to (at least) the record of the sequence. Runs outside
+     * the monitor so groups keep appending while one syncs, and one sync
+     * covers every record appended before it began.
+     */
+    private void sync(long sequence) {
+        synchronized (this.syncLock) {
+            if (this.synced >= sequence) {
+                return;     // covered by the sync of another group
+            }
+            
+            final MappedByteBuffer buffer;
+            final long upto;
+            synchronized (this) {
+                // a record in a log since rolled over was copied (and synced) by roll()
+                buffer = this.buffers[this.current];
+                upto = this.appended;
+            }
+            
+            buffer.force();
+            
+            this.synced = upto;
+        }
+    }
+    
+    private void roll() {
+        final int target = this.current == 0 ? 1 : 0;
+        final long next = this.generation + 1;
+        final MappedByteBuffer buffer = this.buffers[target];
+        
+        // invalidate the target first: until its new header is written the
+        // current log stays the newest, so dying mid-roll loses nothing
+        buffer.putInt(0, 0);
+        buffer.force();
+        
+        // records left from its previous use have the wrong generation in
+        // their checksum, so reading stops at the first one
+        int pos = HEADER;
+        for (Decision decision : this.open) {
+            if (pos + RECORD > buffer.capacity()) {
+                throw new IllegalStateException("Coordinator log is too small for " + this.open.size() + " open decisions");
+            }
+            write(buffer, pos, next, COMMIT, decision.run, decision.group);
+            pos += RECORD;
+        }
+        buffer.force();
+        
+        buffer.putLong(8, next);
+        buffer.putInt(0, MAGIC);
+        buffer.force();
+        
+        this.current = target;
+        this.generation = next;
+        this.position = pos;
+    }
+    
+    private void read(MappedByteBuffer buffer, long generation) {
+        for (int pos = HEADER; pos + RECORD <= buffer.capacity(); pos += RECORD) {
+            final int type = buffer.getInt(pos);
+            final long run = buffer.getLong(pos + 4);
+            final long group = buffer.getLong(pos + 12);
+            
+            if (buffer.getInt(pos + 20) != checksum(generation, type, run, group)) {
+                return;     // end of the log (or a torn last write)
+            }
+            
+            if (type == COMMIT) {
+                this.open.add(new Decision(run, group));
+            } else if (type == END) {
+                this.open.remove(new Decision(run, group));
+            }
+        }
+    }
+    
+    private boolean isOpenRun(long run) {
+        for (Decision decision : this.open) {
+            if (decision.run == run) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    static private void write(MappedByteBuffer buffer, int pos, long generation, int type, long run, long group) {
+        buffer.putInt(pos, type);
+        buffer.putLong(pos + 4, run);
+        buffer.putLong(pos + 12, group);
+        buffer.putInt(pos + 20, checksum(generation, type, run, group));
+    }
+    
+    static private int checksum(long generation, int type, long run, long group) {
+        long h = generation * 0x9E3779B97F4A7C15L + type;
+        h = (h ^ (h >>> 31)) * 0xBF58476D1CE4E5B9L + run;
+        h = (h ^ (h >>> 29)) * 0x94D049BB133111EBL + group;
+        h = (h ^ (h >>> 32)) * 0x9E3779B97F4A7C15L;
+        // never 0, so a zeroed record never looks valid
+        return (int)(h ^ (h >>> 32)) | 1;
+    }
+    
+    static private Decision parse(String xid) {
+        if (xid == null || !xid.startsWith(XID_PREFIX)) {
+            return null;
+        }
+        
+        final String[] parts = xid.substring(XID_PREFIX.length()).split("-");
+        if (parts.length != 3) {
+            return null;
+        }
+        
+        try {
+            return new Decision(Long.parseUnsignedLong(parts[0], 16), Long.parseLong(parts[1]));
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+    
+    static private class Decision {
+        
+        private final long run;
+        private final long group;
+        
+        public Decision(long run, long group) {
+            this.run = run;
+            this.group = group;
+        }
+        
+        @Override
+        public int hashCode() {
+            return Long.hashCode(this.run * 31 + this.group);
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Decision)) {
+                return false;
+            }
+            final Decision other = (Decision)o;
+            return this.run == other.run && this.group == other.group;
+        }
+    
+    }
+
+}
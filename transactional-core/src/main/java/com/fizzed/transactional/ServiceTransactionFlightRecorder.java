@@ -0,0 +1,240 @@
+package com.fizzed.transactional;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed-size, lock-free ring of the most recent lifecycle events of all
+ * groups. Recording an event does not allocate (every slot is preallocated and
+ * overwritten), so it can stay on in production where debug logging cannot.
+ * The ring can be dumped on demand, and is dumped for a group that fails if
+ * dump on failure is enabled.
+ * 
+ * <pre>
+ * ServiceTransactionFlightRecorder recorder = new ServiceTransactionFlightRecorder(4096, true);
+ * ServiceTransactions.setFlightRecorder(recorder);
+ * ...
+ * log.info("Recent transactions:\n{}", recorder.dump());
+ * </pre>
+ */
+public class ServiceTransactionFlightRecorder {
+    
+    static public enum Event {
+        BEGIN,
+        COMMIT,
+        ROLLBACK,
+        REAL_PREPARE,
+        REAL_PREPARE_FAILED,
+        REAL_COMMIT,
+        REAL_COMMIT_FAILED,
+        REAL_ROLLBACK,
+        REAL_ROLLBACK_FAILED,
+        COMPLETE_SUCCESS,
+        COMPLETE_FAILURE
+    }
+    
+    static private final Event[] EVENTS = Event.values();
+    
+    static public class Entry {
+        
+        private final long sequence;
+        private final long nanos;
+        private final long groupId;
+        private final int index;
+        private final Event event;
+        private final String descriptor;
+        private final long threadId;
+        
+        public Entry(long sequence, long nanos, long groupId, int index, Event event, String descriptor, long threadId) {
+            this.sequence = sequence;
+            this.nanos = nanos;
+            this.groupId = groupId;
+            this.index = index;
+            this.event = event;
+            this.descriptor = descriptor;
+            this.threadId = threadId;
+        }
+        
+        public long getSequence() {
+            return sequence;
+        }
+        
+        /**
+         * The System.nanoTime() the event was recorded at.
+         * 
+         * @return the nano time
+         */
+        public long getNanos() {
+            return nanos;
+        }
+        
+        public long getGroupId() {
+            return groupId;
+        }
+        
+        /**
+         * The index of the transaction in its group or -1 for group events.
+         * 
+         * @return the index
+         */
+        public int getIndex() {
+            return index;
+        }
+        
+        public Event getEvent() {
+            return event;
+        }
+        
+        public String getDescriptor() {
+            return descriptor;
+        }
+        
+        public long getThreadId() {
+            return threadId;
+        }
+    
+    }
+    
+    private final int mask;
+    private final boolean dumpOnFailure;
+    private final AtomicLong sequence;
+    // a slot is -1 while being written, so readers can skip torn entries
+    private final AtomicLongArray sequences;
+    private final AtomicLongArray nanos;
+    private final AtomicLongArray groupIds;
+    private final AtomicLongArray threadIds;
+    private final AtomicIntegerArray indexes;
+    private final AtomicIntegerArray events;
+    private final AtomicReferenceArray<String> descriptors;
+    
+    /**
+     * @param capacity the number of events kept (rounded up to a power of 2)
+     * @param dumpOnFailure true to log the events of a group that fails
+     */
+    public ServiceTransactionFlightRecorder(int capacity, boolean dumpOnFailure) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity must be > 0 and <= 2^30");
+        }
+        
+        final int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        
+        this.mask = size - 1;
+        this.dumpOnFailure = dumpOnFailure;
+        this.sequence = new AtomicLong();
+        this.sequences = new AtomicLongArray(size);
+        this.nanos = new AtomicLongArray(size);
+        this.groupIds = new AtomicLongArray(size);
+        this.threadIds = new AtomicLongArray(size);
+        this.indexes = new AtomicIntegerArray(size);
+        this.events = new AtomicIntegerArray(size);
+        this.descriptors = new AtomicReferenceArray<>(size);
+        for (int i = 0; i < size; i++) {
+            this.sequences.set(i, -1L);
+        }
+    }
+    
+    public int getCapacity() {
+        return this.mask + 1;
+    }
+    
+    public boolean isDumpOnFailure() {
+        return dumpOnFailure;
+    }
+    
+    /**
+     * Number of events recorded (including ones since overwritten).
+     * 
+     * @return the count
+     */
+    public long getRecorded() {
+        return this.sequence.get();
+    }
+    
+    public void record(Event event, long groupId, int index, String descriptor) {
+        final long seq = this.sequence.getAndIncrement();
+        final int i = (int)(seq & this.mask);
+        
+        // ordered (not volatile) writes: the slot is marked busy before its fields change
+        this.sequences.lazySet(i, -1L);
+        this.nanos.lazySet(i, System.nanoTime());
+        this.groupIds.lazySet(i, groupId);
+        this.threadIds.lazySet(i, Thread.currentThread().getId());
+        this.indexes.lazySet(i, index);
+        this.events.lazySet(i, event.ordinal());
+        this.descriptors.lazySet(i, descriptor);
+        this.sequences.lazySet(i, seq);
+    }
+    
+    /**
+     * Copies the events in the ring, oldest first. Events being written while
+     * copied are skipped.
+     * 
+     * @return the events
+     */
+    public List<Entry> snapshot() {
+        return this.snapshot(-1L);
+    }
+    
+    /**
+     * Copies the events of a group in the ring, oldest first.
+     * 
+     * @param groupId the group id or -1 for all groups
+     * @return the events
+     */
+    public List<Entry> snapshot(long groupId) {
+        final long end = this.sequence.get();
+        final long start = Math.max(0L, end - this.mask - 1);
+        final List<Entry> entries = new ArrayList<>();
+        
+        for (long seq = start; seq < end; seq++) {
+            final int i = (int)(seq & this.mask);
+            
+            if (this.sequences.get(i) != seq) {
+                continue;       // overwritten or still being written
+            }
+            
+            final Entry entry = new Entry(seq, this.nanos.get(i), this.groupIds.get(i), this.indexes.get(i),
+                EVENTS[this.events.get(i)], this.descriptors.get(i), this.threadIds.get(i));
+            
+            if (this.sequences.get(i) != seq) {
+                continue;       // overwritten while copied
+            }
+            
+            if (groupId < 0L || entry.groupId == groupId) {
+                entries.add(entry);
+            }
+        }
+        
+        return entries;
+    }
+    
+    public String dump() {
+        return this.dump(-1L);
+    }
+    
+    /**
+     * Formats the events of a group in the ring, one per line, with the
+     * microseconds since the first event.
+     * 
+     * @param groupId the group id or -1 for all groups
+     * @return the events
+     */
+    public String dump(long groupId) {
+        final List<Entry> entries = this.snapshot(groupId);
+        final StringBuilder sb = new StringBuilder();
+        final long firstNanos = entries.isEmpty() ? 0L : entries.get(0).nanos;
+        
+        for (Entry entry : entries) {
+            sb.append(String.format("+%10.1f us group=%d index=%d thread=%d %s (%s)%n",
+                (entry.nanos - firstNanos) / 1000.0d, entry.groupId, entry.index, entry.threadId,
+                entry.event, entry.descriptor));
+        }
+        
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,46 @@
+package com.fizzed.transactional;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+class ServiceTransactionFutures {
+    
+    static CompletableFuture<Void> completed() {
+        return CompletableFuture.completedFuture(null);
+    }
+    
+    static CompletableFuture<Void> failed(Throwable t) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(t);
+        return future;
+    }
+    
+    /**
+     * Waits for the future and re-throws the original (unwrapped) exception if
+     * it failed.
+     */
+    static void join(CompletableFuture<?> future) {
+        try {
+            future.join();
+        }
+        catch (CompletionException e) {
+            final Throwable cause = unwrap(e);
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw e;
+        }
+    }
+    
+    static Throwable unwrap(Throwable t) {
+        while ((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null) {
+            t = t.getCause();
+        }
+        return t;
+    }
+    
+}
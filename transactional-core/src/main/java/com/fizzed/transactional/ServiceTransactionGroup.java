@@ -1,61 +1,456 @@
 package com.fizzed.transactional;
 
 import com.fizzed.crux.util.StopWatch;
+import com.fizzed.transactional.ServiceTransactionFlightRecorder.Event;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * The transactions begun (and nested) on one thread, or on the tasks of
+ * ServiceTransactions.parallel, which commit or roll back together. Begins,
+ * listeners and completion are synchronized so tasks may join the group from
+ * other threads; reads of its transactions otherwise rely on the tasks being
+ * joined before the group commits.
+ */
 public class ServiceTransactionGroup {
     static private final Logger log = LoggerFactory.getLogger(ServiceTransactionGroup.class);
     
-    private final long id;
-    private final StopWatch timer;
+    private final boolean pooled;
+    private final ServiceTransactionStorage storage;
     private final List<ServiceTransaction> transactions;
-    private boolean success;
+    private final List<ServiceTransaction> pool;
+    private long id;
+    private long startNanos;
+    private long stopNanos;
+    private volatile boolean completed;
+    // the deadline in effect: the one of the group tightened by nested scopes
+    private volatile boolean deadline;
+    private volatile long deadlineNanos;
+    // the deadline of the whole group (guarded by this)
+    private boolean groupDeadline;
+    private long groupDeadlineNanos;
+    private Map<String,ServiceTransaction> idempotencies;   // guarded by this
+    // parallel tasks running for the group (guarded by this)
+    private int forks;
+    private volatile boolean success;
     private List<ServiceTransactionListener> listeners;
+    private List<ServiceTransactionListener> completionListeners;
+    private Executor parallelCommitExecutor;
+    private ServiceTransactionListenerDispatcher listenerDispatcher;
+    private ServiceTransactionMetrics metrics;
+    private ServiceTransactionFlightRecorder flightRecorder;
+    private ServiceTransactionTracer tracer;
+    private Object tracerSpan;
+    private ServiceTransactionCoordinator coordinator;
+    private ServiceTransactionRegistry registry;
     
     public ServiceTransactionGroup(long id) {
+        this(id, false, null);
+    }
+    
+    ServiceTransactionGroup(long id, boolean pooled, ServiceTransactionStorage storage) {
         this.id = id;
-        this.timer = StopWatch.timeMillis();
+        this.pooled = pooled;
+        this.storage = storage;
+        this.startNanos = System.nanoTime();
+        this.configure();
         this.transactions = new ArrayList<>();
+        this.pool = pooled ? new ArrayList<>() : null;
     }
 
     public long getId() {
         return id;
     }
 
+    /**
+     * If this group (and its transactions) are recycled by the next begin
+     * on the same thread once it completes.
+     * 
+     * @return true if pooled
+     */
+    public boolean isPooled() {
+        return pooled;
+    }
+
+    /**
+     * Nanoseconds the group has been running (or ran for if its completed).
+     * 
+     * @return the elapsed nanoseconds
+     */
+    public long getElapsedNanos() {
+        return (this.completed ? this.stopNanos : System.nanoTime()) - this.startNanos;
+    }
+    
+    public double getElapsedMillis() {
+        return this.getElapsedNanos() / 1000000.0d;
+    }
+    
+    /**
+     * A view of the timing of this group as a StopWatch (a new one each call,
+     * since the group no longer keeps one so a pooled group allocates nothing).
+     * 
+     * @return the timer
+     * @deprecated use getElapsedNanos or getElapsedMillis
+     */
+    @Deprecated
     public StopWatch getTimer() {
-        return timer;
+        return new Timer(this);
+    }
+    
+    @Deprecated
+    static private class Timer extends StopWatch {
+        
+        private final ServiceTransactionGroup group;
+        
+        public Timer(ServiceTransactionGroup group) {
+            super(TimeUnit.MILLISECONDS);
+            this.group = group;
+        }
+        
+        @Override
+        public boolean isRunning() {
+            return !this.group.isCompleted();
+        }
+        
+        @Override
+        public boolean isStopped() {
+            return this.group.isCompleted();
+        }
+        
+        @Override
+        public StopWatch stop() {
+            // the group stops when it completes
+            return this;
+        }
+        
+        @Override
+        public long elapsedNanos() {
+            return this.group.getElapsedNanos();
+        }
+    
+    }
+    
+    /**
+     * If this group has a deadline (see setDeadline).
+     * 
+     * @return true if it has a deadline
+     */
+    public boolean hasDeadline() {
+        return deadline;
+    }
+    
+    /**
+     * Bounds how much longer this group may run: once its deadline passes,
+     * nested begins and its real commit are refused (and it is rolled back).
+     * The deadline of a group is only ever tightened.
+     * 
+     * @param timeout the time left from now
+     * @param unit the unit of the timeout
+     */
+    public synchronized void setDeadline(long timeout, TimeUnit unit) {
+        final long nanos = System.nanoTime() + unit.toNanos(timeout);
+        // nano times are only comparable by their difference
+        if (!this.groupDeadline || nanos - this.groupDeadlineNanos < 0) {
+            this.groupDeadlineNanos = nanos;
+            this.groupDeadline = true;
+        }
+        this.tightenDeadline(nanos);
+    }
+    
+    synchronized void endDeadline(ServiceTransaction transaction) {
+        transaction.clearDeadline();
+        
+        this.deadline = this.groupDeadline;
+        this.deadlineNanos = this.groupDeadlineNanos;
+        for (int i = 0; i < this.transactions.size(); i++) {
+            final ServiceTransaction tr = this.transactions.get(i);
+            if (tr.hasDeadline()) {
+                this.tightenDeadline(tr.getDeadlineNanos());
+            }
+        }
+    }
+    
+    private void tightenDeadline(long nanos) {
+        if (!this.deadline || nanos - this.deadlineNanos < 0) {
+            this.deadlineNanos = nanos;
+            this.deadline = true;
+        }
+    }
+    
+    /**
+     * Nanoseconds left until the deadline of this group.
+     * 
+     * @return the nanoseconds left (0 once expired) or Long.MAX_VALUE if it
+     *      has no deadline
+     */
+    public long getRemainingNanos() {
+        if (!this.deadline) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0L, this.deadlineNanos - System.nanoTime());
+    }
+    
+    synchronized void clearDeadline() {
+        this.groupDeadline = false;
+        this.deadline = false;
+    }
+    
+    public boolean isExpired() {
+        return this.deadline && this.deadlineNanos - System.nanoTime() <= 0;
+    }
+    
+    public Executor getParallelCommitExecutor() {
+        return parallelCommitExecutor;
+    }
+
+    /**
+     * Commits the adapters of this group at the same time on the executor
+     * (rather than one at a time in reverse order). If any commit fails, the
+     * adapters that have not started their commit yet are rolled back instead,
+     * just like the sequential commit. Adapters must tolerate being committed
+     * from a thread other than the one that began them. Defaults to the
+     * executor of ServiceTransactions.setParallelCommitExecutor.
+     * 
+     * @param parallelCommitExecutor the executor or null to commit sequentially
+     */
+    public void setParallelCommitExecutor(Executor parallelCommitExecutor) {
+        this.parallelCommitExecutor = parallelCommitExecutor;
+    }
+    
+    public ServiceTransactionListenerDispatcher getListenerDispatcher() {
+        return listenerDispatcher;
+    }
+
+    /**
+     * Runs the listeners of this group on the dispatcher once it completes,
+     * rather than on the completing thread. Listeners added after the group
+     * completed still run immediately. Defaults to the dispatcher of
+     * ServiceTransactions.setListenerDispatcher.
+     * 
+     * @param listenerDispatcher the dispatcher or null to run listeners inline
+     */
+    public void setListenerDispatcher(ServiceTransactionListenerDispatcher listenerDispatcher) {
+        this.listenerDispatcher = listenerDispatcher;
+    }
+    
+    public ServiceTransactionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Records the latency and outcome of this group and its transactions once
+     * it completes. Defaults to the metrics of ServiceTransactions.setMetrics.
+     * 
+     * @param metrics the metrics or null to not record any
+     */
+    public void setMetrics(ServiceTransactionMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    public ServiceTransactionFlightRecorder getFlightRecorder() {
+        return flightRecorder;
+    }
+
+    /**
+     * Records the lifecycle events of this group and its transactions.
+     * Defaults to the recorder of ServiceTransactions.setFlightRecorder.
+     * 
+     * @param flightRecorder the recorder or null to not record any
+     */
+    public void setFlightRecorder(ServiceTransactionFlightRecorder flightRecorder) {
+        this.flightRecorder = flightRecorder;
+    }
+    
+    public ServiceTransactionTracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * Traces this group, its real commits/rollbacks and its listeners.
+     * Defaults to the tracer of ServiceTransactions.setTracer.
+     * 
+     * @param tracer the tracer or null to not trace
+     */
+    public void setTracer(ServiceTransactionTracer tracer) {
+        this.tracer = tracer;
+    }
+    
+    public ServiceTransactionCoordinator getCoordinator() {
+        return coordinator;
+    }
+
+    /**
+     * Commits this group in two phases with the coordinator if it has more
+     * than one real resource and all of them are two-phase adapters.
+     * Defaults to the coordinator of ServiceTransactions.setCoordinator.
+     * 
+     * @param coordinator the coordinator or null to always commit one by one
+     */
+    public void setCoordinator(ServiceTransactionCoordinator coordinator) {
+        this.coordinator = coordinator;
+    }
+    
+    Object traceStarted(int index, String descriptor, boolean commit) {
+        if (this.tracer != null) {
+            try {
+                return this.tracer.realCompletionStarted(this.id, index, descriptor, commit);
+            }
+            catch (Throwable t) {
+                log.error("Unhandled throwable in transaction tracer!", t);
+            }
+        }
+        return null;
+    }
+    
+    void traceEnded(Object span, Throwable cause) {
+        if (this.tracer != null) {
+            try {
+                this.tracer.realCompletionEnded(span, cause);
+            }
+            catch (Throwable t) {
+                log.error("Unhandled throwable in transaction tracer!", t);
+            }
+        }
+    }
+    
+    void record(Event event, int index, String descriptor) {
+        if (this.flightRecorder != null) {
+            this.flightRecorder.record(event, this.id, index, descriptor);
+        }
+    }
+    
+    private String firstDescriptor() {
+        return this.transactions.isEmpty() ? null : this.transactions.get(0).getDescriptor();
     }
     
     public boolean isCompleted() {
-        return this.timer.isStopped();
+        return this.completed;
     }
     
     public boolean wasSuccessful() {
         return this.isCompleted() && this.success;
     }
     
+    /**
+     * If every transaction in this group was begun read-only.
+     * 
+     * @return true if read-only
+     */
+    public boolean isReadOnly() {
+        for (int i = 0; i < this.transactions.size(); i++) {
+            if (!this.transactions.get(i).isReadOnly()) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    // counts the parallel tasks running for the group (see ServiceTransactions.parallel),
+    // returning the index the transactions begun by the tasks start from
+    synchronized int forkStarted() {
+        this.forks++;
+        return this.transactions.size();
+    }
+    
+    synchronized void forkEnded() {
+        this.forks--;
+    }
+    
+    /**
+     * Detaches the adapters of the transactions begun from the index on from
+     * the current thread (see ServiceTransactionAdapter.detach).
+     */
+    void detach(int from) {
+        final List<ServiceTransactionAdapter> adapters = new ArrayList<>();
+        synchronized (this) {
+            for (int i = from; i < this.transactions.size(); i++) {
+                adapters.add(this.transactions.get(i).getAdapter());
+            }
+        }
+        
+        // not under the lock, other tasks may still be beginning
+        for (ServiceTransactionAdapter adapter : adapters) {
+            try {
+                adapter.detach();
+            }
+            catch (Throwable t) {
+                log.error("Unhandled throwable in transaction adapter detach!", t);
+            }
+        }
+    }
+    
+    /**
+     * Copy of the descriptors of the transactions, safe to call from another
+     * thread (e.g. a watchdog) while the group runs (transactions are only
+     * added and cleared under the lock of the group).
+     */
+    synchronized List<String> descriptors() {
+        final List<String> descriptors = new ArrayList<>(this.transactions.size());
+        for (int i = 0; i < this.transactions.size(); i++) {
+            descriptors.add(this.transactions.get(i).getDescriptor());
+        }
+        return descriptors;
+    }
+    
     public boolean hasTransactions() {
         return this.transactions != null && !this.transactions.isEmpty();
     }
     
+    /**
+     * Gets the first transaction in this group with the idempotency.
+     * 
+     * @param idempotency the idempotency
+     * @return the transaction or null if none
+     */
+    public synchronized ServiceTransaction getFirst(String idempotency) {
+        return this.idempotencies != null ? this.idempotencies.get(idempotency) : null;
+    }
+    
     public void addListener(ServiceTransactionListener listener) {
-        // if the group is already completed, we can run the listener now
-        if (this.isCompleted()) {
-            listener.onComplete(this.success);
+        synchronized (this) {
+            if (!this.completed) {
+                if (this.listeners == null) {
+                    this.listeners = new ArrayList<>();
+                }
+                this.listeners.add(listener);
+                return;
+            }
         }
-        else {
-            if (this.listeners == null) {
-                this.listeners = new ArrayList<>();
+        
+        // if the group is already completed, we can run the listener now
+        listener.onComplete(this.success);
+    }
+    
+    /**
+     * Adds a listener that always runs inline the moment the group completes,
+     * before (and regardless of the dispatcher of) the regular listeners. For
+     * releasing what the group holds, e.g. key locks.
+     */
+    void addCompletionListener(ServiceTransactionListener listener) {
+        synchronized (this) {
+            if (!this.completed) {
+                if (this.completionListeners == null) {
+                    this.completionListeners = new ArrayList<>();
+                }
+                this.completionListeners.add(listener);
+                return;
             }
-            this.listeners.add(listener);
         }
+        
+        ServiceTransactionListenerDispatcher.run(listener, this.success);
     }
     
-    public void removeListener(ServiceTransactionListener listener) {
+    public synchronized void removeListener(ServiceTransactionListener listener) {
         if (this.listeners != null) {
             this.listeners.remove(listener);
             if (this.listeners.isEmpty()) {
@@ -64,51 +459,324 @@ public class ServiceTransactionGroup {
         }
     }
     
+    /**
+     * Resets a completed, pooled group so it can be used for a new series of
+     * transactions. Its transaction objects are kept to be reused by begin.
+     * 
+     * @param id the new group id
+     */
+    void reset(long id) {
+        if (!this.pooled) {
+            throw new IllegalStateException("Unable to reset group (not pooled)");
+        }
+        
+        if (!this.completed) {
+            throw new IllegalStateException("Unable to reset group " + this.id + " (not completed)");
+        }
+        
+        this.id = id;
+        this.startNanos = System.nanoTime();
+        this.stopNanos = 0L;
+        this.completed = false;
+        this.success = false;
+        synchronized (this) {
+            this.groupDeadline = false;
+            this.deadline = false;
+            this.transactions.clear();
+            if (this.idempotencies != null) {
+                this.idempotencies.clear();
+            }
+            this.forks = 0;
+        }
+        this.listeners = null;
+        this.completionListeners = null;
+        this.configure();
+    }
+    
+    private void configure() {
+        // defaults are picked up when a group starts (or restarts when pooled)
+        this.parallelCommitExecutor = ServiceTransactions.getParallelCommitExecutor();
+        this.listenerDispatcher = ServiceTransactions.getListenerDispatcher();
+        this.metrics = ServiceTransactions.getMetrics();
+        this.flightRecorder = ServiceTransactions.getFlightRecorder();
+        this.tracer = ServiceTransactions.getTracer();
+        this.tracerSpan = null;
+        this.coordinator = ServiceTransactions.getCoordinator();
+        this.registry = ServiceTransactions.getRegistry();
+    }
+    
     public ServiceTransaction begin(
             String descriptor,
             String idempotency,
             Function<Boolean,ServiceTransactionAdapter> supplier) {
         
-        final int index = this.transactions.size();
+        return this.begin(descriptor, idempotency, false, supplier);
+    }
+    
+    public ServiceTransaction begin(
+            String descriptor,
+            String idempotency,
+            boolean readOnly,
+            Function<Boolean,ServiceTransactionAdapter> supplier) {
+        
+        return this.begin(descriptor, idempotency, readOnly, false, 0L, supplier);
+    }
+    
+    /**
+     * Begins a nested transaction that tightens the deadline for as long as
+     * it is active: once it commits or rolls back, the deadline of the group
+     * (and of any other scope still active) applies again. The resource it
+     * acquires is bounded by it from the start.
+     */
+    ServiceTransaction begin(
+            String descriptor,
+            String idempotency,
+            boolean readOnly,
+            long deadlineNanos,
+            Function<Boolean,ServiceTransactionAdapter> supplier) {
+        
+        return this.begin(descriptor, idempotency, readOnly, true, deadlineNanos, supplier);
+    }
+    
+    private ServiceTransaction begin(
+            String descriptor,
+            String idempotency,
+            boolean readOnly,
+            boolean scoped,
+            long scopedDeadlineNanos,
+            Function<Boolean,ServiceTransactionAdapter> supplier) {
         
-        // is this the first in the series of idempotency?
-        boolean first = idempotency == null
-            || this.transactions.isEmpty()
-            || this.transactions.stream().noneMatch(v -> idempotency.equals(v.getIdempotency()));
+        final boolean first;
+        final boolean deadline;
+        final long deadlineNanos;
+        
+        synchronized (this) {
+            // a nested begin inherits what is left of the budget, so nothing is left
+            if (!this.transactions.isEmpty() && this.isExpired()) {
+                throw new ServiceTransactionTimeoutException("Unable to begin " + descriptor
+                    + " (deadline of transaction group " + this.id + " passed)");
+            }
+            
+            final ServiceTransaction firstOfIdempotency = this.getFirst(idempotency);
+            
+            // is this the first in the series of idempotency?
+            first = idempotency == null || firstOfIdempotency == null;
+            
+            // its resource belongs to another thread, which may be using it right now
+            if (!first && this.forks > 0) {
+                throw new IllegalStateException("Unable to begin " + descriptor + " in a parallel task"
+                    + " (idempotency " + idempotency + " was already begun by " + firstOfIdempotency.getDescriptor() + ")");
+            }
+            
+            // a write cannot ride on a resource that was begun read-only
+            if (!first && !readOnly && firstOfIdempotency.isReadOnly()) {
+                throw new IllegalStateException("Unable to begin " + descriptor + " (idempotency "
+                    + idempotency + " was begun read-only by " + firstOfIdempotency.getDescriptor() + ")");
+            }
+            
+            // the deadline the resource is bounded by, tightened by a scoped one
+            if (scoped && (!this.deadline || scopedDeadlineNanos - this.deadlineNanos < 0)) {
+                deadline = true;
+                deadlineNanos = scopedDeadlineNanos;
+            } else {
+                deadline = this.deadline;
+                deadlineNanos = this.deadlineNanos;
+            }
+        }
         
+        // not under the lock, so parallel tasks acquire their resources at the same time
         final ServiceTransactionAdapter adapter = supplier.apply(first);
         
-        ServiceTransaction transaction = new ServiceTransaction(
-            this, index, idempotency, descriptor, adapter, first);
+        if (first) {
+            this.apply(descriptor, readOnly, deadline, deadlineNanos, adapter);
+        }
+        
+        try {
+            return this.add(descriptor, idempotency, readOnly, adapter, first, scoped, scopedDeadlineNanos);
+        }
+        catch (IllegalStateException e) {
+            this.rollbackQuietly(descriptor, adapter);
+            throw e;
+        }
+    }
+    
+    private void apply(
+            String descriptor,
+            boolean readOnly,
+            boolean deadline,
+            long deadlineNanos,
+            ServiceTransactionAdapter adapter) {
+        
+        try {
+            if (readOnly) {
+                adapter.markReadOnly();
+            }
+            else if (adapter.isReadOnly()) {
+                // its commit would only end the resource, discarding any writes
+                throw new IllegalStateException("Unable to begin " + descriptor
+                    + " (supplier is read-only, begin it with readOnly set to true)");
+            }
+            
+            if (deadline) {
+                adapter.applyDeadline(deadlineNanos);
+            }
+        }
+        catch (RuntimeException e) {
+            this.rollbackQuietly(descriptor, adapter);
+            throw e;
+        }
+    }
+    
+    private void rollbackQuietly(String descriptor, ServiceTransactionAdapter adapter) {
+        try {
+            adapter.rollback();
+        }
+        catch (RuntimeException re) {
+            log.warn("Unable to rollback adapter of {}: {}", descriptor, re.getMessage());
+        }
+    }
+    
+    private synchronized ServiceTransaction add(
+            String descriptor,
+            String idempotency,
+            boolean readOnly,
+            ServiceTransactionAdapter adapter,
+            boolean first,
+            boolean scoped,
+            long scopedDeadlineNanos) {
+        
+        // another parallel task began the idempotency while this one acquired its resource
+        if (first && idempotency != null && this.forks > 0) {
+            final ServiceTransaction firstOfIdempotency = this.getFirst(idempotency);
+            if (firstOfIdempotency != null) {
+                throw new IllegalStateException("Unable to begin " + descriptor + " in a parallel task"
+                    + " (idempotency " + idempotency + " was already begun by " + firstOfIdempotency.getDescriptor() + ")");
+            }
+        }
+        
+        final int index = this.transactions.size();
+        
+        final ServiceTransaction transaction;
+        if (this.pooled && index < this.pool.size()) {
+            transaction = this.pool.get(index);
+            transaction.reset(index, idempotency, descriptor, adapter, readOnly);
+        }
+        else {
+            transaction = new ServiceTransaction(
+                this, index, idempotency, descriptor, adapter, first, readOnly);
+            if (this.pooled) {
+                this.pool.add(transaction);
+            }
+        }
         
         this.transactions.add(transaction);
         
-        log.debug("Transaction begin: group={}, index={}, idempotency={}, first={} ({})",
-            id, index, idempotency, first, descriptor);
+        if (scoped) {
+            transaction.setDeadlineNanos(scopedDeadlineNanos);
+            this.tightenDeadline(scopedDeadlineNanos);
+        }
+        
+        this.record(Event.BEGIN, index, descriptor);
+        
+        if (index == 0 && this.registry != null) {
+            this.registry.register(this);
+        }
+        
+        if (index == 0 && this.tracer != null) {
+            try {
+                this.tracerSpan = this.tracer.groupStarted(this.id, descriptor);
+            }
+            catch (Throwable t) {
+                log.error("Unhandled throwable in transaction tracer!", t);
+            }
+        }
+        
+        // index the first transaction of each idempotency so deep groups stay O(1) per begin
+        if (first && idempotency != null && this.getFirst(idempotency) == null) {
+            if (this.idempotencies == null) {
+                this.idempotencies = new HashMap<>();
+            }
+            this.idempotencies.put(idempotency, transaction);
+        }
+        
+        if (log.isDebugEnabled()) {
+            log.debug("Transaction begin: group={}, index={}, idempotency={}, first={}, readOnly={} ({})",
+                id, index, idempotency, first, readOnly, descriptor);
+        }
         
         return transaction;
     }
     
     private void complete(boolean success) {
         
-        final boolean isFirstComplete = this.timer.isRunning();
+        final boolean isFirstComplete;
         
-        this.success = success;
+        // listeners added from now on run immediately rather than being missed
+        synchronized (this) {
+            isFirstComplete = !this.completed;
+            
+            this.success = success;
+            
+            if (isFirstComplete) {
+                this.stopNanos = System.nanoTime();
+                this.completed = true;
+            }
+        }
         
-        this.timer.stop();
+        if (isFirstComplete && this.registry != null) {
+            this.registry.unregister(this);
+        }
         
         // the current transaction MUST be completed
-        ServiceTransactions.clear();
+        if (this.storage != null) {
+            ServiceTransactions.release(this.storage, this);
+        }
+        
+        if (log.isDebugEnabled()) {
+            log.debug("Transaction complete: group={} (in {} ms)", this.id, this.getElapsedMillis());
+        }
+        
+        if (isFirstComplete && this.completionListeners != null) {
+            for (int i = 0; i < this.completionListeners.size(); i++) {
+                ServiceTransactionListenerDispatcher.run(this.completionListeners.get(i), success);
+            }
+        }
         
-        log.debug("Transaction complete: group={} (in {})", this.id, this.timer);
+        if (isFirstComplete && this.metrics != null) {
+            this.recordMetrics(success);
+        }
+        
+        if (isFirstComplete && this.flightRecorder != null) {
+            this.record(success ? Event.COMPLETE_SUCCESS
+                : Event.COMPLETE_FAILURE, -1, this.firstDescriptor());
+        }
+        
+        if (isFirstComplete && this.tracer != null) {
+            try {
+                this.tracer.groupCompleted(this.tracerSpan, this.transactions.size(), success);
+            }
+            catch (Throwable t) {
+                log.error("Unhandled throwable in transaction tracer!", t);
+            }
+            this.tracerSpan = null;
+        }
         
         if (isFirstComplete && this.listeners != null) {
-            for (ServiceTransactionListener listener : this.listeners) {
-                try {
-                    listener.onComplete(success);
+            if (this.listenerDispatcher != null) {
+                this.listenerDispatcher.dispatch(this.listeners, success, this.metrics, this.tracer, this.id);
+            }
+            else {
+                final long listenersStartNanos = this.metrics != null ? System.nanoTime() : 0L;
+                final Object span = ServiceTransactionListenerDispatcher.listenersStarted(this.tracer, this.id, this.listeners.size());
+                
+                for (int i = 0; i < this.listeners.size(); i++) {
+                    ServiceTransactionListenerDispatcher.run(this.listeners.get(i), success);
                 }
-                catch (Throwable t) {
-                    log.error("Unhandled throwable in transaction listener.onComplete!", t);
+                
+                ServiceTransactionListenerDispatcher.listenersEnded(this.tracer, span);
+                
+                if (this.metrics != null) {
+                    this.metrics.recordListeners(this.listeners.size(), System.nanoTime() - listenersStartNanos);
                 }
             }
         }
@@ -117,43 +785,94 @@ public class ServiceTransactionGroup {
         for (int i = this.transactions.size() - 1; i >= 0; i--) {
             ServiceTransaction tr = this.transactions.get(i);
             if (tr.getCause() != null) {
+                if (isFirstComplete && this.flightRecorder != null && this.flightRecorder.isDumpOnFailure()) {
+                    log.warn("Transaction group {} failed ({}), flight recorder:\n{}",
+                        this.id, tr.getCause().getMessage(), this.flightRecorder.dump(this.id));
+                }
                 throw new ServiceTransactionException("Unable to cleanly execute transaction group=" + this.getId(), tr.getCause());
             }
         }
     }
     
+    private void recordMetrics(boolean success) {
+        try {
+            for (int i = 0; i < this.transactions.size(); i++) {
+                final ServiceTransaction tr = this.transactions.get(i);
+                final ServiceTransactionMetrics.Outcome outcome;
+                if (tr.getCause() != null) {
+                    outcome = ServiceTransactionMetrics.Outcome.FAILED;
+                } else if (tr.getState() == ServiceTransaction.State.COMMITTED) {
+                    outcome = ServiceTransactionMetrics.Outcome.COMMITTED;
+                } else {
+                    outcome = ServiceTransactionMetrics.Outcome.ROLLED_BACK;
+                }
+                this.metrics.recordTransaction(tr.getDescriptor(), this.stopNanos - tr.getBeginNanos(), outcome);
+            }
+            
+            this.metrics.recordGroup(this.transactions.size(), this.stopNanos - this.startNanos, success);
+        }
+        catch (Throwable t) {
+            log.error("Unhandled throwable in transaction metrics!", t);
+        }
+    }
+    
+    private boolean isReadyForRealCommit() {
+        for (int i = 0; i < this.transactions.size(); i++) {
+            ServiceTransaction tr = this.transactions.get(i);
+            if (!tr.isReadyForRealCommit()) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
     void commit(int index) {
         // first transaction only triggers final commit
         if (index > 0) {
             return;
         }
         
-        log.debug("Transaction commit: group={}", this.id);
+        if (log.isDebugEnabled()) {
+            log.debug("Transaction commit: group={}", this.id);
+        }
+        
+        this.record(Event.COMMIT, -1, this.firstDescriptor());
         
         boolean rollback = false;
         
         try {
             // verify all transactions are ready to commit
-            boolean readyForRealCommit = true;
-            for (int i = 0; i < this.transactions.size(); i++) {
-                ServiceTransaction tr = this.transactions.get(i);
-                if (!tr.isReadyForRealCommit()) {
-                    readyForRealCommit = false;
-                    break;
-                }
-            }
-
-            if (!readyForRealCommit) {
+            if (!this.isReadyForRealCommit()) {
+                // so completing again in finally does not flip the group to successful
+                rollback = true;
                 this.rollback(index);
                 return;
             }
+            
+            if (this.isExpired()) {
+                this.expire();
+                rollback = true;
+                return;
+            }
+            
+            if (this.isTwoPhaseCommit()) {
+                rollback = this.realCommitTwoPhase();
+                return;
+            }
+            
+            if (this.isParallelCommit()) {
+                rollback = this.realCommitParallel(this.parallelCommitExecutor).join();
+                return;
+            }
 
             for (int i = this.transactions.size() - 1; i >= 0; i--) {
                 ServiceTransaction tr = this.transactions.get(i);
                 if (rollback) {
                     try {
-                        log.debug("Transaction real rollback: group={}, index={} ({})",
-                            this.id, tr.getIndex(), tr.getDescriptor());
+                        if (log.isDebugEnabled()) {
+                            log.debug("Transaction real rollback: group={}, index={} ({})",
+                                this.id, tr.getIndex(), tr.getDescriptor());
+                        }
                         
                         tr.realRollback();
                     }
@@ -163,8 +882,10 @@ public class ServiceTransactionGroup {
                 }
                 else {
                     try {
-                        log.debug("Transaction real commit: group={}, index={} ({})",
-                            this.id, tr.getIndex(), tr.getDescriptor());
+                        if (log.isDebugEnabled()) {
+                            log.debug("Transaction real commit: group={}, index={} ({})",
+                                this.id, tr.getIndex(), tr.getDescriptor());
+                        }
                         
                         tr.realCommit();
                     } catch (Exception e) {
@@ -185,7 +906,11 @@ public class ServiceTransactionGroup {
             return;
         }
         
-        log.debug("Transaction rollback: group={}", this.id);
+        if (log.isDebugEnabled()) {
+            log.debug("Transaction rollback: group={}", this.id);
+        }
+        
+        this.record(Event.ROLLBACK, -1, this.firstDescriptor());
         
         try {
             // rollback in reverse order
@@ -193,8 +918,10 @@ public class ServiceTransactionGroup {
                 
                 ServiceTransaction tr = this.transactions.get(i);
                 
-                log.debug("Transaction real rollback: group={}, index={} ({})",
-                    this.id, tr.getIndex(), tr.getDescriptor());
+                if (log.isDebugEnabled()) {
+                    log.debug("Transaction real rollback: group={}, index={} ({})",
+                        this.id, tr.getIndex(), tr.getDescriptor());
+                }
                 
                 tr.realRollback();
             }
@@ -204,4 +931,353 @@ public class ServiceTransactionGroup {
         }
     }
     
-}
\ No newline at end of file
+    CompletableFuture<Void> commitAsync(int index) {
+        // first transaction only triggers final commit
+        if (index > 0) {
+            return ServiceTransactionFutures.completed();
+        }
+        
+        if (log.isDebugEnabled()) {
+            log.debug("Transaction commit async: group={}", this.id);
+        }
+        
+        this.record(Event.COMMIT, -1, this.firstDescriptor());
+        
+        // the rest of the commit may complete on another thread, so the group
+        // is released from its storage now rather than in complete
+        if (this.storage != null) {
+            ServiceTransactions.release(this.storage, this);
+        }
+        
+        final boolean ready = this.isReadyForRealCommit();
+        
+        final CompletableFuture<Boolean> future;
+        if (!ready) {
+            future = this.realRollbackAsync(this.transactions.size() - 1).thenApply(v -> true);
+        } else if (this.isExpired()) {
+            this.transactions.get(0).fail(this.expiredException());
+            future = this.realRollbackAsync(this.transactions.size() - 1).thenApply(v -> true);
+        } else if (this.isTwoPhaseCommit()) {
+            future = CompletableFuture.completedFuture(this.realCommitTwoPhase());
+        } else if (this.isParallelCommit()) {
+            future = this.realCommitParallel(this.parallelCommitExecutor);
+        } else {
+            future = this.realCommitAsync(this.transactions.size() - 1, false);
+        }
+        
+        return future.handle((rollback, e) -> {
+            // causes of real commits/rollbacks are kept on the transactions
+            this.complete(e == null && !rollback);
+            return null;
+        });
+    }
+    
+    private ServiceTransactionTimeoutException expiredException() {
+        return new ServiceTransactionTimeoutException("Unable to commit transaction group " + this.id
+            + " (deadline passed " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.deadlineNanos) + " ms ago)");
+    }
+    
+    /**
+     * Rolls back every transaction of a group whose deadline passed before its
+     * real commit, failing it so completing it throws.
+     */
+    private void expire() {
+        log.warn("Transaction group {} deadline passed (will rollback rather than commit)", this.id);
+        
+        this.transactions.get(0).fail(this.expiredException());
+        
+        for (int i = this.transactions.size() - 1; i >= 0; i--) {
+            final ServiceTransaction tr = this.transactions.get(i);
+            try {
+                if (log.isDebugEnabled()) {
+                    log.debug("Transaction real rollback: group={}, index={} ({})",
+                        this.id, tr.getIndex(), tr.getDescriptor());
+                }
+                
+                tr.realRollback();
+            }
+            catch (Exception e) {
+                log.warn("Unable to rollback (will continue rolling back rest of transaction group): {}", e.getMessage());
+            }
+        }
+    }
+    
+    private CompletableFuture<Boolean> realCommitAsync(int i, boolean rollback) {
+        if (i < 0) {
+            return CompletableFuture.completedFuture(rollback);
+        }
+        
+        final ServiceTransaction tr = this.transactions.get(i);
+        
+        if (rollback) {
+            if (log.isDebugEnabled()) {
+                log.debug("Transaction real rollback: group={}, index={} ({})",
+                    this.id, tr.getIndex(), tr.getDescriptor());
+            }
+            
+            return tr.realRollbackAsync()
+                .handle((v, e) -> {
+                    if (e != null) {
+                        log.warn("Unable to rollback (will continue rolling back rest of transaction group): {}",
+                            ServiceTransactionFutures.unwrap(e).getMessage());
+                    }
+                    return true;
+                })
+                .thenCompose(v -> this.realCommitAsync(i - 1, true));
+        }
+        
+        if (log.isDebugEnabled()) {
+            log.debug("Transaction real commit: group={}, index={} ({})",
+                this.id, tr.getIndex(), tr.getDescriptor());
+        }
+        
+        return tr.realCommitAsync()
+            .handle((v, e) -> {
+                if (e != null) {
+                    log.warn("Unable to commit (will rollback rest of transaction group): {}",
+                        ServiceTransactionFutures.unwrap(e).getMessage());
+                    return true;
+                }
+                return false;
+            })
+            .thenCompose(failed -> this.realCommitAsync(i - 1, failed));
+    }
+    
+    private CompletableFuture<Void> realRollbackAsync(int i) {
+        if (i < 0) {
+            return ServiceTransactionFutures.completed();
+        }
+        
+        final ServiceTransaction tr = this.transactions.get(i);
+        
+        if (log.isDebugEnabled()) {
+            log.debug("Transaction real rollback: group={}, index={} ({})",
+                this.id, tr.getIndex(), tr.getDescriptor());
+        }
+        
+        return tr.realRollbackAsync()
+            .handle((v, e) -> {
+                if (e != null) {
+                    log.warn("Unable to rollback (will continue rolling back rest of transaction group): {}",
+                        ServiceTransactionFutures.unwrap(e).getMessage());
+                }
+                return null;
+            })
+            .thenCompose(v -> this.realRollbackAsync(i - 1));
+    }
+    
+    private boolean isParallelCommit() {
+        if (this.parallelCommitExecutor == null) {
+            return false;
+        }
+        
+        // one real resource (plus nested noops) commits faster inline than via a thread hop
+        int resources = 0;
+        for (int i = 0; i < this.transactions.size(); i++) {
+            if (hasResource(this.transactions.get(i).getAdapter()) && ++resources > 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    static private boolean hasResource(ServiceTransactionAdapter adapter) {
+        // adapters without a resource of their own (or not acquired) have nothing to commit
+        return adapter.getClass() != ServiceTransactionNoopAdapter.class
+            && !(adapter instanceof ServiceTransactionSavepointAdapter)
+            && !(adapter instanceof ServiceTransactionLazyAdapter && !((ServiceTransactionLazyAdapter<?>)adapter).isAcquired());
+    }
+    
+    /**
+     * If the group commits in two phases: a coordinator is set and more than
+     * one adapter has a resource of its own, all of which can be prepared.
+     */
+    private boolean isTwoPhaseCommit() {
+        if (this.coordinator == null) {
+            return false;
+        }
+        
+        int resources = 0;
+        for (int i = 0; i < this.transactions.size(); i++) {
+            final ServiceTransaction tr = this.transactions.get(i);
+            
+            // adapters without a resource of their own have nothing to prepare
+            if (!hasResource(tr.getAdapter())) {
+                continue;
+            }
+            
+            if (tr.getTwoPhaseAdapter() == null) {
+                return false;
+            }
+            
+            resources++;
+        }
+        
+        // a single resource is atomic on its own
+        return resources > 1;
+    }
+    
+    /**
+     * Prepares every resource, logs the commit decision, then commits them.
+     * Returns true if the group rolled back (a prepare or logging the decision
+     * failed); once the decision is logged the group is committed.
+     */
+    private boolean realCommitTwoPhase() {
+        boolean rollback = false;
+        
+        // phase one: prepare every resource (in the same reverse order a sequential commit would)
+        for (int i = this.transactions.size() - 1; i >= 0 && !rollback; i--) {
+            final ServiceTransaction tr = this.transactions.get(i);
+            if (tr.getTwoPhaseAdapter() == null) {
+                continue;
+            }
+            
+            if (log.isDebugEnabled()) {
+                log.debug("Transaction real prepare: group={}, index={} ({})",
+                    this.id, tr.getIndex(), tr.getDescriptor());
+            }
+            
+            try {
+                tr.realPrepare(this.coordinator.xid(this.id, i));
+            }
+            catch (Exception e) {
+                log.warn("Unable to prepare (will rollback transaction group): {}", e.getMessage());
+                rollback = true;
+            }
+        }
+        
+        if (!rollback) {
+            try {
+                this.coordinator.logCommit(this.id);
+            }
+            catch (Exception e) {
+                log.error("Unable to log commit decision (will rollback transaction group)", e);
+                this.transactions.get(0).fail(e);
+                rollback = true;
+            }
+        }
+        
+        if (rollback) {
+            for (int i = this.transactions.size() - 1; i >= 0; i--) {
+                final ServiceTransaction tr = this.transactions.get(i);
+                try {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Transaction real rollback: group={}, index={} ({})",
+                            this.id, tr.getIndex(), tr.getDescriptor());
+                    }
+                    
+                    tr.realRollback();
+                }
+                catch (Exception e) {
+                    log.warn("Unable to rollback (will continue rolling back rest of transaction group): {}", e.getMessage());
+                }
+            }
+            return true;
+        }
+        
+        // phase two: the decision is logged, so the group is committed even if
+        // a resource fails to commit now (its work stays prepared, in doubt,
+        // until the coordinator recovers it)
+        boolean inDoubt = false;
+        for (int i = this.transactions.size() - 1; i >= 0; i--) {
+            final ServiceTransaction tr = this.transactions.get(i);
+            try {
+                if (log.isDebugEnabled()) {
+                    log.debug("Transaction real commit: group={}, index={} ({})",
+                        this.id, tr.getIndex(), tr.getDescriptor());
+                }
+                
+                tr.realCommitPrepared();
+            }
+            catch (Exception e) {
+                log.error("Unable to commit prepared transaction (in doubt until recovered): group={}, index={}: {}",
+                    this.id, tr.getIndex(), e.getMessage());
+                inDoubt = true;
+            }
+        }
+        
+        if (inDoubt) {
+            // recover() may now commit it (it skips decisions still committing)
+            this.coordinator.markInDoubt(this.id);
+        } else {
+            try {
+                this.coordinator.logEnd(this.id);
+            }
+            catch (Exception e) {
+                log.warn("Unable to log end of commit decision (will be ended by recovery): {}", e.getMessage());
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Starts every real commit at once. Completes with true if any commit
+     * failed (and the rest were rolled back).
+     */
+    private CompletableFuture<Boolean> realCommitParallel(Executor executor) {
+        final AtomicBoolean failed = new AtomicBoolean();
+        final CompletableFuture<?>[] futures = new CompletableFuture<?>[this.transactions.size()];
+        
+        // start in the same (reverse) order a sequential commit would
+        for (int i = this.transactions.size() - 1; i >= 0; i--) {
+            final ServiceTransaction tr = this.transactions.get(i);
+            final ServiceTransactionAdapter adapter = tr.getAdapter();
+            
+            // noop & async adapters do not block, nothing is gained by hopping threads
+            // and savepoints must be released in order on the connection they share
+            if (adapter.getClass() == ServiceTransactionNoopAdapter.class || adapter instanceof ServiceTransactionAsyncAdapter
+                    || adapter instanceof ServiceTransactionSavepointAdapter) {
+                futures[i] = this.realCommitOrRollback(tr, failed);
+            }
+            else {
+                try {
+                    futures[i] = CompletableFuture
+                        .supplyAsync(() -> this.realCommitOrRollback(tr, failed), executor)
+                        .thenCompose(f -> f);
+                }
+                catch (RejectedExecutionException e) {
+                    log.warn("Parallel commit rejected by executor (will commit inline): {}", e.getMessage());
+                    futures[i] = this.realCommitOrRollback(tr, failed);
+                }
+            }
+        }
+        
+        return CompletableFuture.allOf(futures)
+            .handle((v, e) -> failed.get());
+    }
+    
+    private CompletableFuture<Void> realCommitOrRollback(ServiceTransaction tr, AtomicBoolean failed) {
+        if (failed.get()) {
+            if (log.isDebugEnabled()) {
+                log.debug("Transaction real rollback: group={}, index={} ({})",
+                    this.id, tr.getIndex(), tr.getDescriptor());
+            }
+            
+            return tr.realRollbackAsync()
+                .handle((v, e) -> {
+                    if (e != null) {
+                        log.warn("Unable to rollback (will continue rolling back rest of transaction group): {}",
+                            ServiceTransactionFutures.unwrap(e).getMessage());
+                    }
+                    return null;
+                });
+        }
+        
+        if (log.isDebugEnabled()) {
+            log.debug("Transaction real commit: group={}, index={} ({})",
+                this.id, tr.getIndex(), tr.getDescriptor());
+        }
+        
+        return tr.realCommitAsync()
+            .handle((v, e) -> {
+                if (e != null) {
+                    log.warn("Unable to commit (will rollback rest of transaction group): {}",
+                        ServiceTransactionFutures.unwrap(e).getMessage());
+                    failed.set(true);
+                }
+                return null;
+            });
+    }
+    
+}
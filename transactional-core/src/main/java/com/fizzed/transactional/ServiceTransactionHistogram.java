@@ -0,0 +1,132 @@
+package com.fizzed.transactional;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative long values (e.g. nanoseconds) with
+ * log-linear buckets: values below 16 are exact and every power of 2 above
+ * that is split into 16 buckets, so percentiles are accurate to within ~6%.
+ * Recording is a few atomic increments and never allocates.
+ */
+public class ServiceTransactionHistogram {
+    
+    static private final int SUB_BITS = 4;
+    static private final int SUB_COUNT = 1 << SUB_BITS;
+    static private final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+    
+    private final AtomicLongArray counts;
+    private final LongAdder count;
+    private final LongAdder sum;
+    private final AtomicLong max;
+
+    public ServiceTransactionHistogram() {
+        this.counts = new AtomicLongArray(BUCKETS);
+        this.count = new LongAdder();
+        this.sum = new LongAdder();
+        this.max = new AtomicLong();
+    }
+    
+    static int index(long value) {
+        if (value < SUB_COUNT) {
+            return (int)value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int sub = (int)(value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+    
+    static long lowerBound(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        final int exponent = (index / SUB_COUNT) + SUB_BITS - 1;
+        final long sub = index % SUB_COUNT;
+        return (1L << exponent) | (sub << (exponent - SUB_BITS));
+    }
+    
+    static long upperBound(int index) {
+        return index + 1 < BUCKETS ? lowerBound(index + 1) - 1 : Long.MAX_VALUE;
+    }
+    
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        
+        this.counts.incrementAndGet(index(value));
+        this.count.increment();
+        this.sum.add(value);
+        
+        long current = this.max.get();
+        while (value > current && !this.max.compareAndSet(current, value)) {
+            current = this.max.get();
+        }
+    }
+    
+    public long getCount() {
+        return this.count.sum();
+    }
+    
+    public long getMax() {
+        return this.max.get();
+    }
+    
+    public double getMean() {
+        final long n = this.count.sum();
+        return n > 0 ? (double)this.sum.sum() / n : 0.0d;
+    }
+    
+    /**
+     * Gets the value at or below which the given fraction of recorded values
+     * fall (rounded up to the top of its bucket, but never above the max).
+     * 
+     * @param fraction between 0 and 1 (e.g. 0.99 for p99)
+     * @return the value or 0 if nothing was recorded
+     */
+    public long getPercentile(double fraction) {
+        if (fraction < 0.0d || fraction > 1.0d) {
+            throw new IllegalArgumentException("fraction must be between 0 and 1");
+        }
+        
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += this.counts.get(i);
+        }
+        
+        if (total == 0) {
+            return 0L;
+        }
+        
+        final long rank = Math.max(1L, (long)Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), this.max.get());
+            }
+        }
+        
+        return this.max.get();
+    }
+    
+    public long getP50() {
+        return this.getPercentile(0.50d);
+    }
+    
+    public long getP99() {
+        return this.getPercentile(0.99d);
+    }
+    
+    public long getP999() {
+        return this.getPercentile(0.999d);
+    }
+    
+    @Override
+    public String toString() {
+        return "count=" + this.getCount() + ", p50=" + this.getP50() + ", p99=" + this.getP99()
+            + ", p999=" + this.getP999() + ", max=" + this.getMax();
+    }
+    
+}
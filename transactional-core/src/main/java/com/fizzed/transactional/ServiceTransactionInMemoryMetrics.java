@@ -0,0 +1,166 @@
+package com.fizzed.transactional;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps lock-free histograms and counters in memory, per descriptor and for
+ * the groups overall.
+ * 
+ * <pre>
+ * ServiceTransactionInMemoryMetrics metrics = new ServiceTransactionInMemoryMetrics();
+ * ServiceTransactions.setMetrics(metrics);
+ * ...
+ * metrics.getDescriptor("UserService.update").getLatency().getP99();
+ * </pre>
+ */
+public class ServiceTransactionInMemoryMetrics implements ServiceTransactionMetrics {
+    
+    static public class Descriptor {
+        
+        private final ServiceTransactionHistogram latency;
+        private final LongAdder committed;
+        private final LongAdder rolledBack;
+        private final LongAdder failed;
+
+        public Descriptor() {
+            this.latency = new ServiceTransactionHistogram();
+            this.committed = new LongAdder();
+            this.rolledBack = new LongAdder();
+            this.failed = new LongAdder();
+        }
+
+        /**
+         * Nanoseconds from begin to the group completing.
+         * 
+         * @return the histogram
+         */
+        public ServiceTransactionHistogram getLatency() {
+            return latency;
+        }
+
+        public long getCommitted() {
+            return committed.sum();
+        }
+
+        public long getRolledBack() {
+            return rolledBack.sum();
+        }
+
+        public long getFailed() {
+            return failed.sum();
+        }
+        
+    }
+    
+    private final ConcurrentMap<String,Descriptor> descriptors;
+    private final ServiceTransactionHistogram groupLatency;
+    private final ServiceTransactionHistogram depth;
+    private final ServiceTransactionHistogram listenerLatency;
+    private final LongAdder groupsCommitted;
+    private final LongAdder groupsRolledBack;
+
+    public ServiceTransactionInMemoryMetrics() {
+        this.descriptors = new ConcurrentHashMap<>();
+        this.groupLatency = new ServiceTransactionHistogram();
+        this.depth = new ServiceTransactionHistogram();
+        this.listenerLatency = new ServiceTransactionHistogram();
+        this.groupsCommitted = new LongAdder();
+        this.groupsRolledBack = new LongAdder();
+    }
+    
+    @Override
+    public void recordTransaction(String descriptor, long nanos, Outcome outcome) {
+        final String key = descriptor != null ? descriptor : "";
+        
+        // a plain get does not lock, unlike computeIfAbsent on java 8
+        Descriptor d = this.descriptors.get(key);
+        if (d == null) {
+            d = this.descriptors.computeIfAbsent(key, k -> new Descriptor());
+        }
+        
+        d.latency.record(nanos);
+        
+        switch (outcome) {
+            case COMMITTED:
+                d.committed.increment();
+                break;
+            case ROLLED_BACK:
+                d.rolledBack.increment();
+                break;
+            case FAILED:
+            default:
+                d.failed.increment();
+                break;
+        }
+    }
+
+    @Override
+    public void recordGroup(int depth, long nanos, boolean success) {
+        this.depth.record(depth);
+        this.groupLatency.record(nanos);
+        if (success) {
+            this.groupsCommitted.increment();
+        } else {
+            this.groupsRolledBack.increment();
+        }
+    }
+
+    @Override
+    public void recordListeners(int count, long nanos) {
+        this.listenerLatency.record(nanos);
+    }
+    
+    public Set<String> getDescriptors() {
+        return Collections.unmodifiableSet(this.descriptors.keySet());
+    }
+    
+    /**
+     * Gets the metrics of a descriptor.
+     * 
+     * @param descriptor the descriptor
+     * @return the metrics or null if nothing was recorded for it
+     */
+    public Descriptor getDescriptor(String descriptor) {
+        return this.descriptors.get(descriptor);
+    }
+
+    /**
+     * Nanoseconds from a group starting to completing.
+     * 
+     * @return the histogram
+     */
+    public ServiceTransactionHistogram getGroupLatency() {
+        return groupLatency;
+    }
+
+    /**
+     * The number of transactions per group.
+     * 
+     * @return the histogram
+     */
+    public ServiceTransactionHistogram getDepth() {
+        return depth;
+    }
+
+    /**
+     * Nanoseconds all the listeners of a group took to run.
+     * 
+     * @return the histogram
+     */
+    public ServiceTransactionHistogram getListenerLatency() {
+        return listenerLatency;
+    }
+
+    public long getGroupsCommitted() {
+        return groupsCommitted.sum();
+    }
+
+    public long getGroupsRolledBack() {
+        return groupsRolledBack.sum();
+    }
+    
+}
@@ -0,0 +1,221 @@
+package com.fizzed.transactional;
+
+import java.util.BitSet;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializes work on the same key (e.g. an entity id) within this JVM, so
+ * writers of a hot row queue up here rather than collide in the database.
+ * Keys are hashed onto a fixed number of stripes, so unrelated keys only
+ * wait on each other if they share a stripe. A lock taken for a group is
+ * held until the group completes (on whatever thread completes it), and
+ * taking a stripe the group already holds does not wait. Locks are always
+ * taken with a timeout, which also breaks deadlocks between groups that lock
+ * several keys in different orders.
+ * 
+ * <pre>
+ * ServiceTransactionKeyLocks locks = new ServiceTransactionKeyLocks(256, 5, TimeUnit.SECONDS);
+ * 
+ * try (ServiceTransaction tx = ServiceTransactions.begin("UserService.update", supplier,
+ *         new ServiceTransactionOptions().idempotency("db").lock(locks, userId))) {
+ *     ...
+ * }
+ * </pre>
+ */
+public class ServiceTransactionKeyLocks {
+    
+    private final Semaphore[] stripes;
+    private final int mask;
+    private final long timeoutNanos;
+    private final ConcurrentMap<ServiceTransactionGroup,Holder> holders;
+
+    /**
+     * @param stripes the number of stripes (rounded up to a power of 2)
+     * @param timeout the default time to wait for a lock
+     * @param unit the unit of the timeout
+     */
+    public ServiceTransactionKeyLocks(int stripes, long timeout, TimeUnit unit) {
+        Objects.requireNonNull(unit, "unit was null");
+        
+        if (stripes <= 0 || stripes > (1 << 30)) {
+            throw new IllegalArgumentException("stripes must be > 0 and <= 2^30");
+        }
+        
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout must be >= 0");
+        }
+        
+        final int size = stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        
+        this.stripes = new Semaphore[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new Semaphore(1);
+        }
+        this.mask = size - 1;
+        this.timeoutNanos = unit.toNanos(timeout);
+        this.holders = new ConcurrentHashMap<>();
+    }
+    
+    public int getStripes() {
+        return this.stripes.length;
+    }
+
+    public long getTimeoutNanos() {
+        return timeoutNanos;
+    }
+    
+    int stripe(Object key) {
+        Objects.requireNonNull(key, "key was null");
+        
+        // spread the high bits so keys with similar hash codes do not share a stripe
+        final int h = key.hashCode();
+        return (h ^ (h >>> 16)) & this.mask;
+    }
+    
+    /**
+     * If the stripe of the key is held right now (by anyone).
+     * 
+     * @param key the key
+     * @return true if locked
+     */
+    public boolean isLocked(Object key) {
+        return this.stripes[this.stripe(key)].availablePermits() == 0;
+    }
+    
+    public void lock(ServiceTransactionGroup group, Object key) {
+        this.lock(group, key, this.timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * Locks the key until the group completes. Any thread of the group (e.g.
+     * its parallel tasks) may lock keys for it: children locking the same
+     * stripe take it once for the group rather than wait on each other.
+     * 
+     * @param group the group
+     * @param key the key
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @throws ServiceTransactionLockTimeoutException if the lock was not
+     *      acquired in time
+     */
+    public void lock(ServiceTransactionGroup group, Object key, long timeout, TimeUnit unit) {
+        Objects.requireNonNull(group, "group was null");
+        
+        if (group.isCompleted()) {
+            throw new IllegalStateException("Unable to lock key for group " + group.getId() + " (completed)");
+        }
+        
+        final int stripe = this.stripe(key);
+        
+        Holder holder = this.holders.get(group);
+        if (holder == null) {
+            // parallel tasks of the group may race to create it, only one wins
+            final Holder created = new Holder(group);
+            holder = this.holders.putIfAbsent(group, created);
+            if (holder == null) {
+                holder = created;
+                group.addCompletionListener(created);
+            }
+        }
+        
+        // one child of the group locks at a time, so a stripe is taken once
+        // for the group and never released before it is recorded
+        synchronized (holder) {
+            if (holder.released) {
+                throw new IllegalStateException("Unable to lock key for group " + group.getId() + " (completed)");
+            }
+            
+            if (holder.stripes.get(stripe)) {
+                return;
+            }
+            
+            this.acquire(stripe, key, timeout, unit);
+            
+            holder.stripes.set(stripe);
+        }
+    }
+    
+    public <T> T call(Object key, Callable<T> callable) throws Exception {
+        return this.call(key, this.timeoutNanos, TimeUnit.NANOSECONDS, callable);
+    }
+    
+    /**
+     * Runs the callable while holding the lock of the key.
+     * 
+     * @param <T> the type of value
+     * @param key the key
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @param callable the callable
+     * @return the value of the callable
+     * @throws Exception the exception of the callable
+     */
+    public <T> T call(Object key, long timeout, TimeUnit unit, Callable<T> callable) throws Exception {
+        final int stripe = this.stripe(key);
+        
+        this.acquire(stripe, key, timeout, unit);
+        try {
+            return callable.call();
+        }
+        finally {
+            this.stripes[stripe].release();
+        }
+    }
+    
+    /**
+     * Releases every lock held by the group now, rather than once it completes.
+     */
+    void release(ServiceTransactionGroup group) {
+        final Holder holder = this.holders.get(group);
+        if (holder != null) {
+            holder.onComplete(false);
+        }
+    }
+    
+    private void acquire(int stripe, Object key, long timeout, TimeUnit unit) {
+        try {
+            if (!this.stripes[stripe].tryAcquire(timeout, unit)) {
+                throw new ServiceTransactionLockTimeoutException("Timeout waiting "
+                    + unit.toMillis(timeout) + " ms to lock key " + key);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServiceTransactionLockTimeoutException("Interrupted waiting to lock key " + key);
+        }
+    }
+    
+    private class Holder implements ServiceTransactionListener {
+        
+        private final ServiceTransactionGroup group;
+        private final BitSet stripes;       // guarded by this
+        private boolean released;           // guarded by this
+
+        public Holder(ServiceTransactionGroup group) {
+            this.group = group;
+            this.stripes = new BitSet();
+        }
+
+        @Override
+        public synchronized void onComplete(boolean success) {
+            // defend against multiple calls
+            if (this.released) {
+                return;
+            }
+            this.released = true;
+            
+            holders.remove(this.group, this);
+            
+            for (int i = this.stripes.nextSetBit(0); i >= 0; i = this.stripes.nextSetBit(i + 1)) {
+                ServiceTransactionKeyLocks.this.stripes[i].release();
+            }
+        }
+        
+    }
+    
+}
@@ -0,0 +1,111 @@
+package com.fizzed.transactional;
+
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * Defers creating the real adapter (e.g. checking out a connection and
+ * beginning a database transaction) until get() is first called. If it never
+ * is, commit and rollback do nothing.
+ * 
+ * @param <A> the type of the real adapter
+ */
+public class ServiceTransactionLazyAdapter<A extends ServiceTransactionAdapter> implements ServiceTransactionAdapter {
+
+    private final Supplier<A> supplier;
+    private A adapter;
+    private boolean readOnly;
+    private boolean deadline;
+    private long deadlineNanos;
+
+    public ServiceTransactionLazyAdapter(Supplier<A> supplier) {
+        Objects.requireNonNull(supplier, "supplier was null");
+        this.supplier = supplier;
+    }
+    
+    /**
+     * Gets the real adapter, creating it if this is the first use.
+     * 
+     * @return the real adapter
+     */
+    public A get() {
+        if (this.adapter == null) {
+            final A a = this.supplier.get();
+            try {
+                if (this.readOnly) {
+                    a.markReadOnly();
+                }
+                if (this.deadline) {
+                    a.applyDeadline(this.deadlineNanos);
+                }
+            }
+            catch (RuntimeException e) {
+                // not yet held by this adapter, so its rollback would not release it
+                try {
+                    a.rollback();
+                }
+                catch (RuntimeException re) {
+                    e.addSuppressed(re);
+                }
+                throw e;
+            }
+            this.adapter = a;
+        }
+        return this.adapter;
+    }
+    
+    /**
+     * If the real adapter was ever created.
+     * 
+     * @return true if created
+     */
+    public boolean isAcquired() {
+        return this.adapter != null;
+    }
+    
+    @Override
+    public boolean isReadOnly() {
+        return this.adapter != null ? this.adapter.isReadOnly() : this.readOnly;
+    }
+    
+    @Override
+    public void markReadOnly() {
+        // applied once the real adapter is created
+        this.readOnly = true;
+        if (this.adapter != null) {
+            this.adapter.markReadOnly();
+        }
+    }
+    
+    @Override
+    public void applyDeadline(long deadlineNanos) {
+        // applied once the real adapter is created
+        this.deadline = true;
+        this.deadlineNanos = deadlineNanos;
+        if (this.adapter != null) {
+            this.adapter.applyDeadline(deadlineNanos);
+        }
+    }
+    
+    @Override
+    public void detach() {
+        if (this.adapter != null) {
+            this.adapter.detach();
+        }
+    }
+    
+    @Override
+    public void rollback() {
+        if (this.adapter != null) {
+            this.adapter.rollback();
+        }
+    }
+
+    @Override
+    public void commit() {
+        if (this.adapter != null) {
+            this.adapter.commit();
+        }
+    }
+    
+}
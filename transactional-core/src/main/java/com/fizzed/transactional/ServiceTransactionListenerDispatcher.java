@@ -0,0 +1,284 @@
+package com.fizzed.transactional;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the listeners of completed groups on a bounded pool of threads rather
+ * than on the thread completing the group. The listeners of a group are run
+ * together, in the order they were added.
+ * 
+ * <pre>
+ * ServiceTransactions.setListenerDispatcher(
+ *     new ServiceTransactionListenerDispatcher(2, 10000, Overflow.INLINE));
+ * </pre>
+ */
+public class ServiceTransactionListenerDispatcher implements AutoCloseable {
+    static private final Logger log = LoggerFactory.getLogger(ServiceTransactionListenerDispatcher.class);
+    static private final AtomicInteger INSTANCES = new AtomicInteger();
+    
+    /**
+     * What to do when the queue is full.
+     */
+    static public enum Overflow {
+        /** wait for room in the queue */
+        BLOCK,
+        /** discard the listeners (and count them as dropped) */
+        DROP,
+        /** run the listeners on the completing thread */
+        INLINE
+    }
+    
+    private final ThreadPoolExecutor executor;
+    private final Overflow overflow;
+    private final LongAdder dispatched;
+    private final LongAdder dropped;
+    private final LongAdder inlined;
+    private final LongAdder lagNanos;
+    private final AtomicLong maxLagNanos;
+    
+    public ServiceTransactionListenerDispatcher(int threads, int capacity, Overflow overflow) {
+        Objects.requireNonNull(overflow, "overflow was null");
+        
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be > 0");
+        }
+        
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be > 0");
+        }
+        
+        final int instance = INSTANCES.incrementAndGet();
+        final AtomicInteger counter = new AtomicInteger();
+        final ThreadFactory threadFactory = (r) -> {
+            final Thread thread = new Thread(r, "transaction-listener-" + instance + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        
+        this.overflow = overflow;
+        this.dispatched = new LongAdder();
+        this.dropped = new LongAdder();
+        this.inlined = new LongAdder();
+        this.lagNanos = new LongAdder();
+        this.maxLagNanos = new AtomicLong();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(capacity), threadFactory, this.rejectedHandler());
+    }
+    
+    private RejectedExecutionHandler rejectedHandler() {
+        return (task, executor) -> {
+            final Dispatch dispatch = (Dispatch)task;
+            
+            if (executor.isShutdown()) {
+                log.warn("Listener dispatcher is shutdown (will run listeners inline)");
+                this.inlined.increment();
+                dispatch.runInline();
+                return;
+            }
+            
+            switch (this.overflow) {
+                case BLOCK:
+                    try {
+                        executor.getQueue().put(dispatch);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        log.warn("Interrupted waiting to queue listeners (will run them inline)");
+                        this.inlined.increment();
+                        dispatch.runInline();
+                    }
+                    break;
+                case DROP:
+                    log.warn("Listener queue full (dropped {} listeners)", dispatch.listeners.length);
+                    this.dropped.increment();
+                    break;
+                case INLINE:
+                default:
+                    this.inlined.increment();
+                    dispatch.runInline();
+                    break;
+            }
+        };
+    }
+
+    public Overflow getOverflow() {
+        return overflow;
+    }
+    
+    /**
+     * Number of groups whose listeners are waiting to run.
+     * 
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        return this.executor.getQueue().size();
+    }
+    
+    /**
+     * Number of groups whose listeners were run on the dispatcher threads.
+     * 
+     * @return the count
+     */
+    public long getDispatched() {
+        return this.dispatched.sum();
+    }
+    
+    /**
+     * Number of groups whose listeners were dropped because the queue was full.
+     * 
+     * @return the count
+     */
+    public long getDropped() {
+        return this.dropped.sum();
+    }
+    
+    /**
+     * Number of groups whose listeners were run inline because the queue was
+     * full (or the dispatcher was shutdown).
+     * 
+     * @return the count
+     */
+    public long getInlined() {
+        return this.inlined.sum();
+    }
+    
+    /**
+     * Average nanoseconds listeners waited in the queue before they ran.
+     * 
+     * @return the average dispatch lag
+     */
+    public long getAverageLagNanos() {
+        final long count = this.dispatched.sum();
+        return count > 0 ? this.lagNanos.sum() / count : 0L;
+    }
+    
+    /**
+     * Maximum nanoseconds listeners waited in the queue before they ran.
+     * 
+     * @return the maximum dispatch lag
+     */
+    public long getMaxLagNanos() {
+        return this.maxLagNanos.get();
+    }
+    
+    void dispatch(List<ServiceTransactionListener> listeners, boolean success, ServiceTransactionMetrics metrics,
+            ServiceTransactionTracer tracer, long groupId) {
+        
+        final ServiceTransactionListener[] snapshot = listeners.toArray(new ServiceTransactionListener[listeners.size()]);
+        this.executor.execute(new Dispatch(snapshot, success, metrics, tracer, groupId, System.nanoTime()));
+    }
+    
+    /**
+     * Stops accepting listeners and waits for the queued ones to run.
+     * 
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return true if all queued listeners ran
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        this.executor.shutdown();
+        return this.executor.awaitTermination(timeout, unit);
+    }
+    
+    @Override
+    public void close() {
+        this.executor.shutdown();
+    }
+    
+    static void run(ServiceTransactionListener listener, boolean success) {
+        try {
+            listener.onComplete(success);
+        }
+        catch (Throwable t) {
+            log.error("Unhandled throwable in transaction listener.onComplete!", t);
+        }
+    }
+    
+    static Object listenersStarted(ServiceTransactionTracer tracer, long groupId, int count) {
+        if (tracer != null) {
+            try {
+                return tracer.listenersStarted(groupId, count);
+            }
+            catch (Throwable t) {
+                log.error("Unhandled throwable in transaction tracer!", t);
+            }
+        }
+        return null;
+    }
+    
+    static void listenersEnded(ServiceTransactionTracer tracer, Object span) {
+        if (tracer != null) {
+            try {
+                tracer.listenersEnded(span);
+            }
+            catch (Throwable t) {
+                log.error("Unhandled throwable in transaction tracer!", t);
+            }
+        }
+    }
+    
+    private class Dispatch implements Runnable {
+        
+        private final ServiceTransactionListener[] listeners;
+        private final boolean success;
+        private final ServiceTransactionMetrics metrics;
+        private final ServiceTransactionTracer tracer;
+        private final long groupId;
+        private final long submittedNanos;
+
+        public Dispatch(ServiceTransactionListener[] listeners, boolean success, ServiceTransactionMetrics metrics,
+                ServiceTransactionTracer tracer, long groupId, long submittedNanos) {
+            
+            this.listeners = listeners;
+            this.success = success;
+            this.metrics = metrics;
+            this.tracer = tracer;
+            this.groupId = groupId;
+            this.submittedNanos = submittedNanos;
+        }
+        
+        @Override
+        public void run() {
+            final long lag = System.nanoTime() - this.submittedNanos;
+            dispatched.increment();
+            lagNanos.add(lag);
+            maxLagNanos.accumulateAndGet(lag, Math::max);
+            
+            this.runInline();
+        }
+        
+        public void runInline() {
+            final long startNanos = System.nanoTime();
+            final Object span = listenersStarted(this.tracer, this.groupId, this.listeners.length);
+            
+            for (ServiceTransactionListener listener : this.listeners) {
+                ServiceTransactionListenerDispatcher.run(listener, this.success);
+            }
+            
+            listenersEnded(this.tracer, span);
+            
+            if (this.metrics != null) {
+                try {
+                    this.metrics.recordListeners(this.listeners.length, System.nanoTime() - startNanos);
+                }
+                catch (Throwable t) {
+                    log.error("Unhandled throwable in transaction metrics!", t);
+                }
+            }
+        }
+        
+    }
+    
+}
@@ -0,0 +1,11 @@
+package com.fizzed.transactional;
+
+public class ServiceTransactionLockTimeoutException extends ServiceTransactionException {
+
+    private static final long serialVersionUID = 1L;
+    
+    public ServiceTransactionLockTimeoutException(String msg) {
+        super(msg);
+    }
+    
+}
@@ -0,0 +1,45 @@
+package com.fizzed.transactional;
+
+/**
+ * Receives measurements of completed groups. Called on the thread completing
+ * the group (or running its listeners), so implementations must be thread
+ * safe and should be cheap.
+ * 
+ * @see ServiceTransactionInMemoryMetrics
+ */
+public interface ServiceTransactionMetrics {
+
+    static public enum Outcome {
+        COMMITTED,
+        ROLLED_BACK,
+        /** the real commit or rollback of the transaction threw an exception */
+        FAILED
+    }
+    
+    /**
+     * A transaction of a group completed.
+     * 
+     * @param descriptor the descriptor of the transaction
+     * @param nanos from the transaction's begin to its group completing
+     * @param outcome how the transaction ended
+     */
+    void recordTransaction(String descriptor, long nanos, Outcome outcome);
+    
+    /**
+     * A group completed.
+     * 
+     * @param depth the number of transactions in the group
+     * @param nanos from the group starting to completing
+     * @param success if the group was successfully committed
+     */
+    void recordGroup(int depth, long nanos, boolean success);
+    
+    /**
+     * The listeners of a group ran.
+     * 
+     * @param count the number of listeners
+     * @param nanos how long all the listeners took
+     */
+    void recordListeners(int count, long nanos);
+    
+}
@@ -0,0 +1,117 @@
+package com.fizzed.transactional;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How ServiceTransactions.begin begins a transaction, for anything beyond a
+ * descriptor and an idempotency. Options combine freely (e.g. a read-only
+ * begin with a timeout that also locks a key).
+ * 
+ * <pre>
+ * ServiceTransactionOptions options = new ServiceTransactionOptions()
+ *     .idempotency("db")
+ *     .readOnly(true)
+ *     .timeout(2, TimeUnit.SECONDS)
+ *     .lock(locks, userId);
+ * 
+ * try (ServiceTransaction tx = ServiceTransactions.begin("UserService.get", supplier, options)) {
+ *     ...
+ * }
+ * </pre>
+ */
+public class ServiceTransactionOptions {
+    
+    private String idempotency;
+    private boolean readOnly;
+    private boolean timeout;
+    private long timeoutNanos;
+    private ServiceTransactionKeyLocks locks;
+    private Object key;
+    
+    public String getIdempotency() {
+        return idempotency;
+    }
+    
+    /**
+     * @param idempotency the idempotency or null (the default)
+     * @return these options
+     */
+    public ServiceTransactionOptions idempotency(String idempotency) {
+        this.idempotency = idempotency;
+        return this;
+    }
+    
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+    
+    /**
+     * Begins a transaction that promises not to write. A read-only begin may
+     * join a series of the same idempotency that is not read-only, but a
+     * begin that is not read-only may not join a read-only one.
+     * 
+     * @param readOnly true if the transaction will not write
+     * @return these options
+     */
+    public ServiceTransactionOptions readOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+        return this;
+    }
+    
+    public boolean hasTimeout() {
+        return timeout;
+    }
+    
+    public long getTimeoutNanos() {
+        return timeoutNanos;
+    }
+    
+    /**
+     * Begins with a deadline. The first begin of a group sets the deadline of
+     * the whole group (its budget includes the time to acquire its resource)
+     * and nested begins inherit what is left of it. A nested begin with a
+     * timeout only tightens it for its own scope (including the resource it
+     * acquires): once that nested transaction commits or rolls back, the
+     * deadline of the group applies again (a nested timeout never extends
+     * it). Once a deadline passes, nested begins, the commit of a nested scope
+     * and the real commit are refused with a ServiceTransactionTimeoutException
+     * and the group is rolled back.
+     * 
+     * @param timeout the time left from now
+     * @param unit the unit of the timeout
+     * @return these options
+     * @see ServiceTransactionGroup#getRemainingNanos()
+     */
+    public ServiceTransactionOptions timeout(long timeout, TimeUnit unit) {
+        Objects.requireNonNull(unit, "unit was null");
+        this.timeoutNanos = unit.toNanos(timeout);
+        this.timeout = true;
+        return this;
+    }
+    
+    public ServiceTransactionKeyLocks getLocks() {
+        return locks;
+    }
+    
+    public Object getKey() {
+        return key;
+    }
+    
+    /**
+     * Locks the key before beginning (so no resource is held while waiting)
+     * and keeps it locked until the group completes.
+     * 
+     * @param locks the key locks
+     * @param key the key to lock (e.g. an entity id)
+     * @return these options
+     * @see ServiceTransactionKeyLocks
+     */
+    public ServiceTransactionOptions lock(ServiceTransactionKeyLocks locks, Object key) {
+        Objects.requireNonNull(locks, "locks was null");
+        this.locks = locks;
+        this.key = key;
+        return this;
+    }
+
+}
@@ -0,0 +1,107 @@
+package com.fizzed.transactional;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The groups currently running, so tools (e.g. a ServiceTransactionWatchdog)
+ * can see what is open, for how long and on which thread. A group registers
+ * when it begins and unregisters when it completes.
+ * 
+ * It is not lock-free: groups are kept in a ConcurrentHashMap, whose inserts
+ * and removes briefly lock one bin of the map (and rarely contend), while its
+ * reads never block. Copying the descriptors of a running group takes the
+ * lock of that group for the length of the copy.
+ * 
+ * <pre>
+ * ServiceTransactionRegistry registry = new ServiceTransactionRegistry();
+ * ServiceTransactions.setRegistry(registry);
+ * </pre>
+ */
+public class ServiceTransactionRegistry {
+    
+    static public class Entry {
+        
+        private final ServiceTransactionGroup group;
+        private final long groupId;
+        private final Thread thread;
+        private final long startNanos;
+        volatile boolean reported;
+        
+        public Entry(ServiceTransactionGroup group, Thread thread) {
+            this.group = group;
+            this.groupId = group.getId();
+            this.thread = thread;
+            this.startNanos = System.nanoTime();
+        }
+        
+        public long getGroupId() {
+            return groupId;
+        }
+        
+        /**
+         * The thread the group began on.
+         * 
+         * @return the thread
+         */
+        public Thread getThread() {
+            return thread;
+        }
+        
+        public long getStartNanos() {
+            return startNanos;
+        }
+        
+        public long getAgeNanos() {
+            return System.nanoTime() - this.startNanos;
+        }
+        
+        /**
+         * Best-effort copy of the descriptors of the transactions of the
+         * group, outermost first (the group may be changing while copied).
+         * 
+         * @return the descriptors
+         */
+        public List<String> getDescriptors() {
+            return this.group.descriptors();
+        }
+        
+    }
+    
+    private final ConcurrentMap<ServiceTransactionGroup,Entry> entries;
+    
+    public ServiceTransactionRegistry() {
+        this.entries = new ConcurrentHashMap<>();
+    }
+    
+    void register(ServiceTransactionGroup group) {
+        this.entries.put(group, new Entry(group, Thread.currentThread()));
+    }
+    
+    void unregister(ServiceTransactionGroup group) {
+        this.entries.remove(group);
+    }
+    
+    boolean contains(Entry entry) {
+        return this.entries.get(entry.group) == entry;
+    }
+    
+    public int size() {
+        return this.entries.size();
+    }
+    
+    /**
+     * Copies the entries of the running groups, oldest first.
+     * 
+     * @return the entries
+     */
+    public List<Entry> snapshot() {
+        final List<Entry> snapshot = new ArrayList<>(this.entries.values());
+        // nano times are only comparable by their difference
+        snapshot.sort((a, b) -> Long.signum(a.startNanos - b.startNanos));
+        return snapshot;
+    }
+    
+}
@@ -0,0 +1,11 @@
+package com.fizzed.transactional;
+
+/**
+ * An adapter for a nested (non-first) transaction whose rollback only undoes
+ * the work done within it (e.g. by rolling back to a savepoint), rather than
+ * dooming the whole group. The group can still commit once such a transaction
+ * is rolled back, and its real commit is then skipped.
+ */
+public interface ServiceTransactionSavepointAdapter extends ServiceTransactionAdapter {
+    
+}
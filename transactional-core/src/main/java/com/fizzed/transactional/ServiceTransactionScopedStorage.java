@@ -0,0 +1,98 @@
+package com.fizzed.transactional;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Binds a context only for the duration of a run (or call), similar to a
+ * ScopedValue. Nothing stays bound to the thread once the scope exits, which
+ * makes it a good fit for virtual threads, and the same context can be bound
+ * again on another thread to continue the group after a thread hop.
+ * 
+ * <pre>
+ * ServiceTransactionScopedStorage storage = new ServiceTransactionScopedStorage();
+ * ServiceTransactions.setStorage(storage);
+ * 
+ * storage.run(new ServiceTransactionContext(), () -&gt; {
+ *     ...ServiceTransactions.begin(...)
+ * });
+ * </pre>
+ */
+public class ServiceTransactionScopedStorage implements ServiceTransactionStorage {
+
+    private final ThreadLocal<ServiceTransactionContext> scope;
+
+    public ServiceTransactionScopedStorage() {
+        this.scope = new ThreadLocal<>();
+    }
+    
+    /**
+     * Gets the context bound to the current scope (e.g. to bind it again on
+     * another thread).
+     * 
+     * @return the context or null if not in a scope
+     */
+    public ServiceTransactionContext context() {
+        return this.scope.get();
+    }
+    
+    public void run(ServiceTransactionContext context, Runnable runnable) {
+        final ServiceTransactionContext previous = this.bind(context);
+        try {
+            runnable.run();
+        }
+        finally {
+            this.unbind(previous);
+        }
+    }
+    
+    public <T> T call(ServiceTransactionContext context, Callable<T> callable) throws Exception {
+        final ServiceTransactionContext previous = this.bind(context);
+        try {
+            return callable.call();
+        }
+        finally {
+            this.unbind(previous);
+        }
+    }
+    
+    private ServiceTransactionContext bind(ServiceTransactionContext context) {
+        if (context == null) {
+            throw new IllegalArgumentException("context was null");
+        }
+        final ServiceTransactionContext previous = this.scope.get();
+        this.scope.set(context);
+        return previous;
+    }
+    
+    private void unbind(ServiceTransactionContext previous) {
+        if (previous != null) {
+            this.scope.set(previous);
+        } else {
+            this.scope.remove();
+        }
+    }
+    
+    @Override
+    public ServiceTransactionGroup get() {
+        final ServiceTransactionContext context = this.scope.get();
+        return context != null ? context.get() : null;
+    }
+
+    @Override
+    public void set(ServiceTransactionGroup group) {
+        final ServiceTransactionContext context = this.scope.get();
+        if (context == null) {
+            throw new IllegalStateException("No transaction scope is bound (use run or call to bind one)");
+        }
+        context.set(group);
+    }
+
+    @Override
+    public void remove() {
+        final ServiceTransactionContext context = this.scope.get();
+        if (context != null) {
+            context.remove();
+        }
+    }
+    
+}
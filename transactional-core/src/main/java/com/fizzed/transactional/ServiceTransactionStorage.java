@@ -0,0 +1,24 @@
+package com.fizzed.transactional;
+
+/**
+ * Where the current (active) transaction group is kept between begins. The
+ * default binds the group to the current thread with a ThreadLocal.
+ * 
+ * @see ServiceTransactionThreadLocalStorage
+ * @see ServiceTransactionScopedStorage
+ * @see ServiceTransactionContext
+ */
+public interface ServiceTransactionStorage {
+
+    /**
+     * Gets the current group.
+     * 
+     * @return the current group or null if there is none
+     */
+    ServiceTransactionGroup get();
+
+    void set(ServiceTransactionGroup group);
+
+    void remove();
+    
+}
@@ -0,0 +1,29 @@
+package com.fizzed.transactional;
+
+/**
+ * Binds the current group to the current thread. This is the default storage.
+ */
+public class ServiceTransactionThreadLocalStorage implements ServiceTransactionStorage {
+
+    private final ThreadLocal<ServiceTransactionGroup> threadLocal;
+
+    public ServiceTransactionThreadLocalStorage() {
+        this.threadLocal = new ThreadLocal<>();
+    }
+    
+    @Override
+    public ServiceTransactionGroup get() {
+        return this.threadLocal.get();
+    }
+
+    @Override
+    public void set(ServiceTransactionGroup group) {
+        this.threadLocal.set(group);
+    }
+
+    @Override
+    public void remove() {
+        this.threadLocal.remove();
+    }
+    
+}
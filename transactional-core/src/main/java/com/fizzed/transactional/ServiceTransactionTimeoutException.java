@@ -0,0 +1,17 @@
+package com.fizzed.transactional;
+
+/**
+ * Thrown once the deadline of a transaction group passed, by a nested begin
+ * or by the commit of the group (which is then rolled back). Also thrown by
+ * the commit of a nested transaction that overran its own timeout (which is
+ * then rolled back, failing the group).
+ */
+public class ServiceTransactionTimeoutException extends ServiceTransactionException {
+    
+    private static final long serialVersionUID = 1L;
+    
+    public ServiceTransactionTimeoutException(String msg) {
+        super(msg);
+    }
+    
+}
@@ -0,0 +1,46 @@
+package com.fizzed.transactional;
+
+/**
+ * Receives the start and end of the timed parts of a group, so they can be
+ * exported as spans (e.g. to Java Flight Recorder). Each start method returns
+ * an opaque span (or null if the tracer is not interested right now) that is
+ * handed back to the matching end method. Calls for a group may come from
+ * more than one thread (e.g. async or parallel commits, dispatched
+ * listeners). Implementations must be thread safe and should be cheap when
+ * tracing is off.
+ */
+public interface ServiceTransactionTracer {
+    
+    Object groupStarted(long groupId, String descriptor);
+    
+    void groupCompleted(Object span, int depth, boolean success);
+    
+    /**
+     * A real commit (or rollback) of an adapter is starting.
+     * 
+     * @param groupId the group id
+     * @param index the index of the transaction in the group
+     * @param descriptor the descriptor of the transaction
+     * @param commit true if a commit, false if a rollback
+     * @return the span or null
+     */
+    Object realCompletionStarted(long groupId, int index, String descriptor, boolean commit);
+    
+    void realCompletionEnded(Object span, Throwable cause);
+    
+    Object listenersStarted(long groupId, int count);
+    
+    void listenersEnded(Object span);
+    
+    /**
+     * An optimistic operation conflicted.
+     * 
+     * @param message the name of the operation
+     * @param attempt the attempt that conflicted (starting at 1)
+     * @param attempts the attempts allowed
+     * @param conflict the conflict
+     * @param delayNanos the backoff before the next attempt (0 if none)
+     */
+    void optimisticConflict(String message, int attempt, int attempts, OptimisticExceptionClassifier.Conflict conflict, long delayNanos);
+    
+}
@@ -0,0 +1,20 @@
+package com.fizzed.transactional;
+
+/**
+ * An adapter whose resource can prepare (vote to commit) before it commits,
+ * so a group with more than one real resource can commit them atomically with
+ * a ServiceTransactionCoordinator. Once prepared, commit() must commit the
+ * prepared work and rollback() must roll it back. If the process dies in
+ * between, the resource must keep the prepared work under its xid until the
+ * coordinator recovers it (see ServiceTransactionTwoPhaseResource).
+ */
+public interface ServiceTransactionTwoPhaseAdapter extends ServiceTransactionAdapter {
+    
+    /**
+     * Prepares the work of this transaction so its commit can no longer fail.
+     * 
+     * @param xid the id the resource must keep the prepared work under
+     */
+    void prepare(String xid);
+    
+}
@@ -0,0 +1,23 @@
+package com.fizzed.transactional;
+
+import java.util.List;
+
+/**
+ * A resource (e.g. a database) that can list and complete work prepared by
+ * ServiceTransactionTwoPhaseAdapters that were never committed or rolled back,
+ * for ServiceTransactionCoordinator.recover.
+ */
+public interface ServiceTransactionTwoPhaseResource {
+    
+    /**
+     * Lists the xids of the work currently prepared on this resource.
+     * 
+     * @return the xids
+     */
+    List<String> recover();
+    
+    void commit(String xid);
+    
+    void rollback(String xid);
+    
+}
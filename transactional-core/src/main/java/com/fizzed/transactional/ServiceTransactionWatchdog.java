@@ -0,0 +1,188 @@
+package com.fizzed.transactional;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Flags groups in a registry that have been running longer than a threshold
+ * (and so likely hold a connection and row locks for too long). Each such
+ * group is reported once, with the descriptors of its transactions and the
+ * stack of the thread it began on, captured when flagged. By default reports
+ * are logged as warnings.
+ * 
+ * <pre>
+ * ServiceTransactionWatchdog watchdog = new ServiceTransactionWatchdog(registry, 5, TimeUnit.SECONDS);
+ * </pre>
+ */
+public class ServiceTransactionWatchdog implements AutoCloseable {
+    static private final Logger log = LoggerFactory.getLogger(ServiceTransactionWatchdog.class);
+    static private final AtomicInteger INSTANCES = new AtomicInteger();
+    
+    static public interface Listener {
+        
+        void onLongRunning(Report report);
+    
+    }
+    
+    static public class Report {
+        
+        private final long groupId;
+        private final String threadName;
+        private final long ageNanos;
+        private final List<String> descriptors;
+        private final StackTraceElement[] stackTrace;
+        
+        public Report(long groupId, String threadName, long ageNanos, List<String> descriptors, StackTraceElement[] stackTrace) {
+            this.groupId = groupId;
+            this.threadName = threadName;
+            this.ageNanos = ageNanos;
+            this.descriptors = descriptors;
+            this.stackTrace = stackTrace;
+        }
+        
+        public long getGroupId() {
+            return groupId;
+        }
+        
+        public String getThreadName() {
+            return threadName;
+        }
+        
+        public long getAgeNanos() {
+            return ageNanos;
+        }
+        
+        /**
+         * The descriptors of the transactions of the group, outermost first.
+         * 
+         * @return the descriptors
+         */
+        public List<String> getDescriptors() {
+            return descriptors;
+        }
+        
+        public StackTraceElement[] getStackTrace() {
+            return stackTrace;
+        }
+        
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("Transaction group ").append(this.groupId)
+                .append(" running for ").append(TimeUnit.NANOSECONDS.toMillis(this.ageNanos))
+                .append(" ms on thread ").append(this.threadName)
+                .append(" (").append(String.join(" > ", this.descriptors)).append(")");
+            for (StackTraceElement element : this.stackTrace) {
+                sb.append(System.lineSeparator()).append("\tat ").append(element);
+            }
+            return sb.toString();
+        }
+    
+    }
+    
+    private final ServiceTransactionRegistry registry;
+    private final long thresholdNanos;
+    private final long intervalMillis;
+    private final Listener listener;
+    private final Thread thread;
+    private final LongAdder reported;
+    private volatile boolean closed;
+    
+    public ServiceTransactionWatchdog(ServiceTransactionRegistry registry, long threshold, TimeUnit unit) {
+        // checked often enough to flag a group within a quarter of the threshold
+        this(registry, threshold, Math.max(10L, unit.toMillis(threshold) / 4), unit, (report) -> log.warn("{}", report));
+    }
+    
+    /**
+     * @param registry the registry of running groups
+     * @param threshold how long a group may run before it is reported
+     * @param intervalMillis how often the registry is checked
+     * @param unit the unit of the threshold
+     * @param listener the listener of the reports
+     */
+    public ServiceTransactionWatchdog(ServiceTransactionRegistry registry, long threshold, long intervalMillis, TimeUnit unit, Listener listener) {
+        Objects.requireNonNull(registry, "registry was null");
+        Objects.requireNonNull(unit, "unit was null");
+        Objects.requireNonNull(listener, "listener was null");
+        
+        if (threshold <= 0 || intervalMillis <= 0) {
+            throw new IllegalArgumentException("threshold and intervalMillis must be > 0");
+        }
+        
+        this.registry = registry;
+        this.thresholdNanos = unit.toNanos(threshold);
+        this.intervalMillis = intervalMillis;
+        this.listener = listener;
+        this.reported = new LongAdder();
+        this.thread = new Thread(this::loop, "transaction-watchdog-" + INSTANCES.incrementAndGet());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+    
+    /**
+     * Number of groups reported.
+     * 
+     * @return the count
+     */
+    public long getReported() {
+        return this.reported.sum();
+    }
+    
+    @Override
+    public void close() {
+        this.closed = true;
+        this.thread.interrupt();
+    }
+    
+    private void loop() {
+        while (!this.closed) {
+            try {
+                Thread.sleep(this.intervalMillis);
+            }
+            catch (InterruptedException e) {
+                return;     // closed
+            }
+            
+            try {
+                this.check();
+            }
+            catch (Throwable t) {
+                log.error("Unhandled throwable in transaction watchdog!", t);
+            }
+        }
+    }
+    
+    void check() {
+        for (ServiceTransactionRegistry.Entry entry : this.registry.snapshot()) {
+            final long age = entry.getAgeNanos();
+            
+            // oldest first, so the rest are younger
+            if (age < this.thresholdNanos) {
+                return;
+            }
+            
+            if (entry.reported) {
+                continue;
+            }
+            
+            final List<String> descriptors = entry.getDescriptors();
+            final StackTraceElement[] stackTrace = entry.getThread().getStackTrace();
+            
+            // it may have completed while its stack was captured
+            if (!this.registry.contains(entry)) {
+                continue;
+            }
+            
+            entry.reported = true;
+            this.reported.increment();
+            
+            this.listener.onLongRunning(new Report(entry.getGroupId(), entry.getThread().getName(), age, descriptors, stackTrace));
+        }
+    }
+
+}
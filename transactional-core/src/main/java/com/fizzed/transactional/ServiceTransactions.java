@@ -1,18 +1,160 @@
 package com.fizzed.transactional;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class ServiceTransactions {
+    static private final Logger log = LoggerFactory.getLogger(ServiceTransactions.class);
  
     static private final AtomicLong IDENTIFIERS = new AtomicLong();
-    static private final ThreadLocal<ServiceTransactionGroup> TL = new ThreadLocal<ServiceTransactionGroup>() {
-        @Override
-        protected ServiceTransactionGroup initialValue()
-        {
-            return new ServiceTransactionGroup(IDENTIFIERS.getAndIncrement());
-        }
-    };
+    static private volatile ServiceTransactionStorage storage = new ServiceTransactionThreadLocalStorage();
+    static private volatile boolean pooled = false;
+    static private volatile Executor parallelCommitExecutor;
+    static private volatile ServiceTransactionListenerDispatcher listenerDispatcher;
+    static private volatile ServiceTransactionMetrics metrics;
+    static private volatile ServiceTransactionFlightRecorder flightRecorder;
+    static private volatile ServiceTransactionTracer tracer;
+    static private volatile ServiceTransactionCoordinator coordinator;
+    static private volatile ServiceTransactionRegistry registry;
+    
+    /**
+     * Sets where the current group is stored for the begin methods that do
+     * not take an explicit context. Defaults to a ThreadLocal.
+     * 
+     * @param storage the storage to use
+     */
+    static public void setStorage(ServiceTransactionStorage storage) {
+        Objects.requireNonNull(storage, "storage was null");
+        ServiceTransactions.storage = storage;
+    }
+    
+    static public ServiceTransactionStorage getStorage() {
+        return storage;
+    }
+    
+    /**
+     * Enables (or disables) pooled mode. In pooled mode a completed group is
+     * not discarded, but reset and reused (along with its transactions) by the
+     * next begin on the same thread (or context), so the steady-state
+     * begin/commit path does not allocate. Transactions and groups must not be
+     * used once their group completed and a new group was started.
+     * 
+     * @param pooled true to enable pooled mode
+     */
+    static public void setPooled(boolean pooled) {
+        ServiceTransactions.pooled = pooled;
+    }
+    
+    static public boolean isPooled() {
+        return pooled;
+    }
+    
+    /**
+     * Sets the executor new groups use to commit their adapters in parallel.
+     * 
+     * @param executor the executor or null to commit sequentially (the default)
+     * @see ServiceTransactionGroup#setParallelCommitExecutor(java.util.concurrent.Executor)
+     */
+    static public void setParallelCommitExecutor(Executor executor) {
+        ServiceTransactions.parallelCommitExecutor = executor;
+    }
+    
+    static public Executor getParallelCommitExecutor() {
+        return parallelCommitExecutor;
+    }
+    
+    /**
+     * Sets the dispatcher new groups use to run their listeners off the
+     * completing thread.
+     * 
+     * @param dispatcher the dispatcher or null to run listeners inline (the default)
+     * @see ServiceTransactionGroup#setListenerDispatcher(com.fizzed.transactional.ServiceTransactionListenerDispatcher)
+     */
+    static public void setListenerDispatcher(ServiceTransactionListenerDispatcher dispatcher) {
+        ServiceTransactions.listenerDispatcher = dispatcher;
+    }
+    
+    static public ServiceTransactionListenerDispatcher getListenerDispatcher() {
+        return listenerDispatcher;
+    }
+    
+    /**
+     * Sets the metrics new groups record to.
+     * 
+     * @param metrics the metrics or null to not record any (the default)
+     * @see ServiceTransactionInMemoryMetrics
+     */
+    static public void setMetrics(ServiceTransactionMetrics metrics) {
+        ServiceTransactions.metrics = metrics;
+    }
+    
+    static public ServiceTransactionMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Sets the flight recorder new groups record their lifecycle events to.
+     * 
+     * @param flightRecorder the recorder or null to not record any (the default)
+     */
+    static public void setFlightRecorder(ServiceTransactionFlightRecorder flightRecorder) {
+        ServiceTransactions.flightRecorder = flightRecorder;
+    }
+    
+    static public ServiceTransactionFlightRecorder getFlightRecorder() {
+        return flightRecorder;
+    }
+    
+    /**
+     * Sets the tracer new groups (and optimistic retries) are traced with.
+     * 
+     * @param tracer the tracer or null to not trace (the default)
+     */
+    static public void setTracer(ServiceTransactionTracer tracer) {
+        ServiceTransactions.tracer = tracer;
+    }
+    
+    static public ServiceTransactionTracer getTracer() {
+        return tracer;
+    }
+    
+    /**
+     * Sets the coordinator new groups commit with in two phases when all of
+     * their real resources support it.
+     * 
+     * @param coordinator the coordinator or null to always commit one by one (the default)
+     */
+    static public void setCoordinator(ServiceTransactionCoordinator coordinator) {
+        ServiceTransactions.coordinator = coordinator;
+    }
+    
+    static public ServiceTransactionCoordinator getCoordinator() {
+        return coordinator;
+    }
+    
+    /**
+     * Sets the registry new groups register with while they run.
+     * 
+     * @param registry the registry or null to not register (the default)
+     */
+    static public void setRegistry(ServiceTransactionRegistry registry) {
+        ServiceTransactions.registry = registry;
+    }
+    
+    static public ServiceTransactionRegistry getRegistry() {
+        return registry;
+    }
     
     static public ServiceTransaction begin(
             String descriptor) {
@@ -32,16 +174,331 @@ public class ServiceTransactions {
             String idempotency,
             Function<Boolean, ServiceTransactionAdapter> supplier) {
         
-        return TL.get().begin(descriptor, idempotency, supplier);
+        return begin(storage, descriptor, idempotency, false, supplier);
+    }
+    
+    /**
+     * Begins a transaction that promises not to write. A read-only begin may
+     * join a series of the same idempotency that is not read-only, but a
+     * begin that is not read-only may not join a read-only one.
+     * 
+     * @param descriptor the descriptor
+     * @param idempotency the idempotency or null
+     * @param readOnly true if the transaction will not write
+     * @param supplier the adapter supplier (e.g. a read-only one that skips
+     *      the real commit)
+     * @return the transaction
+     */
+    static public ServiceTransaction begin(
+            String descriptor,
+            String idempotency,
+            boolean readOnly,
+            Function<Boolean, ServiceTransactionAdapter> supplier) {
+        
+        return begin(storage, descriptor, idempotency, readOnly, supplier);
+    }
+    
+    /**
+     * Begins a transaction with options (e.g. read-only, a timeout or a key to
+     * lock), which combine freely.
+     * 
+     * @param descriptor the descriptor
+     * @param supplier the adapter supplier
+     * @param options the options
+     * @return the transaction
+     * @throws ServiceTransactionLockTimeoutException if a key to lock was not
+     *      locked in time
+     * @see ServiceTransactionOptions
+     */
+    static public ServiceTransaction begin(
+            String descriptor,
+            Function<Boolean, ServiceTransactionAdapter> supplier,
+            ServiceTransactionOptions options) {
+        
+        Objects.requireNonNull(options, "options was null");
+        
+        final ServiceTransactionGroup group = current(storage);
+        final ServiceTransactionKeyLocks locks = options.getLocks();
+        
+        // locked before beginning, so no resource is held while waiting
+        if (locks != null) {
+            locks.lock(group, options.getKey());
+        }
+        
+        final boolean nested = group.hasTransactions();
+        
+        try {
+            if (!options.hasTimeout()) {
+                return group.begin(descriptor, options.getIdempotency(), options.isReadOnly(), supplier);
+            }
+            
+            // measured from now, like a group deadline
+            final long deadlineNanos = System.nanoTime() + options.getTimeoutNanos();
+            
+            if (nested) {
+                // only bounds this transaction (and the resource it acquires)
+                return group.begin(descriptor, options.getIdempotency(), options.isReadOnly(), deadlineNanos, supplier);
+            }
+            
+            group.setDeadline(options.getTimeoutNanos(), TimeUnit.NANOSECONDS);
+            
+            return group.begin(descriptor, options.getIdempotency(), options.isReadOnly(), supplier);
+        }
+        catch (RuntimeException e) {
+            // a group that never began is reused by the next begin (and will
+            // not complete to release the lock)
+            if (!nested && !group.hasTransactions()) {
+                if (options.hasTimeout()) {
+                    group.clearDeadline();
+                }
+                if (locks != null) {
+                    locks.release(group);
+                }
+            }
+            throw e;
+        }
+    }
+    
+    static public ServiceTransaction begin(
+            ServiceTransactionStorage storage,
+            String descriptor,
+            Function<Boolean, ServiceTransactionAdapter> supplier) {
+        
+        return begin(storage, descriptor, null, supplier);
+    }
+    
+    static public ServiceTransaction begin(
+            ServiceTransactionStorage storage,
+            String descriptor,
+            String idempotency,
+            Function<Boolean, ServiceTransactionAdapter> supplier) {
+        
+        return begin(storage, descriptor, idempotency, false, supplier);
+    }
+    
+    static public ServiceTransaction begin(
+            ServiceTransactionStorage storage,
+            String descriptor,
+            String idempotency,
+            boolean readOnly,
+            Function<Boolean, ServiceTransactionAdapter> supplier) {
+        
+        Objects.requireNonNull(storage, "storage was null");
+        
+        return current(storage).begin(descriptor, idempotency, readOnly, supplier);
+    }
+    
+    /**
+     * Runs independent tasks at the same time on the executor as part of the
+     * group running on the current thread. Each task runs with that group as
+     * its current group, so the transactions it begins (each with its own
+     * adapter, e.g. a connection per repository) join the group and commit or
+     * roll back with it once the outermost transaction ends. Returns once
+     * every task finished, so none is still running when the group commits.
+     * 
+     * Tasks must not begin with an idempotency already begun in the group (or
+     * by another task), since that would share one resource across threads:
+     * such a begin throws an IllegalStateException, failing the task.
+     * Once a task ends on a thread of the executor, the adapters begun by the
+     * tasks are detached from that thread (see ServiceTransactionAdapter.detach),
+     * so work the thread runs next does not join the group.
+     * 
+     * <pre>
+     * try (ServiceTransaction tx = ServiceTransactions.begin("Dashboard.load", supplier)) {
+     *     List&lt;Object&gt; parts = ServiceTransactions.parallel(Arrays.asList(
+     *         () -&gt; orders.recent(userId),
+     *         () -&gt; invoices.unpaid(userId)), executor);
+     *     tx.commit();
+     * }
+     * </pre>
+     * 
+     * @param <T> the type of result
+     * @param tasks the tasks
+     * @param executor the executor to run them on (a task it rejects runs inline)
+     * @return the results of the tasks in the same order
+     * @throws ServiceTransactionException if any task failed (with the first
+     *      failure as its cause), so the group does not commit
+     */
+    static public <T> List<T> parallel(List<? extends Callable<T>> tasks, Executor executor) {
+        Objects.requireNonNull(tasks, "tasks was null");
+        Objects.requireNonNull(executor, "executor was null");
+        
+        final ServiceTransactionStorage storage = ServiceTransactions.storage;
+        final ServiceTransactionGroup group = storage.get();
+        
+        if (group == null || group.isCompleted() || !group.hasTransactions()) {
+            throw new IllegalStateException("Unable to run tasks in parallel (no transaction group is running)");
+        }
+        
+        final int from = group.forkStarted();
+        try {
+            return parallel(storage, group, from, tasks, executor);
+        }
+        finally {
+            group.forkEnded();
+        }
+    }
+    
+    static private <T> List<T> parallel(
+            ServiceTransactionStorage storage,
+            ServiceTransactionGroup group,
+            int from,
+            List<? extends Callable<T>> tasks,
+            Executor executor) {
+        
+        final Thread caller = Thread.currentThread();
+        final List<CompletableFuture<T>> futures = new ArrayList<>(tasks.size());
+        
+        for (Callable<T> task : tasks) {
+            CompletableFuture<T> future;
+            try {
+                future = CompletableFuture.supplyAsync(() -> fork(storage, group, from, caller, task), executor);
+            }
+            catch (RejectedExecutionException e) {
+                log.warn("Parallel task rejected by executor (will run inline): {}", e.getMessage());
+                try {
+                    future = CompletableFuture.completedFuture(fork(storage, group, from, caller, task));
+                }
+                catch (RuntimeException | Error t) {
+                    future = new CompletableFuture<>();
+                    future.completeExceptionally(t);
+                }
+            }
+            futures.add(future);
+        }
+        
+        // every task is waited for, even once one failed
+        final List<T> results = new ArrayList<>(futures.size());
+        Throwable cause = null;
+        
+        for (CompletableFuture<T> future : futures) {
+            try {
+                results.add(future.join());
+            }
+            catch (CompletionException e) {
+                final Throwable t = ServiceTransactionFutures.unwrap(e);
+                if (cause == null) {
+                    cause = t;
+                } else {
+                    cause.addSuppressed(t);
+                }
+                results.add(null);
+            }
+        }
+        
+        if (cause != null) {
+            throw new ServiceTransactionException("Unable to run parallel tasks of transaction group=" + group.getId(), cause);
+        }
+        
+        return results;
+    }
+    
+    static private <T> T fork(
+            ServiceTransactionStorage storage,
+            ServiceTransactionGroup group,
+            int from,
+            Thread caller,
+            Callable<T> task) {
+        
+        try {
+            return bind(storage, group, task);
+        }
+        finally {
+            // a pooled thread must not keep the resources of the group bound once the task ends
+            if (Thread.currentThread() != caller) {
+                group.detach(from);
+            }
+        }
+    }
+    
+    static private <T> T bind(ServiceTransactionStorage storage, ServiceTransactionGroup group, Callable<T> task) {
+        try {
+            // a scoped storage has nothing bound on another thread, so bind a context of the group
+            if (storage instanceof ServiceTransactionScopedStorage) {
+                final ServiceTransactionContext context = new ServiceTransactionContext();
+                context.set(group);
+                return ((ServiceTransactionScopedStorage)storage).call(context, task);
+            }
+            
+            final ServiceTransactionGroup previous = storage.get();
+            storage.set(group);
+            try {
+                return task.call();
+            }
+            finally {
+                if (previous != null) {
+                    storage.set(previous);
+                } else {
+                    storage.remove();
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+    
+    static private ServiceTransactionGroup current(ServiceTransactionStorage storage) {
+        ServiceTransactionGroup group = storage.get();
+        
+        if (group != null && group.isCompleted()) {
+            // only a pooled group remains stored once its completed
+            if (group.isPooled() && pooled) {
+                group.reset(IDENTIFIERS.getAndIncrement());
+                return group;
+            }
+            group = null;
+        }
+        
+        if (group == null) {
+            group = new ServiceTransactionGroup(IDENTIFIERS.getAndIncrement(), pooled, storage);
+            storage.set(group);
+        }
+        
+        return group;
+    }
+    
+    /**
+     * Releases a completed group from the storage it was started with.
+     */
+    static void release(ServiceTransactionStorage storage, ServiceTransactionGroup group) {
+        // a completed pooled group stays stored so the next begin can recycle it
+        if (group.isPooled() && group.isCompleted()) {
+            return;
+        }
+        
+        // defend against removing a different group (e.g. one on another thread)
+        if (storage.get() == group) {
+            storage.remove();
+        }
+    }
+    
+    /**
+     * Gets the group of the current thread (or context) if one is running.
+     */
+    static ServiceTransactionGroup active() {
+        final ServiceTransactionGroup group = storage.get();
+        return group != null && !group.isCompleted() && group.hasTransactions() ? group : null;
     }
     
     // package-level for testing...
     static boolean isActive() {
-        return TL.get().hasTransactions();
+        final ServiceTransactionGroup group = storage.get();
+        return group != null && !group.isCompleted() && group.hasTransactions();
     }
     
     static public void clear() {
-        TL.remove();
+        clear(storage);
+    }
+    
+    static public void clear(ServiceTransactionStorage storage) {
+        final ServiceTransactionGroup group = storage.get();
+        if (group != null) {
+            release(storage, group);
+        }
     }
     
-}
\ No newline at end of file
+}
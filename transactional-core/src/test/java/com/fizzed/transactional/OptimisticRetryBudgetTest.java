@@ -0,0 +1,50 @@
+package com.fizzed.transactional;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import org.junit.Test;
+
+public class OptimisticRetryBudgetTest {
+    
+    @Test
+    public void limitsAttemptsByConflictRate() {
+        final AtomicLong now = new AtomicLong();
+        final OptimisticRetryBudget budget = new OptimisticRetryBudget(
+            10, TimeUnit.SECONDS, 0.2d, 0.6d, 10, now::get);
+        
+        // unknown operation or too few samples
+        assertThat(budget.allowedAttempts("op", 5), is(5));
+        
+        for (int i = 0; i < 5; i++) {
+            budget.record("op", true);
+        }
+        assertThat(budget.allowedAttempts("op", 5), is(5));
+        
+        // 5 of 10 conflicted (between throttle and fail fast)
+        for (int i = 0; i < 5; i++) {
+            budget.record("op", false);
+        }
+        assertThat(budget.getConflictRate("op"), is(0.5d));
+        assertThat(budget.allowedAttempts("op", 5), is(2));
+        
+        // 10 of 15 conflicted (fail fast)
+        for (int i = 0; i < 5; i++) {
+            budget.record("op", true);
+        }
+        assertThat(budget.allowedAttempts("op", 5), is(1));
+        
+        // other operations are not affected
+        assertThat(budget.allowedAttempts("other", 5), is(5));
+        
+        // once the conflicts slide out of the window, all attempts are allowed again
+        now.addAndGet(TimeUnit.SECONDS.toNanos(11));
+        for (int i = 0; i < 10; i++) {
+            budget.record("op", false);
+        }
+        assertThat(budget.getConflictRate("op"), is(0.0d));
+        assertThat(budget.allowedAttempts("op", 5), is(5));
+    }
+    
+}
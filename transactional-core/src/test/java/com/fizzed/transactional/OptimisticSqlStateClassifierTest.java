@@ -0,0 +1,28 @@
+package com.fizzed.transactional;
+
+import com.fizzed.transactional.OptimisticExceptionClassifier.Conflict;
+import java.sql.SQLException;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PersistenceException;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import org.junit.Test;
+
+public class OptimisticSqlStateClassifierTest {
+    
+    private final OptimisticSqlStateClassifier classifier = new OptimisticSqlStateClassifier();
+    
+    @Test
+    public void classify() {
+        assertThat(classifier.classify(new OptimisticLockException("test")), is(Conflict.LOCK));
+        assertThat(classifier.classify(new PersistenceException(new SQLException("dup", "23505"))), is(Conflict.DUPLICATE));
+        assertThat(classifier.classify(new PersistenceException(new SQLException("dup", "23000", 1062))), is(Conflict.DUPLICATE));
+        assertThat(classifier.classify(new PersistenceException(new SQLException("fk", "23000", 1452))), is(Conflict.NONE));
+        assertThat(classifier.classify(new PersistenceException(new RuntimeException(new SQLException("deadlock", "40P01")))), is(Conflict.TRANSIENT));
+        assertThat(classifier.classify(new SQLException("serialization", "40001")), is(Conflict.TRANSIENT));
+        assertThat(classifier.classify(new PersistenceException("Duplicate entry")), is(Conflict.DUPLICATE));
+        assertThat(classifier.classify(new PersistenceException((String)null)), is(Conflict.NONE));
+        assertThat(classifier.classify(new IllegalArgumentException("Duplicate entry")), is(Conflict.NONE));
+    }
+    
+}
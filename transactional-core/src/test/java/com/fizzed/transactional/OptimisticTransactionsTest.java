@@ -1,8 +1,14 @@
 package com.fizzed.transactional;
 
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.persistence.OptimisticLockException;
 import javax.persistence.PersistenceException;
+import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 import org.junit.Test;
@@ -12,6 +18,7 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.fizzed.transactional.OptimisticExceptionClassifier.Conflict;
 import com.fizzed.transactional.OptimisticTransactions.Method;
 
 public class OptimisticTransactionsTest {
@@ -71,4 +78,118 @@ public class OptimisticTransactionsTest {
         verify(method, times(2)).apply();
     }
     
+    @Test
+    public void retryableKeepsLegacyClassification() throws Exception {
+        Method method;
+        
+        // a bare sql serialization failure was never retried by retryable
+        method = mock(Method.class);
+        SQLException exception1 = new SQLException("serialization", "40001");
+        doThrow(exception1).when(method).apply();
+        
+        try {
+            OptimisticTransactions.retryable(log, "test1", 3, method);
+            fail();
+        } catch (Exception e) {
+            assertThat(e, sameInstance(exception1));
+            verify(method, times(1)).apply();
+        }
+        
+        // nor was a wrapped unique violation without the mysql message
+        method = mock(Method.class);
+        PersistenceException exception2 = new PersistenceException(new SQLException("dup", "23505"));
+        doThrow(exception2).when(method).apply();
+        
+        try {
+            OptimisticTransactions.retryable(log, "test2", 3, method);
+            fail();
+        } catch (Exception e) {
+            assertThat(e, sameInstance(exception2));
+            verify(method, times(1)).apply();
+        }
+        
+        // a null message is not a conflict (and no longer a NullPointerException)
+        method = mock(Method.class);
+        PersistenceException exception3 = new PersistenceException((String)null);
+        doThrow(exception3).when(method).apply();
+        
+        try {
+            OptimisticTransactions.retryable(log, "test3", 3, method);
+            fail();
+        } catch (Exception e) {
+            assertThat(e, sameInstance(exception3));
+            verify(method, times(1)).apply();
+        }
+    }
+    
+    @Test
+    public void legacyClassifier() {
+        final OptimisticLegacyClassifier classifier = OptimisticLegacyClassifier.INSTANCE;
+        
+        assertThat(classifier.classify(new OptimisticLockException("test")), is(Conflict.LOCK));
+        assertThat(classifier.classify(new PersistenceException("Duplicate entry '1' for key 'PRIMARY'")), is(Conflict.DUPLICATE));
+        assertThat(classifier.classify(new PersistenceException("other")), is(Conflict.NONE));
+        assertThat(classifier.classify(new IllegalArgumentException("Duplicate entry")), is(Conflict.NONE));
+        assertThat(classifier.classify(new SQLException("dup", "23505")), is(Conflict.NONE));
+        assertThat(classifier.classify(new RuntimeException(new OptimisticLockException("test"))), is(Conflict.NONE));
+    }
+    
+    @Test
+    public void executeReturnsValueAfterBackoff() throws Exception {
+        final OptimisticRetryMetrics metrics = new OptimisticRetryMetrics();
+        final OptimisticRetryPolicy policy = new OptimisticRetryPolicy()
+            .attempts(3)
+            .delay(1, 5, TimeUnit.MILLISECONDS)
+            .jitter(0.5d)
+            .metrics(metrics);
+        
+        final AtomicInteger calls = new AtomicInteger();
+        
+        final String value = OptimisticTransactions.execute(log, "test1", policy, () -> {
+            if (calls.incrementAndGet() < 3) {
+                throw new PersistenceException(new SQLException("deadlock", "40001"));
+            }
+            return "success";
+        });
+        
+        assertThat(value, is("success"));
+        assertThat(calls.get(), is(3));
+        assertThat(metrics.getOperation("test1").getCalls(), is(1L));
+        assertThat(metrics.getOperation("test1").getAttempts(), is(3L));
+        assertThat(metrics.getOperation("test1").getConflicts(), is(2L));
+        assertThat(metrics.getOperation("test1").getRecovered(), is(1L));
+        assertThat(metrics.getOperation("test1").getBackoffNanos(), greaterThan(0L));
+        
+        // not a conflict, thrown right away
+        final RuntimeException exception = new PersistenceException(new SQLException("syntax", "42000"));
+        try {
+            OptimisticTransactions.execute(log, "test2", policy, () -> {
+                throw exception;
+            });
+            fail();
+        } catch (Exception e) {
+            assertThat(e, sameInstance(exception));
+            assertThat(metrics.getOperation("test2").getAttempts(), is(1L));
+            assertThat(metrics.getOperation("test2").getFailed(), is(1L));
+        }
+    }
+    
+    @Test
+    public void delayBacksOffExponentiallyUpToMax() {
+        final OptimisticRetryPolicy policy = new OptimisticRetryPolicy()
+            .delay(10, 50, TimeUnit.NANOSECONDS)
+            .multiplier(2.0d);
+        
+        assertThat(policy.delayNanos(1), is(10L));
+        assertThat(policy.delayNanos(2), is(20L));
+        assertThat(policy.delayNanos(3), is(40L));
+        assertThat(policy.delayNanos(4), is(50L));
+        
+        policy.jitter(1.0d);
+        
+        for (int i = 0; i < 100; i++) {
+            assertThat(policy.delayNanos(3), lessThanOrEqualTo(40L));
+        }
+    }
+    
 }
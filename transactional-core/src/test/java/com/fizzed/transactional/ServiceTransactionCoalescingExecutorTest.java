@@ -0,0 +1,127 @@
+package com.fizzed.transactional;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import org.junit.Test;
+
+public class ServiceTransactionCoalescingExecutorTest {
+    
+    @Test
+    public void coalescesKeysOfSuccessfulGroups() throws Exception {
+        final List<Set<String>> batches = Collections.synchronizedList(new ArrayList<>());
+        final ServiceTransactionCoalescingExecutor<String> executor = new ServiceTransactionCoalescingExecutor<>(
+            "test", (keys) -> batches.add(keys), 100, 1, TimeUnit.SECONDS);
+        
+        try (ServiceTransaction str1 = ServiceTransactions.begin("test1")) {
+            str1.afterCommit(executor, "a");
+            str1.afterCommit(executor, "b");
+            
+            try (ServiceTransaction str2 = ServiceTransactions.begin("test2")) {
+                str2.afterCommit(executor, "a");
+                str2.commit();
+            }
+            
+            // nothing until the group completes
+            assertThat(executor.getSubmitted(), is(0L));
+            
+            str1.commit();
+        }
+        
+        try (ServiceTransaction str1 = ServiceTransactions.begin("test3")) {
+            str1.afterCommit(executor, "z");
+            // rolled back
+        }
+        
+        try (ServiceTransaction str1 = ServiceTransactions.begin("test4")) {
+            str1.afterCommit(executor, "b");
+            str1.afterCommit(executor, "c");
+            str1.commit();
+        }
+        
+        assertThat(executor.shutdown(5, TimeUnit.SECONDS), is(true));
+        
+        // all within one window
+        assertThat(batches.size(), is(1));
+        assertThat(batches.get(0), containsInAnyOrder("a", "b", "c"));
+        assertThat(executor.getSubmitted(), is(5L));
+        assertThat(executor.getCoalesced(), is(2L));
+    }
+    
+    @Test
+    public void keysOfParallelTasksAreAllSubmitted() throws Exception {
+        final List<Set<Integer>> batches = Collections.synchronizedList(new ArrayList<>());
+        final ServiceTransactionCoalescingExecutor<Integer> executor = new ServiceTransactionCoalescingExecutor<>(
+            "test", (keys) -> batches.add(keys), 1000, 1, TimeUnit.SECONDS);
+        final ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            final List<Callable<Object>> tasks = new ArrayList<>();
+            // every task must be running at the same time to get past the barrier
+            final CyclicBarrier barrier = new CyclicBarrier(4);
+            
+            for (int i = 0; i < 4; i++) {
+                final int offset = i * 100;
+                tasks.add(() -> {
+                    try (ServiceTransaction str = ServiceTransactions.begin("child" + offset)) {
+                        barrier.await(5, TimeUnit.SECONDS);
+                        for (int j = 0; j < 100; j++) {
+                            str.afterCommit(executor, offset + j);
+                        }
+                        str.commit();
+                        return null;
+                    }
+                });
+            }
+            
+            try (ServiceTransaction str1 = ServiceTransactions.begin("test1")) {
+                ServiceTransactions.parallel(tasks, pool);
+                str1.commit();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        
+        assertThat(executor.shutdown(5, TimeUnit.SECONDS), is(true));
+        
+        final Set<Integer> handled = new HashSet<>();
+        for (Set<Integer> batch : batches) {
+            handled.addAll(batch);
+        }
+        
+        assertThat(handled.size(), is(400));
+        assertThat(executor.getSubmitted(), is(400L));
+    }
+    
+    @Test
+    public void fullBatchCutsWindowShort() throws Exception {
+        final List<Set<Integer>> batches = Collections.synchronizedList(new ArrayList<>());
+        final ServiceTransactionCoalescingExecutor<Integer> executor = new ServiceTransactionCoalescingExecutor<>(
+            "test", (keys) -> batches.add(keys), 10, 1, TimeUnit.HOURS);
+        
+        for (int i = 0; i < 25; i++) {
+            executor.submit(i);
+        }
+        
+        assertThat(executor.shutdown(5, TimeUnit.SECONDS), is(true));
+        
+        final Set<Integer> handled = new HashSet<>();
+        for (Set<Integer> batch : batches) {
+            assertThat(batch.size(), lessThanOrEqualTo(10));
+            handled.addAll(batch);
+        }
+        
+        assertThat(handled.size(), is(25));
+    }
+
+}
@@ -0,0 +1,278 @@
+package com.fizzed.transactional;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+public class ServiceTransactionCoordinatorTest {
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    @Test
+    public void preparesEveryResourceBeforeCommitting() throws Exception {
+        
+        final ServiceTransactionTwoPhaseAdapter adapter1 = mock(ServiceTransactionTwoPhaseAdapter.class);
+        final ServiceTransactionTwoPhaseAdapter adapter2 = mock(ServiceTransactionTwoPhaseAdapter.class);
+        
+        try (ServiceTransactionCoordinator coordinator = new ServiceTransactionCoordinator(this.folder.getRoot().toPath(), 16, false)) {
+            ServiceTransactions.setCoordinator(coordinator);
+            try {
+                final ServiceTransaction str1 = ServiceTransactions.begin("test1", "db1", (first) -> adapter1);
+                final ServiceTransaction str2 = ServiceTransactions.begin("test2", "db2", (first) -> adapter2);
+                
+                str2.commit();
+                str2.end();
+                str1.commit();
+                str1.end();
+                
+                assertThat(str1.getGroup().wasSuccessful(), is(true));
+            }
+            finally {
+                ServiceTransactions.setCoordinator(null);
+            }
+            
+            final InOrder inOrder = inOrder(adapter1, adapter2);
+            final ArgumentCaptor<String> xid1 = ArgumentCaptor.forClass(String.class);
+            final ArgumentCaptor<String> xid2 = ArgumentCaptor.forClass(String.class);
+            inOrder.verify(adapter2).prepare(xid2.capture());
+            inOrder.verify(adapter1).prepare(xid1.capture());
+            inOrder.verify(adapter2).commit();
+            inOrder.verify(adapter1).commit();
+            
+            assertThat(xid1.getValue(), is(not(xid2.getValue())));
+            assertThat(coordinator.getOpen(), is(0));
+        }
+    }
+    
+    @Test
+    public void failedPrepareRollsBackEveryResource() throws Exception {
+        
+        final ServiceTransactionTwoPhaseAdapter adapter1 = mock(ServiceTransactionTwoPhaseAdapter.class);
+        final ServiceTransactionTwoPhaseAdapter adapter2 = mock(ServiceTransactionTwoPhaseAdapter.class);
+        
+        doThrow(new IllegalStateException("Unable to prepare")).when(adapter1).prepare(anyString());
+        
+        try (ServiceTransactionCoordinator coordinator = new ServiceTransactionCoordinator(this.folder.getRoot().toPath(), 16, false)) {
+            ServiceTransactions.setCoordinator(coordinator);
+            try {
+                final ServiceTransaction str1 = ServiceTransactions.begin("test1", "db1", (first) -> adapter1);
+                final ServiceTransaction str2 = ServiceTransactions.begin("test2", "db2", (first) -> adapter2);
+                
+                str2.commit();
+                str2.end();
+                
+                try {
+                    str1.commit();
+                    fail();
+                } catch (ServiceTransactionException e) {
+                    // expected
+                }
+                
+                assertThat(str1.getGroup().wasSuccessful(), is(false));
+            }
+            finally {
+                ServiceTransactions.setCoordinator(null);
+            }
+            
+            verify(adapter1, times(1)).rollback();
+            verify(adapter2, times(1)).rollback();
+            verify(adapter1, times(0)).commit();
+            verify(adapter2, times(0)).commit();
+            assertThat(coordinator.getOpen(), is(0));
+        }
+    }
+    
+    @Test
+    public void failedPhaseTwoCommitIsInDoubtAndRecovered() throws Exception {
+        
+        final ServiceTransactionTwoPhaseAdapter adapter1 = mock(ServiceTransactionTwoPhaseAdapter.class);
+        final ServiceTransactionTwoPhaseAdapter adapter2 = mock(ServiceTransactionTwoPhaseAdapter.class);
+        
+        doThrow(new IllegalStateException("Unable to commit")).when(adapter1).commit();
+        
+        try (ServiceTransactionCoordinator coordinator = new ServiceTransactionCoordinator(this.folder.getRoot().toPath(), 16, false)) {
+            ServiceTransactions.setCoordinator(coordinator);
+            
+            final ServiceTransaction str1;
+            try {
+                str1 = ServiceTransactions.begin("test1", "db1", (first) -> adapter1);
+                final ServiceTransaction str2 = ServiceTransactions.begin("test2", "db2", (first) -> adapter2);
+                
+                // the decision was logged, so the group committed (not failed)
+                str2.commit();
+                str2.end();
+                str1.commit();
+                str1.end();
+                
+                assertThat(str1.getGroup().wasSuccessful(), is(true));
+                assertThat(str1.getState(), is(ServiceTransaction.State.COMMITTED));
+            }
+            finally {
+                ServiceTransactions.setCoordinator(null);
+            }
+            
+            verify(adapter1, times(0)).rollback();
+            verify(adapter2, times(0)).rollback();
+            
+            final ArgumentCaptor<String> xid1 = ArgumentCaptor.forClass(String.class);
+            verify(adapter1).prepare(xid1.capture());
+            
+            assertThat(coordinator.getOpen(), is(1));
+            assertThat(coordinator.getInDoubt(), is(1));
+            
+            // the work of this run in doubt is committed without a restart
+            final FakeResource resource = new FakeResource(xid1.getValue());
+            assertThat(coordinator.recover(resource), is(1));
+            
+            assertThat(resource.committed, containsInAnyOrder(xid1.getValue()));
+            assertThat(coordinator.getOpen(), is(0));
+            assertThat(coordinator.getInDoubt(), is(0));
+        }
+    }
+    
+    @Test
+    public void recoverSkipsWorkStillCommitting() throws Exception {
+        
+        try (ServiceTransactionCoordinator coordinator = new ServiceTransactionCoordinator(this.folder.getRoot().toPath(), 16, false)) {
+            // a group of this run prepared (one not yet decided, one decided and committing)
+            final String prepared = coordinator.xid(1L, 0);
+            final String committing = coordinator.xid(2L, 0);
+            coordinator.logCommit(2L);
+            
+            final FakeResource resource = new FakeResource(prepared, committing);
+            
+            assertThat(coordinator.recover(resource), is(0));
+            assertThat(resource.committed.isEmpty(), is(true));
+            assertThat(resource.rolledBack.isEmpty(), is(true));
+            assertThat(coordinator.getOpen(), is(1));
+        }
+    }
+    
+    @Test
+    public void concurrentForcedDecisionsAreAllLogged() throws Exception {
+        final int threads = 8;
+        final int decisions = 50;
+        
+        try (ServiceTransactionCoordinator coordinator = new ServiceTransactionCoordinator(this.folder.getRoot().toPath(), 1024, true)) {
+            final List<Thread> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final long base = t * 1000L;
+                final Thread worker = new Thread(() -> {
+                    for (int d = 0; d < decisions; d++) {
+                        coordinator.logCommit(base + d);
+                    }
+                });
+                worker.start();
+                workers.add(worker);
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            
+            assertThat(coordinator.getOpen(), is(threads * decisions));
+        }
+        
+        try (ServiceTransactionCoordinator coordinator = new ServiceTransactionCoordinator(this.folder.getRoot().toPath(), 1024, true)) {
+            assertThat(coordinator.getOpen(), is(threads * decisions));
+        }
+    }
+    
+    @Test
+    public void recoverCommitsOnlyLoggedDecisions() throws Exception {
+        
+        final String committed;
+        final String undecided;
+        
+        // a run that dies after logging the decision of group 1 (and before group 2 decided)
+        try (ServiceTransactionCoordinator coordinator = new ServiceTransactionCoordinator(this.folder.getRoot().toPath(), 16, false)) {
+            committed = coordinator.xid(1L, 0);
+            undecided = coordinator.xid(2L, 0);
+            coordinator.logCommit(1L);
+        }
+        
+        final FakeResource resource = new FakeResource(committed, undecided, "someone-elses-xid");
+        
+        try (ServiceTransactionCoordinator coordinator = new ServiceTransactionCoordinator(this.folder.getRoot().toPath(), 16, false)) {
+            assertThat(coordinator.getOpen(), is(1));
+            assertThat(coordinator.recover(resource), is(2));
+            assertThat(coordinator.getOpen(), is(0));
+        }
+        
+        assertThat(resource.committed, containsInAnyOrder(committed));
+        assertThat(resource.rolledBack, containsInAnyOrder(undecided));
+        
+        // decisions are ended for good
+        try (ServiceTransactionCoordinator coordinator = new ServiceTransactionCoordinator(this.folder.getRoot().toPath(), 16, false)) {
+            assertThat(coordinator.getOpen(), is(0));
+        }
+    }
+    
+    @Test
+    public void openDecisionsSurviveRollingTheLog() throws Exception {
+        
+        try (ServiceTransactionCoordinator coordinator = new ServiceTransactionCoordinator(this.folder.getRoot().toPath(), 4, true)) {
+            coordinator.logCommit(1L);
+            
+            // many times the capacity of a log file
+            for (long group = 2; group < 100; group++) {
+                coordinator.logCommit(group);
+                coordinator.logEnd(group);
+            }
+            
+            coordinator.logCommit(100L);
+            
+            assertThat(coordinator.getOpen(), is(2));
+        }
+        
+        try (ServiceTransactionCoordinator coordinator = new ServiceTransactionCoordinator(this.folder.getRoot().toPath(), 4, true)) {
+            assertThat(coordinator.getOpen(), is(2));
+        }
+    }
+    
+    static private class FakeResource implements ServiceTransactionTwoPhaseResource {
+        
+        private final List<String> prepared;
+        private final List<String> committed = new ArrayList<>();
+        private final List<String> rolledBack = new ArrayList<>();
+        
+        public FakeResource(String... prepared) {
+            this.prepared = new ArrayList<>(Arrays.asList(prepared));
+        }
+        
+        @Override
+        public List<String> recover() {
+            return new ArrayList<>(this.prepared);
+        }
+        
+        @Override
+        public void commit(String xid) {
+            this.prepared.remove(xid);
+            this.committed.add(xid);
+        }
+        
+        @Override
+        public void rollback(String xid) {
+            this.prepared.remove(xid);
+            this.rolledBack.add(xid);
+        }
+    
+    }
+
+}
@@ -0,0 +1,99 @@
+package com.fizzed.transactional;
+
+import com.fizzed.transactional.ServiceTransactionFlightRecorder.Entry;
+import com.fizzed.transactional.ServiceTransactionFlightRecorder.Event;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.stream.Collectors;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Test;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.spy;
+
+public class ServiceTransactionFlightRecorderTest {
+    
+    @Test
+    public void keepsMostRecentEvents() {
+        final ServiceTransactionFlightRecorder recorder = new ServiceTransactionFlightRecorder(3, false);
+        
+        assertThat(recorder.getCapacity(), is(4));
+        
+        for (int i = 0; i < 6; i++) {
+            recorder.record(Event.BEGIN, i, 0, "test" + i);
+        }
+        
+        final List<Entry> entries = recorder.snapshot();
+        
+        assertThat(recorder.getRecorded(), is(6L));
+        assertThat(entries.stream().map(Entry::getGroupId).collect(Collectors.toList()), contains(2L, 3L, 4L, 5L));
+        assertThat(recorder.snapshot(4L).get(0).getDescriptor(), is("test4"));
+        assertThat(recorder.dump(4L), containsString("BEGIN (test4)"));
+    }
+    
+    @Test
+    public void recordsGroupLifecycle() {
+        final ServiceTransactionFlightRecorder recorder = new ServiceTransactionFlightRecorder(64, true);
+        
+        final ServiceTransactionAdapter adapter2 = spy(new ServiceTransactionNoopAdapter());
+        doThrow(new RuntimeException("Commit causes rollback")).when(adapter2).commit();
+        
+        ServiceTransactions.setFlightRecorder(recorder);
+        try {
+            final ServiceTransaction str1 = ServiceTransactions.begin("test1", (b) -> new ServiceTransactionNoopAdapter());
+            final ServiceTransaction str2 = ServiceTransactions.begin("test2", (b) -> adapter2);
+            
+            str2.commit();
+            str2.end();
+            
+            try {
+                str1.commit();
+                fail();
+            } catch (ServiceTransactionException e) {
+                // expected
+            }
+            
+            final List<Event> events = recorder.snapshot(str1.getGroup().getId()).stream()
+                .map(Entry::getEvent)
+                .collect(Collectors.toList());
+            
+            assertThat(events, contains(Event.BEGIN, Event.BEGIN, Event.COMMIT,
+                Event.REAL_COMMIT_FAILED, Event.REAL_ROLLBACK, Event.COMPLETE_FAILURE));
+        }
+        finally {
+            ServiceTransactions.setFlightRecorder(null);
+            ServiceTransactions.clear();
+        }
+    }
+    
+    @Test
+    public void recordDoesNotAllocate() {
+        final java.lang.management.ThreadMXBean mxbean = ManagementFactory.getThreadMXBean();
+        assumeTrue(mxbean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)mxbean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        
+        final ServiceTransactionFlightRecorder recorder = new ServiceTransactionFlightRecorder(1024, false);
+        
+        for (int i = 0; i < 20000; i++) {
+            recorder.record(Event.REAL_COMMIT, i, i, "test");
+        }
+        
+        final long threadId = Thread.currentThread().getId();
+        final long before = threads.getThreadAllocatedBytes(threadId);
+        
+        for (int i = 0; i < 20000; i++) {
+            recorder.record(Event.REAL_COMMIT, i, i, "test");
+        }
+        
+        final long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        
+        assertThat(allocated, lessThan(1024L));
+    }
+    
+}
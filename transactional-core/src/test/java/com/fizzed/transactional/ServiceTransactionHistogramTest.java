@@ -0,0 +1,46 @@
+package com.fizzed.transactional;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import org.junit.Test;
+
+public class ServiceTransactionHistogramTest {
+    
+    @Test
+    public void buckets() {
+        // every value lands in a bucket whose bounds contain it
+        for (long v : new long[] { 0, 1, 15, 16, 17, 31, 32, 33, 34, 1000, 123456789, Long.MAX_VALUE }) {
+            final int index = ServiceTransactionHistogram.index(v);
+            assertThat(v, allOf(
+                greaterThanOrEqualTo(ServiceTransactionHistogram.lowerBound(index)),
+                lessThanOrEqualTo(ServiceTransactionHistogram.upperBound(index))));
+        }
+        
+        // small values are exact
+        assertThat(ServiceTransactionHistogram.upperBound(ServiceTransactionHistogram.index(7)), is(7L));
+    }
+    
+    @Test
+    public void percentiles() {
+        final ServiceTransactionHistogram histogram = new ServiceTransactionHistogram();
+        
+        assertThat(histogram.getP50(), is(0L));
+        
+        for (long v = 1; v <= 10000; v++) {
+            histogram.record(v * 1000L);
+        }
+        
+        assertThat(histogram.getCount(), is(10000L));
+        assertThat(histogram.getMax(), is(10000000L));
+        assertThat(histogram.getMean(), is(5000500.0d));
+        // within the ~6% bucket resolution
+        assertThat(histogram.getP50(), allOf(greaterThanOrEqualTo(5000000L), lessThanOrEqualTo(5000000L * 107 / 100)));
+        assertThat(histogram.getP99(), allOf(greaterThanOrEqualTo(9900000L), lessThanOrEqualTo(10000000L)));
+        assertThat(histogram.getP999(), allOf(greaterThanOrEqualTo(9990000L), lessThanOrEqualTo(10000000L)));
+        assertThat(histogram.getPercentile(1.0d), is(10000000L));
+    }
+    
+}
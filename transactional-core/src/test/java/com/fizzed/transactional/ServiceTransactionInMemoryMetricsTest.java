@@ -0,0 +1,61 @@
+package com.fizzed.transactional;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.spy;
+
+public class ServiceTransactionInMemoryMetricsTest {
+    
+    @Test
+    public void recordsGroups() {
+        
+        final ServiceTransactionInMemoryMetrics metrics = new ServiceTransactionInMemoryMetrics();
+        
+        ServiceTransactions.setMetrics(metrics);
+        try {
+            // committed group of 2
+            final ServiceTransaction str1 = ServiceTransactions.begin("outer");
+            str1.onSuccess(() -> {});
+            final ServiceTransaction str2 = ServiceTransactions.begin("inner");
+            str2.commit();
+            str2.end();
+            str1.commit();
+            str1.end();
+            
+            // rolled back group of 1
+            final ServiceTransaction str3 = ServiceTransactions.begin("outer");
+            str3.end();
+            
+            // failed commit
+            final ServiceTransactionAdapter adapter4 = spy(new ServiceTransactionNoopAdapter());
+            doThrow(new RuntimeException("Commit failed")).when(adapter4).commit();
+            final ServiceTransaction str4 = ServiceTransactions.begin("inner", (b) -> adapter4);
+            try {
+                str4.commit();
+                fail();
+            } catch (ServiceTransactionException e) {
+                // expected
+            }
+        }
+        finally {
+            ServiceTransactions.setMetrics(null);
+        }
+        
+        assertThat(metrics.getDescriptors(), containsInAnyOrder("outer", "inner"));
+        assertThat(metrics.getDescriptor("outer").getCommitted(), is(1L));
+        assertThat(metrics.getDescriptor("outer").getRolledBack(), is(1L));
+        assertThat(metrics.getDescriptor("outer").getLatency().getCount(), is(2L));
+        assertThat(metrics.getDescriptor("inner").getCommitted(), is(1L));
+        assertThat(metrics.getDescriptor("inner").getFailed(), is(1L));
+        assertThat(metrics.getGroupsCommitted(), is(1L));
+        assertThat(metrics.getGroupsRolledBack(), is(2L));
+        assertThat(metrics.getDepth().getMax(), is(2L));
+        assertThat(metrics.getGroupLatency().getCount(), is(3L));
+        assertThat(metrics.getListenerLatency().getCount(), is(1L));
+    }
+    
+}
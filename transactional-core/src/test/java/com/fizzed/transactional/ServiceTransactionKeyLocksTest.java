@@ -0,0 +1,127 @@
+package com.fizzed.transactional;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class ServiceTransactionKeyLocksTest {
+    static private final Logger log = LoggerFactory.getLogger(ServiceTransactionKeyLocksTest.class);
+    
+    @Test
+    public void stripesRoundedToPowerOfTwo() {
+        assertThat(new ServiceTransactionKeyLocks(1, 1, TimeUnit.SECONDS).getStripes(), is(1));
+        assertThat(new ServiceTransactionKeyLocks(100, 1, TimeUnit.SECONDS).getStripes(), is(128));
+        assertThat(new ServiceTransactionKeyLocks(128, 1, TimeUnit.SECONDS).getStripes(), is(128));
+    }
+    
+    @Test
+    public void lockHeldUntilGroupCompletes() throws Exception {
+        final ServiceTransactionKeyLocks locks = new ServiceTransactionKeyLocks(16, 50, TimeUnit.MILLISECONDS);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final ServiceTransaction str1 = ServiceTransactions.begin("test1", (first) -> new ServiceTransactionNoopAdapter(), new ServiceTransactionOptions().lock(locks, 1L));
+            
+            // the same group may lock the same key again
+            final ServiceTransaction str2 = ServiceTransactions.begin("test2", (first) -> new ServiceTransactionNoopAdapter(), new ServiceTransactionOptions().lock(locks, 1L));
+            
+            assertThat(locks.isLocked(1L), is(true));
+            
+            // another thread (and group) cannot
+            final Future<?> future = executor.submit(() -> {
+                ServiceTransactions.begin("test3", (first) -> new ServiceTransactionNoopAdapter(), new ServiceTransactionOptions().lock(locks, 1L));
+            });
+            
+            try {
+                future.get();
+                fail();
+            } catch (Exception e) {
+                assertThat(e.getCause(), instanceOf(ServiceTransactionLockTimeoutException.class));
+            }
+            
+            str2.commit();
+            str2.end();
+            
+            assertThat(locks.isLocked(1L), is(true));
+            
+            str1.commit();
+            str1.end();
+            
+            assertThat(locks.isLocked(1L), is(false));
+            assertThat(ServiceTransactions.isActive(), is(false));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void parallelTasksOfGroupShareLock() throws Exception {
+        final ServiceTransactionKeyLocks locks = new ServiceTransactionKeyLocks(16, 1, TimeUnit.SECONDS);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Callable<Boolean>> tasks = new ArrayList<>();
+            // every task must be running at the same time to get past the barrier
+            final CyclicBarrier barrier = new CyclicBarrier(4);
+            
+            for (int i = 0; i < 4; i++) {
+                final String descriptor = "child" + i;
+                tasks.add(() -> {
+                    barrier.await(5, TimeUnit.SECONDS);
+                    try (ServiceTransaction str = ServiceTransactions.begin(descriptor, (first) -> new ServiceTransactionNoopAdapter(), new ServiceTransactionOptions().lock(locks, 1L))) {
+                        str.commit();
+                        return locks.isLocked(1L);
+                    }
+                });
+            }
+            
+            try (ServiceTransaction str1 = ServiceTransactions.begin("test1")) {
+                // the tasks neither wait on each other nor lose the stripe of another
+                final List<Boolean> locked = ServiceTransactions.parallel(tasks, executor);
+                
+                assertThat(locked.contains(false), is(false));
+                assertThat(locks.isLocked(1L), is(true));
+                
+                str1.commit();
+            }
+            
+            assertThat(locks.isLocked(1L), is(false));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void optimisticExecuteHoldsLock() throws Exception {
+        final ServiceTransactionKeyLocks locks = new ServiceTransactionKeyLocks(16, 50, TimeUnit.MILLISECONDS);
+        final OptimisticRetryPolicy policy = new OptimisticRetryPolicy();
+        
+        // without a group, only while running
+        final Boolean locked = OptimisticTransactions.execute(log, "test1", policy, locks, "a", () -> locks.isLocked("a"));
+        
+        assertThat(locked, is(true));
+        assertThat(locks.isLocked("a"), is(false));
+        
+        // with a group, until it completes
+        try (ServiceTransaction str1 = ServiceTransactions.begin("test1")) {
+            OptimisticTransactions.execute(log, "test1", policy, locks, "a", () -> null);
+            
+            assertThat(locks.isLocked("a"), is(true));
+            
+            str1.commit();
+        }
+        
+        assertThat(locks.isLocked("a"), is(false));
+    }
+    
+}
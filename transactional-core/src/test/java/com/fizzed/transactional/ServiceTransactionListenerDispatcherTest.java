@@ -0,0 +1,116 @@
+package com.fizzed.transactional;
+
+import com.fizzed.transactional.ServiceTransactionListenerDispatcher.Overflow;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import org.junit.Test;
+
+public class ServiceTransactionListenerDispatcherTest {
+    
+    @Test
+    public void listenersRunOffThread() throws Exception {
+        
+        final AtomicReference<Thread> thread = new AtomicReference<>();
+        final CountDownLatch ran = new CountDownLatch(1);
+        
+        try (ServiceTransactionListenerDispatcher dispatcher = new ServiceTransactionListenerDispatcher(1, 10, Overflow.BLOCK)) {
+            ServiceTransactions.setListenerDispatcher(dispatcher);
+            try {
+                final ServiceTransaction str1 = ServiceTransactions.begin("test1");
+                str1.onSuccess(() -> {
+                    thread.set(Thread.currentThread());
+                    ran.countDown();
+                });
+                str1.commit();
+                str1.end();
+            }
+            finally {
+                ServiceTransactions.setListenerDispatcher(null);
+            }
+            
+            assertThat(ran.await(5, TimeUnit.SECONDS), is(true));
+            assertThat(thread.get(), is(not(sameInstance(Thread.currentThread()))));
+            assertThat(dispatcher.shutdown(5, TimeUnit.SECONDS), is(true));
+            assertThat(dispatcher.getDispatched(), is(1L));
+            assertThat(dispatcher.getMaxLagNanos(), greaterThan(0L));
+        }
+    }
+    
+    @Test
+    public void overflowDrop() throws Exception {
+        
+        final CountDownLatch release = new CountDownLatch(1);
+        
+        try (ServiceTransactionListenerDispatcher dispatcher = new ServiceTransactionListenerDispatcher(1, 1, Overflow.DROP)) {
+            this.blockDispatcher(dispatcher, release);
+            
+            // fills the queue
+            this.completeGroup(dispatcher, () -> {});
+            assertThat(dispatcher.getQueueDepth(), is(1));
+            
+            // has no room
+            final CountDownLatch dropped = new CountDownLatch(1);
+            this.completeGroup(dispatcher, () -> dropped.countDown());
+            
+            release.countDown();
+            assertThat(dispatcher.shutdown(5, TimeUnit.SECONDS), is(true));
+            assertThat(dispatcher.getDropped(), is(1L));
+            assertThat(dispatcher.getDispatched(), is(2L));
+            assertThat(dropped.getCount(), is(1L));
+        }
+    }
+    
+    @Test
+    public void overflowInline() throws Exception {
+        
+        final CountDownLatch release = new CountDownLatch(1);
+        
+        try (ServiceTransactionListenerDispatcher dispatcher = new ServiceTransactionListenerDispatcher(1, 1, Overflow.INLINE)) {
+            this.blockDispatcher(dispatcher, release);
+            
+            // fills the queue
+            this.completeGroup(dispatcher, () -> {});
+            
+            // has no room, so runs on this thread
+            final AtomicReference<Thread> thread = new AtomicReference<>();
+            this.completeGroup(dispatcher, () -> thread.set(Thread.currentThread()));
+            
+            assertThat(thread.get(), is(sameInstance(Thread.currentThread())));
+            
+            release.countDown();
+            assertThat(dispatcher.shutdown(5, TimeUnit.SECONDS), is(true));
+            assertThat(dispatcher.getInlined(), is(1L));
+            assertThat(dispatcher.getDispatched(), is(2L));
+        }
+    }
+    
+    private void blockDispatcher(ServiceTransactionListenerDispatcher dispatcher, CountDownLatch release) throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        
+        this.completeGroup(dispatcher, () -> {
+            blocked.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        });
+        
+        assertThat(blocked.await(5, TimeUnit.SECONDS), is(true));
+    }
+    
+    private void completeGroup(ServiceTransactionListenerDispatcher dispatcher, Runnable onSuccess) {
+        final ServiceTransaction str1 = ServiceTransactions.begin("test1");
+        str1.getGroup().setListenerDispatcher(dispatcher);
+        str1.onSuccess(onSuccess);
+        str1.commit();
+        str1.end();
+    }
+    
+}
@@ -0,0 +1,67 @@
+package com.fizzed.transactional;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
+import org.junit.Test;
+
+public class ServiceTransactionWatchdogTest {
+    
+    @Test
+    public void reportsLongRunningGroupOnce() throws Exception {
+        final ServiceTransactionRegistry registry = new ServiceTransactionRegistry();
+        final List<ServiceTransactionWatchdog.Report> reports = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch begun = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        
+        ServiceTransactions.setRegistry(registry);
+        try (ServiceTransactionWatchdog watchdog = new ServiceTransactionWatchdog(
+                registry, 50, 10, TimeUnit.MILLISECONDS, (report) -> reports.add(report))) {
+            
+            final Thread worker = new Thread(() -> {
+                try (ServiceTransaction str1 = ServiceTransactions.begin("test1")) {
+                    try (ServiceTransaction str2 = ServiceTransactions.begin("test2")) {
+                        begun.countDown();
+                        release.await();
+                        str2.commit();
+                    }
+                    str1.commit();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "slow-worker");
+            worker.start();
+            
+            begun.await();
+            assertThat(registry.size(), is(1));
+            
+            // a few times the threshold, so it is checked more than once
+            Thread.sleep(250L);
+            
+            release.countDown();
+            worker.join(5000L);
+            
+            assertThat(reports.size(), is(1));
+            assertThat(watchdog.getReported(), is(1L));
+            
+            final ServiceTransactionWatchdog.Report report = reports.get(0);
+            assertThat(report.getThreadName(), is("slow-worker"));
+            assertThat(report.getDescriptors(), contains("test1", "test2"));
+            assertThat(report.getAgeNanos() >= TimeUnit.MILLISECONDS.toNanos(50), is(true));
+            assertThat(report.getStackTrace().length, greaterThan(0));
+            
+            assertThat(registry.size(), is(0));
+        }
+        finally {
+            ServiceTransactions.setRegistry(null);
+        }
+    }
+
+}
@@ -1,18 +1,45 @@
 package com.fizzed.transactional;
 
+import ch.qos.logback.classic.Level;
 import com.fizzed.transactional.ServiceTransaction.State;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.lessThan;
 import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 import org.junit.Test;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import org.mockito.ArgumentCaptor;
+import org.slf4j.LoggerFactory;
 
 public class ServiceTransactionsTest {
  
@@ -398,6 +425,32 @@ public class ServiceTransactionsTest {
         assertThat(ServiceTransactions.isActive(), is(false));
     }
     
+    @Test
+    public void twoLevelCommitWithUncommittedChildIsNotSuccessful() {
+        
+        final ServiceTransactionAdapter adapter1 = spy(new ServiceTransactionNoopAdapter());
+        final ServiceTransactionAdapter adapter2 = spy(new ServiceTransactionNoopAdapter());
+        
+        final ServiceTransaction str1 = ServiceTransactions.begin("test1", (b) -> adapter1);
+        final ServiceTransaction str2 = ServiceTransactions.begin("test2", (b) -> adapter2);
+        
+        // str2 neither committed nor ended, so the group is not ready to commit
+        str1.commit();
+        
+        assertThat(str1.getGroup().isCompleted(), is(true));
+        assertThat(str1.getGroup().wasSuccessful(), is(false));
+        
+        str2.end();
+        str1.end();
+        
+        assertThat(str1.getGroup().wasSuccessful(), is(false));
+        verify(adapter1, times(0)).commit();
+        verify(adapter2, times(0)).commit();
+        verify(adapter1, times(1)).rollback();
+        verify(adapter2, times(1)).rollback();
+        assertThat(ServiceTransactions.isActive(), is(false));
+    }
+    
     @Test
     public void twoLevelCommitTriggersRollbackWithRollbackFailing() {
         
@@ -495,4 +548,916 @@ public class ServiceTransactionsTest {
         assertThat(ServiceTransactions.isActive(), is(false));
     }
     
+    @Test
+    public void idempotencyOnlyFirstIsReal() {
+        
+        final List<Boolean> firsts = new ArrayList<>();
+        
+        final ServiceTransaction str1 = ServiceTransactions.begin("test1", "db1", (first) -> {
+            firsts.add(first);
+            return new ServiceTransactionNoopAdapter();
+        });
+        
+        final ServiceTransaction str2 = ServiceTransactions.begin("test2", "db1", (first) -> {
+            firsts.add(first);
+            return new ServiceTransactionNoopAdapter();
+        });
+        
+        final ServiceTransaction str3 = ServiceTransactions.begin("test3", "db2", (first) -> {
+            firsts.add(first);
+            return new ServiceTransactionNoopAdapter();
+        });
+        
+        final ServiceTransaction str4 = ServiceTransactions.begin("test4", "db1", (first) -> {
+            firsts.add(first);
+            return new ServiceTransactionNoopAdapter();
+        });
+        
+        assertThat(firsts, contains(true, false, true, false));
+        
+        str4.commit();
+        str4.end();
+        str3.commit();
+        str3.end();
+        str2.commit();
+        str2.end();
+        str1.commit();
+        str1.end();
+        
+        assertThat(str1.getGroup().wasSuccessful(), is(true));
+        assertThat(ServiceTransactions.isActive(), is(false));
+    }
+    
+    @Test
+    public void readOnlyCannotBeJoinedByWrite() {
+        
+        final ServiceTransaction str1 = ServiceTransactions.begin("test1", "db1", true, (first) -> new ServiceTransactionNoopAdapter());
+        
+        // a nested read is fine
+        final ServiceTransaction str2 = ServiceTransactions.begin("test2", "db1", true, (first) -> new ServiceTransactionNoopAdapter());
+        
+        assertThat(str1.isReadOnly(), is(true));
+        assertThat(str2.isReadOnly(), is(true));
+        assertThat(str1.getGroup().isReadOnly(), is(true));
+        
+        try {
+            ServiceTransactions.begin("test3", "db1", (first) -> new ServiceTransactionNoopAdapter());
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        
+        str2.commit();
+        str2.end();
+        str1.commit();
+        str1.end();
+        
+        assertThat(str1.getGroup().wasSuccessful(), is(true));
+        assertThat(ServiceTransactions.isActive(), is(false));
+    }
+    
+    @Test
+    public void savepointRollbackOnlyUndoesNestedWork() {
+        
+        final ServiceTransactionAdapter adapter1 = mock(ServiceTransactionAdapter.class);
+        final ServiceTransactionSavepointAdapter adapter2 = mock(ServiceTransactionSavepointAdapter.class);
+        final ServiceTransactionSavepointAdapter adapter3 = mock(ServiceTransactionSavepointAdapter.class);
+        
+        final ServiceTransaction str1 = ServiceTransactions.begin("test1", (first) -> adapter1);
+        final ServiceTransaction str2 = ServiceTransactions.begin("test2", (first) -> adapter2);
+        
+        // implicit rollback of the nested work only
+        str2.end();
+        
+        assertThat(str2.getState(), is(State.ROLLBACK));
+        assertThat(str2.isRolledBackToSavepoint(), is(true));
+        verify(adapter2, times(1)).rollback();
+        
+        final ServiceTransaction str3 = ServiceTransactions.begin("test3", (first) -> adapter3);
+        
+        str3.commit();
+        str3.end();
+        str1.commit();
+        str1.end();
+        
+        assertThat(str1.getGroup().wasSuccessful(), is(true));
+        assertThat(str1.getState(), is(State.COMMITTED));
+        assertThat(str3.getState(), is(State.COMMITTED));
+        verify(adapter1, times(1)).commit();
+        verify(adapter2, times(0)).commit();
+        verify(adapter3, times(1)).commit();
+        verify(adapter1, times(0)).rollback();
+        assertThat(ServiceTransactions.isActive(), is(false));
+    }
+    
+    @Test
+    public void pooledReusesGroupAndTransactions() {
+        
+        ServiceTransactions.setPooled(true);
+        try {
+            final ServiceTransactionAdapter adapter1 = spy(new ServiceTransactionNoopAdapter());
+
+            final ServiceTransaction str1 = ServiceTransactions.begin("test1", (b) -> adapter1);
+            final ServiceTransaction str2 = ServiceTransactions.begin("test2", (b) -> adapter1);
+            final ServiceTransactionGroup group = str1.getGroup();
+            final long groupId = group.getId();
+
+            str2.commit();
+            str2.end();
+            str1.commit();
+            str1.end();
+
+            assertThat(group.wasSuccessful(), is(true));
+            assertThat(ServiceTransactions.isActive(), is(false));
+            verify(adapter1, times(2)).commit();
+
+            // next group on this thread recycles the completed one
+            final ServiceTransaction str3 = ServiceTransactions.begin("test3", (b) -> adapter1);
+
+            assertThat(str3, is(sameInstance(str1)));
+            assertThat(str3.getGroup(), is(sameInstance(group)));
+            assertThat(group.getId(), is(not(groupId)));
+            assertThat(group.isCompleted(), is(false));
+            assertThat(str3.getDescriptor(), is("test3"));
+            assertThat(str3.getState(), is(State.ACTIVE));
+            assertThat(ServiceTransactions.isActive(), is(true));
+
+            str3.end();
+
+            assertThat(group.wasSuccessful(), is(false));
+            verify(adapter1, times(1)).rollback();
+            assertThat(ServiceTransactions.isActive(), is(false));
+        }
+        finally {
+            ServiceTransactions.setPooled(false);
+            ServiceTransactions.clear();
+        }
+    }
+    
+    @Test
+    public void pooledSteadyStateDoesNotAllocate() {
+        
+        final java.lang.management.ThreadMXBean mxbean = ManagementFactory.getThreadMXBean();
+        assumeTrue(mxbean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)mxbean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        
+        // debug logging allocates its arguments, which is not what we're measuring
+        final ch.qos.logback.classic.Logger groupLog
+            = (ch.qos.logback.classic.Logger)LoggerFactory.getLogger(ServiceTransactionGroup.class);
+        final Level level = groupLog.getLevel();
+        groupLog.setLevel(Level.INFO);
+        
+        ServiceTransactions.setPooled(true);
+        try {
+            final ServiceTransactionAdapter adapter1 = new ServiceTransactionNoopAdapter();
+            final Function<Boolean,ServiceTransactionAdapter> supplier = (b) -> adapter1;
+            
+            // warmup fills the pool
+            for (int i = 0; i < 20000; i++) {
+                this.beginCommitEnd(supplier);
+            }
+            
+            final long threadId = Thread.currentThread().getId();
+            final long before = threads.getThreadAllocatedBytes(threadId);
+            
+            for (int i = 0; i < 20000; i++) {
+                this.beginCommitEnd(supplier);
+            }
+            
+            final long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+            
+            // allow for a few bytes from the measurement itself, but nothing per iteration
+            assertThat(allocated, lessThan(1024L));
+        }
+        finally {
+            ServiceTransactions.setPooled(false);
+            ServiceTransactions.clear();
+            groupLog.setLevel(level);
+        }
+    }
+    
+    private void beginCommitEnd(Function<Boolean,ServiceTransactionAdapter> supplier) {
+        final ServiceTransaction str1 = ServiceTransactions.begin("test1", supplier);
+        final ServiceTransaction str2 = ServiceTransactions.begin("test2", supplier);
+        str2.commit();
+        str2.end();
+        str1.commit();
+        str1.end();
+    }
+    
+    @Test
+    public void explicitContext() {
+        
+        final ServiceTransactionContext context = new ServiceTransactionContext();
+        final ServiceTransactionAdapter adapter1 = spy(new ServiceTransactionNoopAdapter());
+        
+        final ServiceTransaction str1 = ServiceTransactions.begin(context, "test1", (b) -> adapter1);
+        final ServiceTransaction str2 = ServiceTransactions.begin(context, "test2", (b) -> adapter1);
+        
+        // nothing is bound to the thread
+        assertThat(ServiceTransactions.isActive(), is(false));
+        assertThat(context.get(), is(sameInstance(str1.getGroup())));
+        assertThat(str2.getGroup(), is(sameInstance(str1.getGroup())));
+        
+        str2.commit();
+        str2.end();
+        str1.commit();
+        str1.end();
+        
+        assertThat(str1.getGroup().wasSuccessful(), is(true));
+        assertThat(context.get(), is(nullValue()));
+        verify(adapter1, times(2)).commit();
+    }
+    
+    @Test
+    public void scopedStorageAcrossThreads() throws Exception {
+        
+        final ServiceTransactionScopedStorage storage = new ServiceTransactionScopedStorage();
+        final ServiceTransactionContext context = new ServiceTransactionContext();
+        final ServiceTransactionAdapter adapter1 = spy(new ServiceTransactionNoopAdapter());
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        
+        ServiceTransactions.setStorage(storage);
+        try {
+            final ServiceTransaction str1 = storage.call(context, () -> {
+                return ServiceTransactions.begin("test1", (b) -> adapter1);
+            });
+            
+            // nothing remains bound once the scope exits
+            assertThat(storage.context(), is(nullValue()));
+            assertThat(ServiceTransactions.isActive(), is(false));
+            
+            // continue the group on another thread
+            final ServiceTransaction str2 = executor.submit(() -> {
+                return storage.call(context, () -> {
+                    assertThat(ServiceTransactions.isActive(), is(true));
+                    return ServiceTransactions.begin("test2", (b) -> adapter1);
+                });
+            }).get();
+            
+            assertThat(str2.getGroup(), is(sameInstance(str1.getGroup())));
+            
+            storage.run(context, () -> {
+                str2.commit();
+                str2.end();
+                str1.commit();
+                str1.end();
+            });
+            
+            assertThat(str1.getGroup().wasSuccessful(), is(true));
+            assertThat(context.get(), is(nullValue()));
+            verify(adapter1, times(2)).commit();
+            
+            try {
+                ServiceTransactions.begin("test3", (b) -> adapter1);
+                fail();
+            } catch (IllegalStateException e) {
+                // expected, no scope is bound
+            }
+        }
+        finally {
+            ServiceTransactions.setStorage(new ServiceTransactionThreadLocalStorage());
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void twoLevelCommitAsync() throws Exception {
+        
+        final CompletableFuture<Void> commit1 = new CompletableFuture<>();
+        final ServiceTransactionAsyncAdapter adapter1 = mock(ServiceTransactionAsyncAdapter.class);
+        when(adapter1.commitAsync()).thenReturn(commit1);
+        final ServiceTransactionAdapter adapter2 = spy(new ServiceTransactionNoopAdapter());
+        final Runnable listener1 = mock(Runnable.class);
+        
+        final ServiceTransaction str1 = ServiceTransactions.begin("test1", (b) -> adapter1);
+        final ServiceTransaction str2 = ServiceTransactions.begin("test2", (b) -> adapter2);
+        str1.onSuccess(listener1);
+        
+        assertThat(str2.commitAsync().isDone(), is(true));
+        str2.end();
+        
+        final CompletableFuture<Void> future = str1.commitAsync();
+        str1.end();
+        
+        // sync adapter committed inline, async one is still in flight
+        verify(adapter2, times(1)).commit();
+        verify(adapter1, times(1)).commitAsync();
+        assertThat(future.isDone(), is(false));
+        assertThat(str1.getGroup().isCompleted(), is(false));
+        verify(listener1, times(0)).run();
+        // group was released, so this thread may begin a new one
+        assertThat(ServiceTransactions.isActive(), is(false));
+        
+        commit1.complete(null);
+        
+        future.get(5, TimeUnit.SECONDS);
+        assertThat(str1.getState(), is(State.COMMITTED));
+        assertThat(str1.getGroup().wasSuccessful(), is(true));
+        verify(listener1, times(1)).run();
+        verify(adapter1, times(0)).rollbackAsync();
+    }
+    
+    @Test
+    public void twoLevelCommitAsyncTriggersRollback() throws Exception {
+        
+        final ServiceTransactionAsyncAdapter adapter1 = mock(ServiceTransactionAsyncAdapter.class);
+        when(adapter1.rollbackAsync()).thenReturn(CompletableFuture.completedFuture(null));
+        final RuntimeException e2 = new RuntimeException("Commit causes rollback");
+        final ServiceTransactionAsyncAdapter adapter2 = mock(ServiceTransactionAsyncAdapter.class);
+        final CompletableFuture<Void> commit2 = new CompletableFuture<>();
+        when(adapter2.commitAsync()).thenReturn(commit2);
+        
+        final ServiceTransaction str1 = ServiceTransactions.begin("test1", (b) -> adapter1);
+        final ServiceTransaction str2 = ServiceTransactions.begin("test2", (b) -> adapter2);
+        
+        str2.commitAsync();
+        str2.end();
+        
+        final CompletableFuture<Void> future = str1.commitAsync();
+        
+        commit2.completeExceptionally(e2);
+        
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(ServiceTransactionException.class));
+            assertThat(e.getCause().getCause(), is(e2));
+        }
+        
+        str1.end();
+        
+        assertThat(str1.getGroup().wasSuccessful(), is(false));
+        assertThat(str2.getCause(), is(e2));
+        assertThat(str2.getState(), is(State.ROLLBACK));
+        assertThat(str1.getState(), is(State.ROLLBACK));
+        verify(adapter1, times(0)).commitAsync();
+        verify(adapter1, times(1)).rollbackAsync();
+    }
+    
+    @Test
+    public void twoLevelParallelCommit() throws Exception {
+        
+        // each commit waits on the other to start, which only works in parallel
+        final CountDownLatch started1 = new CountDownLatch(1);
+        final CountDownLatch started2 = new CountDownLatch(1);
+        final ServiceTransactionAdapter adapter1 = spy(new ServiceTransactionNoopAdapter() {
+            @Override
+            public void commit() {
+                started1.countDown();
+                await(started2);
+            }
+        });
+        final ServiceTransactionAdapter adapter2 = spy(new ServiceTransactionNoopAdapter() {
+            @Override
+            public void commit() {
+                started2.countDown();
+                await(started1);
+            }
+        });
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        
+        ServiceTransactions.setParallelCommitExecutor(executor);
+        try {
+            final ServiceTransaction str1 = ServiceTransactions.begin("test1", (b) -> adapter1);
+            final ServiceTransaction str2 = ServiceTransactions.begin("test2", (b) -> adapter2);
+            
+            assertThat(str1.getGroup().getParallelCommitExecutor(), is(sameInstance(executor)));
+            
+            str2.commit();
+            str2.end();
+            str1.commit();
+            str1.end();
+            
+            assertThat(str1.getGroup().wasSuccessful(), is(true));
+            assertThat(str1.getState(), is(State.COMMITTED));
+            assertThat(str2.getState(), is(State.COMMITTED));
+            verify(adapter1, times(1)).commit();
+            verify(adapter2, times(1)).commit();
+            assertThat(ServiceTransactions.isActive(), is(false));
+        }
+        finally {
+            ServiceTransactions.setParallelCommitExecutor(null);
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void parallelCommitOfOneResourceStaysInline() throws Exception {
+        
+        final ServiceTransactionAdapter adapter1 = spy(new ServiceTransactionNoopAdapter());
+        final AtomicInteger submitted = new AtomicInteger();
+        final Executor executor = (task) -> {
+            submitted.incrementAndGet();
+            task.run();
+        };
+        
+        final ServiceTransaction str1 = ServiceTransactions.begin("test1", "db", (b) -> adapter1);
+        str1.getGroup().setParallelCommitExecutor(executor);
+        
+        // nested transactions of the same idempotency have no resource of their own
+        try (ServiceTransaction str2 = ServiceTransactions.begin("test2", "db", (b) -> new ServiceTransactionNoopAdapter())) {
+            str2.commit();
+        }
+        
+        str1.commit();
+        str1.end();
+        
+        assertThat(str1.getGroup().wasSuccessful(), is(true));
+        assertThat(submitted.get(), is(0));
+        verify(adapter1, times(1)).commit();
+    }
+    
+    @Test
+    public void twoLevelParallelCommitTriggersRollback() throws Exception {
+        
+        final ServiceTransactionAdapter adapter1 = spy(new ServiceTransactionNoopAdapter());
+        final ServiceTransactionAdapter adapter2 = spy(new ServiceTransactionNoopAdapter());
+        final RuntimeException e2 = new RuntimeException("Commit causes rollback");
+        doThrow(e2).when(adapter2).commit();
+        // single thread runs the inner-most commit first, then the outer sees it failed
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        
+        try {
+            final ServiceTransaction str1 = ServiceTransactions.begin("test1", (b) -> adapter1);
+            str1.getGroup().setParallelCommitExecutor(executor);
+            final ServiceTransaction str2 = ServiceTransactions.begin("test2", (b) -> adapter2);
+            
+            str2.commit();
+            str2.end();
+            
+            try {
+                str1.commit();
+                fail();
+            } catch (ServiceTransactionException e) {
+                assertThat(e.getCause(), is(e2));
+            }
+            
+            str1.end();
+            
+            assertThat(str1.getGroup().wasSuccessful(), is(false));
+            assertThat(str2.getState(), is(State.ROLLBACK));
+            assertThat(str1.getState(), is(State.ROLLBACK));
+            verify(adapter2, times(1)).commit();
+            verify(adapter2, times(0)).rollback();
+            verify(adapter1, times(0)).commit();
+            verify(adapter1, times(1)).rollback();
+            assertThat(ServiceTransactions.isActive(), is(false));
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+    
+    static private void await(CountDownLatch latch) {
+        try {
+            if (!latch.await(5, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Timed out waiting on latch");
+            }
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    @Test
+    public void lazyAdapterNeverAcquired() {
+        
+        final ServiceTransactionAdapter adapter1 = spy(new ServiceTransactionNoopAdapter());
+        final ServiceTransactionLazyAdapter<ServiceTransactionAdapter> lazy1 = new ServiceTransactionLazyAdapter<>(() -> adapter1);
+        
+        final ServiceTransaction str1 = ServiceTransactions.begin("test1", (b) -> lazy1);
+        
+        str1.commit();
+        str1.end();
+        
+        assertThat(str1.getGroup().wasSuccessful(), is(true));
+        assertThat(lazy1.isAcquired(), is(false));
+        verify(adapter1, times(0)).commit();
+        verify(adapter1, times(0)).rollback();
+    }
+    
+    @Test
+    public void lazyAdapterAcquiredByNested() {
+        
+        final ServiceTransactionAdapter adapter1 = spy(new ServiceTransactionNoopAdapter());
+        final ServiceTransactionLazyAdapter<ServiceTransactionAdapter> lazy1 = new ServiceTransactionLazyAdapter<>(() -> adapter1);
+        final Function<Boolean,ServiceTransactionAdapter> supplier = (first) -> first ? lazy1 : new ServiceTransactionNoopAdapter();
+        
+        final ServiceTransaction str1 = ServiceTransactions.begin("test1", "db1", supplier);
+        final ServiceTransaction str2 = ServiceTransactions.begin("test2", "db1", supplier);
+        
+        // nested transaction resolves to the adapter of the first
+        assertThat(str2.getResourceAdapter(), is(sameInstance(lazy1)));
+        assertThat(((ServiceTransactionLazyAdapter<?>)str2.getResourceAdapter()).get(), is(sameInstance(adapter1)));
+        
+        str2.commit();
+        str2.end();
+        str1.commit();
+        str1.end();
+        
+        assertThat(str1.getGroup().wasSuccessful(), is(true));
+        assertThat(lazy1.isAcquired(), is(true));
+        verify(adapter1, times(1)).commit();
+    }
+    
+    @Test
+    public void nestedBeginTightensDeadlineOnlyForItsScope() {
+        
+        final ServiceTransaction str1 = ServiceTransactions.begin("test1", (b) -> new ServiceTransactionNoopAdapter(), new ServiceTransactionOptions().timeout(1, TimeUnit.HOURS));
+        final ServiceTransactionGroup group = str1.getGroup();
+        
+        assertThat(group.hasDeadline(), is(true));
+        assertThat(group.getRemainingNanos() > TimeUnit.MINUTES.toNanos(59), is(true));
+        
+        // a longer timeout never extends the budget
+        final ServiceTransaction str2 = ServiceTransactions.begin("test2", (b) -> new ServiceTransactionNoopAdapter(), new ServiceTransactionOptions().timeout(2, TimeUnit.HOURS));
+        assertThat(group.getRemainingNanos() <= TimeUnit.HOURS.toNanos(1), is(true));
+        
+        final ServiceTransaction str3 = ServiceTransactions.begin("test3", (b) -> new ServiceTransactionNoopAdapter(), new ServiceTransactionOptions().timeout(1, TimeUnit.MINUTES));
+        assertThat(group.getRemainingNanos() <= TimeUnit.MINUTES.toNanos(1), is(true));
+        
+        str3.commit();
+        str3.end();
+        
+        // a nested timeout only bounds its own scope
+        assertThat(group.getRemainingNanos() > TimeUnit.MINUTES.toNanos(59), is(true));
+        assertThat(group.getRemainingNanos() <= TimeUnit.HOURS.toNanos(1), is(true));
+        
+        str2.commit();
+        str2.end();
+        str1.commit();
+        str1.end();
+        
+        assertThat(group.wasSuccessful(), is(true));
+        
+        // a new group starts without a deadline
+        try (ServiceTransaction str4 = ServiceTransactions.begin("test4")) {
+            assertThat(str4.getGroup().hasDeadline(), is(false));
+            assertThat(str4.getGroup().getRemainingNanos(), is(Long.MAX_VALUE));
+            str4.commit();
+        }
+    }
+    
+    @Test
+    public void nestedScopeDeadlineEndsWithRollback() {
+        
+        final ServiceTransaction str1 = ServiceTransactions.begin("test1", (b) -> new ServiceTransactionNoopAdapter(), new ServiceTransactionOptions().timeout(1, TimeUnit.HOURS));
+        final ServiceTransactionGroup group = str1.getGroup();
+        
+        final ServiceTransaction str2 = ServiceTransactions.begin("test2", (b) -> new ServiceTransactionNoopAdapter(), new ServiceTransactionOptions().timeout(1, TimeUnit.MINUTES));
+        final ServiceTransaction str3 = ServiceTransactions.begin("test3", (b) -> new ServiceTransactionNoopAdapter(), new ServiceTransactionOptions().timeout(2, TimeUnit.MINUTES));
+        
+        // the tightest active scope wins
+        assertThat(group.getRemainingNanos() <= TimeUnit.MINUTES.toNanos(1), is(true));
+        
+        str2.rollback();
+        
+        // the remaining scope still applies
+        assertThat(group.getRemainingNanos() > TimeUnit.MINUTES.toNanos(1), is(true));
+        assertThat(group.getRemainingNanos() <= TimeUnit.MINUTES.toNanos(2), is(true));
+        
+        str3.end();
+        str1.end();
+        
+        assertThat(ServiceTransactions.isActive(), is(false));
+    }
+    
+    @Test
+    public void deadlineIsAppliedToSuppliedAdapters() {
+        
+        final ServiceTransactionAdapter adapter1 = mock(ServiceTransactionAdapter.class);
+        final ServiceTransactionAdapter adapter2 = mock(ServiceTransactionAdapter.class);
+        
+        try (ServiceTransaction str1 = ServiceTransactions.begin("test1", (b) -> adapter1, new ServiceTransactionOptions().idempotency("db1").timeout(1, TimeUnit.HOURS))) {
+            final ArgumentCaptor<Long> deadline = ArgumentCaptor.forClass(Long.class);
+            verify(adapter1, times(1)).applyDeadline(deadline.capture());
+            
+            final long remaining = deadline.getValue() - System.nanoTime();
+            assertThat(remaining > TimeUnit.MINUTES.toNanos(59) && remaining <= TimeUnit.HOURS.toNanos(1), is(true));
+            
+            str1.commit();
+        }
+        
+        // a group without a deadline leaves its adapters alone
+        try (ServiceTransaction str1 = ServiceTransactions.begin("test1", "db2", (b) -> adapter2)) {
+            str1.commit();
+        }
+        
+        verify(adapter2, times(0)).applyDeadline(anyLong());
+    }
+    
+    @Test
+    public void nestedTimeoutIsAppliedToItsAdapter() {
+        
+        final ServiceTransactionAdapter adapter1 = mock(ServiceTransactionAdapter.class);
+        final ServiceTransactionAdapter adapter2 = mock(ServiceTransactionAdapter.class);
+        
+        try (ServiceTransaction str1 = ServiceTransactions.begin("test1", (b) -> adapter1, new ServiceTransactionOptions().idempotency("db1").timeout(1, TimeUnit.HOURS))) {
+            try (ServiceTransaction str2 = ServiceTransactions.begin("test2", (b) -> adapter2, new ServiceTransactionOptions().idempotency("db2").timeout(1, TimeUnit.MINUTES))) {
+                final ArgumentCaptor<Long> deadline = ArgumentCaptor.forClass(Long.class);
+                verify(adapter2, times(1)).applyDeadline(deadline.capture());
+                
+                // its own timeout, not what is left of the group
+                assertThat(deadline.getValue() - System.nanoTime() <= TimeUnit.MINUTES.toNanos(1), is(true));
+                
+                str2.commit();
+            }
+            str1.commit();
+        }
+    }
+    
+    @Test
+    public void nestedScopeOverrunFailsGroup() throws Exception {
+        
+        final ServiceTransactionAdapter adapter1 = spy(new ServiceTransactionNoopAdapter());
+        
+        final ServiceTransaction str1 = ServiceTransactions.begin("test1", (b) -> adapter1, new ServiceTransactionOptions().timeout(1, TimeUnit.HOURS));
+        final ServiceTransaction str2 = ServiceTransactions.begin("test2", (b) -> new ServiceTransactionNoopAdapter(), new ServiceTransactionOptions().timeout(20, TimeUnit.MILLISECONDS));
+        
+        Thread.sleep(50L);
+        
+        try {
+            str2.commit();
+            fail();
+        } catch (ServiceTransactionTimeoutException e) {
+            assertThat(str2.getCause(), is(e));
+        }
+        
+        assertThat(str2.getState(), is(State.ROLLBACK));
+        // the group itself still has time
+        assertThat(str1.getGroup().isExpired(), is(false));
+        
+        str2.end();
+        
+        try {
+            str1.commit();
+            fail();
+        } catch (ServiceTransactionException e) {
+            // expected
+        }
+        
+        str1.end();
+        
+        assertThat(str1.getGroup().wasSuccessful(), is(false));
+        verify(adapter1, times(0)).commit();
+        verify(adapter1, times(1)).rollback();
+        assertThat(ServiceTransactions.isActive(), is(false));
+    }
+    
+    @Test
+    public void optionsCombineReadOnlyTimeoutAndLock() {
+        
+        final ServiceTransactionKeyLocks locks = new ServiceTransactionKeyLocks(16, 50, TimeUnit.MILLISECONDS);
+        final ServiceTransactionAdapter adapter1 = mock(ServiceTransactionAdapter.class);
+        final ServiceTransactionOptions options = new ServiceTransactionOptions()
+            .idempotency("db")
+            .readOnly(true)
+            .timeout(1, TimeUnit.HOURS)
+            .lock(locks, "a");
+        
+        try (ServiceTransaction str1 = ServiceTransactions.begin("test1", (b) -> adapter1, options)) {
+            assertThat(str1.isReadOnly(), is(true));
+            assertThat(str1.getGroup().hasDeadline(), is(true));
+            assertThat(locks.isLocked("a"), is(true));
+            verify(adapter1, times(1)).markReadOnly();
+            verify(adapter1, times(1)).applyDeadline(anyLong());
+            str1.commit();
+        }
+        
+        assertThat(locks.isLocked("a"), is(false));
+    }
+    
+    @Test
+    public void expiredDeadlineRefusesNestedBeginAndCommit() throws Exception {
+        
+        final ServiceTransactionAdapter adapter1 = spy(new ServiceTransactionNoopAdapter());
+        
+        final ServiceTransaction str1 = ServiceTransactions.begin("test1", (b) -> adapter1, new ServiceTransactionOptions().timeout(20, TimeUnit.MILLISECONDS));
+        
+        Thread.sleep(50L);
+        
+        assertThat(str1.getGroup().isExpired(), is(true));
+        
+        try {
+            ServiceTransactions.begin("test2", (b) -> new ServiceTransactionNoopAdapter());
+            fail();
+        } catch (ServiceTransactionTimeoutException e) {
+            // expected
+        }
+        
+        try {
+            str1.commit();
+            fail();
+        } catch (ServiceTransactionException e) {
+            assertThat(e.getCause(), instanceOf(ServiceTransactionTimeoutException.class));
+        }
+        
+        str1.end();
+        
+        assertThat(str1.getGroup().wasSuccessful(), is(false));
+        verify(adapter1, times(0)).commit();
+        verify(adapter1, times(1)).rollback();
+        assertThat(ServiceTransactions.isActive(), is(false));
+    }
+    
+    @Test
+    public void parallelTasksJoinGroupAndCommitTogether() throws Exception {
+        
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            final ServiceTransactionAdapter adapter1 = spy(new ServiceTransactionNoopAdapter());
+            final List<ServiceTransactionAdapter> adapters = new ArrayList<>();
+            final List<Callable<String>> tasks = new ArrayList<>();
+            // every task must be running at the same time to get past the barrier
+            final CyclicBarrier barrier = new CyclicBarrier(3);
+            
+            for (int i = 0; i < 3; i++) {
+                final String descriptor = "child" + i;
+                final ServiceTransactionAdapter adapter = spy(new ServiceTransactionNoopAdapter());
+                adapters.add(adapter);
+                tasks.add(() -> {
+                    try (ServiceTransaction str = ServiceTransactions.begin(descriptor, (b) -> adapter)) {
+                        barrier.await(5, TimeUnit.SECONDS);
+                        str.commit();
+                        return descriptor;
+                    }
+                });
+            }
+            
+            final ServiceTransaction str1 = ServiceTransactions.begin("test1", (b) -> adapter1);
+            
+            final List<String> results = ServiceTransactions.parallel(tasks, executor);
+            
+            assertThat(results, contains("child0", "child1", "child2"));
+            
+            // nothing is truly committed until the parent is
+            verify(adapters.get(0), times(0)).commit();
+            
+            str1.commit();
+            str1.end();
+            
+            assertThat(str1.getGroup().wasSuccessful(), is(true));
+            assertThat(str1.getGroup().descriptors().size(), is(4));
+            verify(adapter1, times(1)).commit();
+            for (ServiceTransactionAdapter adapter : adapters) {
+                verify(adapter, times(1)).commit();
+                verify(adapter, times(0)).rollback();
+            }
+            assertThat(ServiceTransactions.isActive(), is(false));
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void parallelTaskFailureRollsBackGroup() throws Exception {
+        
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final ServiceTransactionAdapter adapter1 = spy(new ServiceTransactionNoopAdapter());
+            final ServiceTransactionAdapter adapter2 = spy(new ServiceTransactionNoopAdapter());
+            final ServiceTransactionAdapter adapter3 = spy(new ServiceTransactionNoopAdapter());
+            
+            final List<Callable<Integer>> tasks = Arrays.asList(
+                () -> {
+                    try (ServiceTransaction str = ServiceTransactions.begin("child1", (b) -> adapter2)) {
+                        str.commit();
+                        return 1;
+                    }
+                },
+                () -> {
+                    try (ServiceTransaction str = ServiceTransactions.begin("child2", (b) -> adapter3)) {
+                        throw new IllegalStateException("Unable to load");
+                    }
+                });
+            
+            final ServiceTransaction str1 = ServiceTransactions.begin("test1", (b) -> adapter1);
+            
+            try {
+                ServiceTransactions.parallel(tasks, executor);
+                fail();
+            } catch (ServiceTransactionException e) {
+                assertThat(e.getCause(), instanceOf(IllegalStateException.class));
+            }
+            
+            // a commit of the parent still rolls back the group as a whole
+            str1.commit();
+            str1.end();
+            
+            assertThat(str1.getGroup().wasSuccessful(), is(false));
+            verify(adapter1, times(0)).commit();
+            verify(adapter2, times(0)).commit();
+            verify(adapter3, times(0)).commit();
+            verify(adapter1, times(1)).rollback();
+            verify(adapter2, times(1)).rollback();
+            verify(adapter3, times(1)).rollback();
+            assertThat(ServiceTransactions.isActive(), is(false));
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void parallelTaskCannotShareBegunIdempotency() throws Exception {
+        
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final ServiceTransactionAdapter adapter1 = spy(new ServiceTransactionNoopAdapter());
+            
+            final List<Callable<Integer>> tasks = Arrays.asList(
+                () -> {
+                    try (ServiceTransaction str = ServiceTransactions.begin("child1", "db", (b) -> adapter1)) {
+                        str.commit();
+                        return 1;
+                    }
+                });
+            
+            final ServiceTransaction str1 = ServiceTransactions.begin("test1", "db", (b) -> adapter1);
+            
+            try {
+                ServiceTransactions.parallel(tasks, executor);
+                fail();
+            } catch (ServiceTransactionException e) {
+                assertThat(e.getCause(), instanceOf(IllegalStateException.class));
+            }
+            
+            // once the tasks are done the idempotency may be shared again
+            try (ServiceTransaction str2 = ServiceTransactions.begin("test2", "db", (b) -> new ServiceTransactionNoopAdapter())) {
+                assertThat(str2.getResourceAdapter(), sameInstance(adapter1));
+                str2.commit();
+            }
+            
+            str1.commit();
+            str1.end();
+            
+            // the rejected begin never joined the group, so it commits once
+            assertThat(str1.getGroup().wasSuccessful(), is(true));
+            verify(adapter1, times(1)).commit();
+            assertThat(ServiceTransactions.isActive(), is(false));
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test(expected=IllegalStateException.class)
+    public void parallelRequiresRunningGroup() {
+        
+        ServiceTransactions.parallel(new ArrayList<Callable<Object>>(), Runnable::run);
+    }
+    
+    @Test
+    @SuppressWarnings("deprecation")
+    public void deprecatedTimerViewsElapsedTime() throws Exception {
+        
+        final ServiceTransaction str1 = ServiceTransactions.begin("test1");
+        final ServiceTransactionGroup group = str1.getGroup();
+        
+        assertThat(group.getTimer().isRunning(), is(true));
+        
+        Thread.sleep(5L);
+        
+        str1.commit();
+        str1.end();
+        
+        assertThat(group.getTimer().isStopped(), is(true));
+        assertThat(group.getTimer().elapsedNanos(), is(group.getElapsedNanos()));
+        assertThat(group.getTimer().elapsedMillis() >= 5.0d, is(true));
+    }
+    
+    @Test
+    public void readOnlyAdapterRequiresReadOnlyBegin() {
+        
+        final ServiceTransactionAdapter adapter1 = mock(ServiceTransactionAdapter.class);
+        when(adapter1.isReadOnly()).thenReturn(true);
+        
+        try {
+            ServiceTransactions.begin("test1", "db1", false, (first) -> adapter1);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        
+        // its resource is released rather than left open
+        verify(adapter1, times(1)).rollback();
+        assertThat(ServiceTransactions.isActive(), is(false));
+        
+        final ServiceTransactionAdapter adapter2 = mock(ServiceTransactionAdapter.class);
+        
+        try (ServiceTransaction str1 = ServiceTransactions.begin("test1", "db1", true, (first) -> adapter2)) {
+            try (ServiceTransaction str2 = ServiceTransactions.begin("test2", "db1", true, (first) -> first ? adapter2 : new ServiceTransactionNoopAdapter())) {
+                str2.commit();
+            }
+            str1.commit();
+        }
+        
+        // only the adapter of the first is told
+        verify(adapter2, times(1)).markReadOnly();
+        verify(adapter2, times(1)).commit();
+    }
+    
 }
\ No newline at end of file
@@ -16,16 +16,145 @@
 package com.fizzed.transactional.ebean;
 
 import com.fizzed.transactional.ServiceTransactionAdapter;
+import io.ebean.EbeanServer;
 import io.ebean.Transaction;
+import io.ebeaninternal.api.SpiEbeanServer;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import javax.persistence.PersistenceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class EbeanServiceTransactionAdapter implements ServiceTransactionAdapter {
+    static private final Logger log = LoggerFactory.getLogger(EbeanServiceTransactionAdapter.class);
+    // the driver's timeout work runs inline (as connection pools do)
+    static private final Executor DIRECT = Runnable::run;
+    static private volatile boolean detachUnsupported;
  
+    private final EbeanServer ebean;
     private final Transaction transaction;
+    private boolean readOnly;
+    private boolean networkTimeout;
+    private int previousNetworkTimeout;
 
     public EbeanServiceTransactionAdapter(Transaction transaction) {
+        this(transaction, false);
+    }
+
+    /**
+     * @param transaction the ebean transaction
+     * @param readOnly if true, a commit only ends the transaction (there is
+     *      nothing to make durable, so no commit is sent to the database)
+     */
+    public EbeanServiceTransactionAdapter(Transaction transaction, boolean readOnly) {
+        this(null, transaction, readOnly);
+    }
+
+    /**
+     * @param ebean the ebean server that began the transaction (and bound it
+     *      to the thread as its current transaction) or null if not bound
+     * @param transaction the ebean transaction
+     * @param readOnly if true, a commit only ends the transaction (there is
+     *      nothing to make durable, so no commit is sent to the database)
+     */
+    public EbeanServiceTransactionAdapter(EbeanServer ebean, Transaction transaction, boolean readOnly) {
+        this.ebean = ebean;
         this.transaction = transaction;
+        this.readOnly = readOnly;
+    }
+
+    public Transaction getTransaction() {
+        return transaction;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+    
+    @Override
+    public void markReadOnly() {
+        // a read-only begin on the primary: mark it too, so a write is refused
+        // rather than committed
+        if (!this.readOnly) {
+            this.transaction.setReadOnly(true);
+            this.readOnly = true;
+        }
     }
 
+    /**
+     * Ebean transactions have no timeout of their own, so the deadline of the
+     * group is applied as the JDBC network timeout of the connection of the
+     * transaction: every statement it runs fails once the deadline passes,
+     * rather than blocking (e.g. on a lock). The previous network timeout is
+     * restored before the transaction ends and its connection returns to the
+     * pool, so its commit (and any batched statements it flushes) is not
+     * bounded. A driver that does not support network timeouts is left alone
+     * (use EbeanServiceTransactionManager.queryTimeout then).
+     * 
+     * @param deadlineNanos the deadline, in System.nanoTime terms
+     */
+    @Override
+    public void applyDeadline(long deadlineNanos) {
+        final long remaining = deadlineNanos - System.nanoTime();
+        // 0 is no timeout, so an expired deadline gets the smallest one
+        final int millis = (int)Math.max(1L, Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMillis(remaining)));
+        
+        try {
+            final Connection connection = this.transaction.getConnection();
+            final int previous = connection.getNetworkTimeout();
+            connection.setNetworkTimeout(DIRECT, millis);
+            this.previousNetworkTimeout = previous;
+            this.networkTimeout = true;
+        } catch (SQLFeatureNotSupportedException e) {
+            // nothing to bound it with
+        } catch (SQLException e) {
+            throw new PersistenceException("Unable to set network timeout", e);
+        }
+    }
+    
+    /**
+     * Unbinds the transaction from the current thread if it is its current
+     * ebean transaction (e.g. a parallel task began it on a pooled thread), so
+     * implicit ebean calls the thread runs next do not join it. Ebean has no
+     * public api for it, so the transaction manager of SpiEbeanServer is used
+     * (verified against ebean 12.8.0); should an ebean release change it, the
+     * transaction is left bound (logged once) until it ends.
+     */
+    @Override
+    public void detach() {
+        if (this.ebean == null || detachUnsupported || this.ebean.currentTransaction() != this.transaction) {
+            return;
+        }
+        try {
+            if (this.ebean instanceof SpiEbeanServer) {
+                // unlike clearServerTransaction, it unbinds a transaction that is still active
+                ((SpiEbeanServer)this.ebean).getTransactionManager().externalRemoveTransaction();
+            }
+        } catch (LinkageError e) {
+            // internal api of ebean, which may change in any release
+            detachUnsupported = true;
+            log.warn("Unable to detach ebean transaction from thread (unsupported ebean version?): {}", e.toString());
+        }
+    }
+    
+    private void restoreNetworkTimeout() {
+        if (!this.networkTimeout || !this.transaction.isActive()) {
+            return;
+        }
+        
+        this.networkTimeout = false;
+        
+        try {
+            this.transaction.getConnection().setNetworkTimeout(DIRECT, this.previousNetworkTimeout);
+        } catch (SQLException e) {
+            log.warn("Unable to restore network timeout of connection: {}", e.getMessage());
+        }
+    }
+    
     public boolean isSafeToIgnore(Exception e) {
         if (e != null) {
             if (e instanceof IllegalStateException) {
@@ -40,6 +169,7 @@ public class EbeanServiceTransactionAdapter implements ServiceTransactionAdapter
 
     @Override
     public void rollback() {
+        this.restoreNetworkTimeout();
         try {
             transaction.rollback();
         } catch (IllegalStateException e) {
@@ -53,7 +183,14 @@ public class EbeanServiceTransactionAdapter implements ServiceTransactionAdapter
 
     @Override
     public void commit() {
+        this.restoreNetworkTimeout();
         try {
+            if (readOnly) {
+                transaction.end();
+                return;
+            }
+            // ebean flushes any batched statements first (and on failure rolls
+            // back and ends the transaction), so nothing is left open
             transaction.commit();
         } catch (IllegalStateException e) {
             if (this.isSafeToIgnore(e)) {
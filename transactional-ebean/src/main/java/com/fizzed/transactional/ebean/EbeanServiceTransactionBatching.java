@@ -0,0 +1,85 @@
+package com.fizzed.transactional.ebean;
+
+import io.ebean.Transaction;
+
+/**
+ * JDBC batching applied to the ebean transaction of a group when it begins,
+ * so every save, insert, update and delete in the group (by any nested
+ * transaction) is queued and sent to the database in batches rather than one
+ * round trip per statement. Pending statements are flushed when the batch is
+ * full, before queries (unless disabled), and before the real commit.
+ * 
+ * <pre>
+ * EbeanServiceTransactionBatching batching = new EbeanServiceTransactionBatching()
+ *     .batchSize(500)
+ *     .getGeneratedKeys(false);
+ * 
+ * try (ServiceTransaction tx = ServiceTransactions.begin("ingest", "db", manager.supplier(batching))) {
+ *     ...
+ * }
+ * </pre>
+ */
+public class EbeanServiceTransactionBatching {
+    
+    private int batchSize;
+    private boolean flushOnQuery;
+    private boolean getGeneratedKeys;
+    
+    public EbeanServiceTransactionBatching() {
+        this.batchSize = 100;
+        this.flushOnQuery = true;
+        this.getGeneratedKeys = true;
+    }
+    
+    public int getBatchSize() {
+        return batchSize;
+    }
+    
+    /**
+     * @param batchSize the number of statements queued before they are sent
+     * @return this batching
+     */
+    public EbeanServiceTransactionBatching batchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be > 0");
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+    
+    public boolean isFlushOnQuery() {
+        return flushOnQuery;
+    }
+    
+    /**
+     * @param flushOnQuery false to leave statements queued when a query runs
+     *      (faster, but queries in the group will not see the queued writes)
+     * @return this batching
+     */
+    public EbeanServiceTransactionBatching flushOnQuery(boolean flushOnQuery) {
+        this.flushOnQuery = flushOnQuery;
+        return this;
+    }
+    
+    public boolean isGetGeneratedKeys() {
+        return getGeneratedKeys;
+    }
+    
+    /**
+     * @param getGeneratedKeys false to skip reading back generated keys of
+     *      batched inserts (faster, but their beans will not get their ids)
+     * @return this batching
+     */
+    public EbeanServiceTransactionBatching getGeneratedKeys(boolean getGeneratedKeys) {
+        this.getGeneratedKeys = getGeneratedKeys;
+        return this;
+    }
+    
+    public void apply(Transaction transaction) {
+        transaction.setBatchMode(true);
+        transaction.setBatchSize(this.batchSize);
+        transaction.setFlushOnQuery(this.flushOnQuery);
+        transaction.setGetGeneratedKeys(this.getGeneratedKeys);
+    }
+    
+}
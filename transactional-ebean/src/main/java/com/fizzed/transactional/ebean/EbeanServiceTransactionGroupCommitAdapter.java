@@ -0,0 +1,53 @@
+package com.fizzed.transactional.ebean;
+
+import com.fizzed.transactional.ServiceTransactionAsyncAdapter;
+import io.ebean.Transaction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Holds the writes of a group until it commits, then hands them to the
+ * group committer to be committed along with the writes of other groups.
+ */
+public class EbeanServiceTransactionGroupCommitAdapter implements ServiceTransactionAsyncAdapter {
+    
+    private final EbeanServiceTransactionGroupCommitter committer;
+    private List<Consumer<Transaction>> writes;
+
+    public EbeanServiceTransactionGroupCommitAdapter(EbeanServiceTransactionGroupCommitter committer) {
+        this.committer = committer;
+    }
+
+    public EbeanServiceTransactionGroupCommitter getCommitter() {
+        return committer;
+    }
+    
+    public void add(Consumer<Transaction> write) {
+        if (this.writes == null) {
+            this.writes = new ArrayList<>();
+        }
+        this.writes.add(write);
+    }
+    
+    @Override
+    public CompletableFuture<Void> rollbackAsync() {
+        // nothing was written yet
+        this.writes = null;
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Void> commitAsync() {
+        final List<Consumer<Transaction>> w = this.writes;
+        this.writes = null;
+        
+        if (w == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        
+        return this.committer.submit(w);
+    }
+    
+}
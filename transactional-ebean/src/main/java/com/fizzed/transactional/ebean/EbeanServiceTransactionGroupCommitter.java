@@ -0,0 +1,372 @@
+package com.fizzed.transactional.ebean;
+
+import com.fizzed.transactional.ServiceTransaction;
+import com.fizzed.transactional.ServiceTransactionAdapter;
+import com.fizzed.transactional.ServiceTransactionException;
+import com.fizzed.transactional.ServiceTransactionNoopAdapter;
+import io.ebean.EbeanServer;
+import io.ebean.Transaction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Commits the writes of many groups (from any number of threads) together in
+ * one ebean transaction, trading a little latency for far fewer commits.
+ * 
+ * The writes of a group are deferred: they are queued by write() and only run
+ * (on the committer thread, in the order they were queued) once the group
+ * commits. Writes are therefore not visible to reads within the group, and
+ * must only use the ebean transaction they are given. Once the first queued
+ * group is picked up, others are gathered until the batch is full or the
+ * window elapses, then all are run and committed at once.
+ * 
+ * The writes of each group run after a JDBC savepoint, so if one of them
+ * fails only that group is rolled back (to its savepoint) and fails with its
+ * cause, while the rest of the batch still commits. Writes are never replayed,
+ * since they are not safe to run twice (e.g. a bean saved by the rolled back
+ * attempt already has its id and version set). If rolling back to a savepoint
+ * fails, the whole batch is rolled back and every other group fails with a
+ * ServiceTransactionException noting it was only rolled back along with it
+ * (and is safe to retry). If the commit itself fails, every group fails too,
+ * but its outcome is unknown (the batch may have committed before, say, the
+ * connection dropped), so a retry must be safe to apply twice.
+ * 
+ * <pre>
+ * EbeanServiceTransactionGroupCommitter committer
+ *     = new EbeanServiceTransactionGroupCommitter(ebean, 100, 2, TimeUnit.MILLISECONDS);
+ * 
+ * try (ServiceTransaction tx = ServiceTransactions.begin("ingest", "events", committer.supplier())) {
+ *     committer.write(tx, (transaction) -&gt; ebean.save(event, transaction));
+ *     tx.commit();
+ * }
+ * </pre>
+ */
+public class EbeanServiceTransactionGroupCommitter implements AutoCloseable {
+    static private final Logger log = LoggerFactory.getLogger(EbeanServiceTransactionGroupCommitter.class);
+    static private final AtomicInteger INSTANCES = new AtomicInteger();
+    static private final long IDLE_MILLIS = 100L;
+    
+    private final EbeanServer ebean;
+    private final int maxBatchSize;
+    private final long windowNanos;
+    private final BlockingQueue<Pending> queue;
+    private final Thread thread;
+    private final LongAdder batches;
+    private final LongAdder commits;
+    private final LongAdder groups;
+    private volatile boolean closed;
+    
+    public EbeanServiceTransactionGroupCommitter(EbeanServer ebean, int maxBatchSize, long window, TimeUnit unit) {
+        Objects.requireNonNull(ebean, "ebean was null");
+        Objects.requireNonNull(unit, "unit was null");
+        
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize must be > 0");
+        }
+        
+        if (window < 0) {
+            throw new IllegalArgumentException("window must be >= 0");
+        }
+        
+        this.ebean = ebean;
+        this.maxBatchSize = maxBatchSize;
+        this.windowNanos = unit.toNanos(window);
+        this.queue = new LinkedBlockingQueue<>();
+        this.batches = new LongAdder();
+        this.commits = new LongAdder();
+        this.groups = new LongAdder();
+        this.thread = new Thread(this::loop, "transaction-group-committer-" + INSTANCES.incrementAndGet());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+    
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+    
+    /**
+     * Number of groups waiting to be picked up by the committer.
+     * 
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        return this.queue.size();
+    }
+    
+    /**
+     * Number of batches the committer ran.
+     * 
+     * @return the count
+     */
+    public long getBatches() {
+        return this.batches.sum();
+    }
+    
+    /**
+     * Number of batches committed successfully.
+     * 
+     * @return the count
+     */
+    public long getCommits() {
+        return this.commits.sum();
+    }
+    
+    /**
+     * Number of groups the committer ran (successfully or not).
+     * 
+     * @return the count
+     */
+    public long getGroups() {
+        return this.groups.sum();
+    }
+    
+    public Function<Boolean,ServiceTransactionAdapter> supplier() {
+        return (first) -> {
+            // only the first transaction queues the writes of the group
+            if (!first) {
+                return new ServiceTransactionNoopAdapter();
+            } else {
+                return new EbeanServiceTransactionGroupCommitAdapter(this);
+            }
+        };
+    }
+    
+    /**
+     * Queues a write to run when the group of the service transaction (or the
+     * first one of its idempotency) commits. It is discarded if it rolls back.
+     * 
+     * @param transaction the service transaction begun with supplier()
+     * @param write the write to run with the shared ebean transaction
+     */
+    public void write(ServiceTransaction transaction, Consumer<Transaction> write) {
+        Objects.requireNonNull(write, "write was null");
+        
+        final ServiceTransactionAdapter adapter = transaction.getResourceAdapter();
+        
+        if (!(adapter instanceof EbeanServiceTransactionGroupCommitAdapter)) {
+            throw new IllegalStateException("Service transaction " + transaction.getDescriptor()
+                + " is not backed by a group committer (did it begin with an idempotency?)");
+        }
+        
+        ((EbeanServiceTransactionGroupCommitAdapter)adapter).add(write);
+    }
+    
+    /**
+     * Queues the writes of a group to be committed with others.
+     * 
+     * @param writes the writes of the group
+     * @return a future completed once the writes are committed, or completed
+     *      exceptionally if they failed (and were rolled back)
+     */
+    public CompletableFuture<Void> submit(List<Consumer<Transaction>> writes) {
+        Objects.requireNonNull(writes, "writes was null");
+        
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        
+        if (this.closed) {
+            future.completeExceptionally(new IllegalStateException("Group committer is closed"));
+            return future;
+        }
+        
+        final Pending pending = new Pending(writes, future);
+        
+        this.queue.add(pending);
+        
+        // defend against queueing behind a committer that just stopped
+        if (this.closed && !this.thread.isAlive() && this.queue.remove(pending)) {
+            future.completeExceptionally(new IllegalStateException("Group committer is closed"));
+        }
+        
+        return future;
+    }
+    
+    /**
+     * Stops accepting writes and waits for the queued ones to commit.
+     * 
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return true if all queued writes were run
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        this.close();
+        this.thread.join(unit.toMillis(timeout));
+        return !this.thread.isAlive();
+    }
+    
+    @Override
+    public void close() {
+        // the committer drains the queue before it stops
+        this.closed = true;
+    }
+    
+    private void loop() {
+        final List<Pending> batch = new ArrayList<>(this.maxBatchSize);
+        
+        while (true) {
+            try {
+                final Pending first = this.queue.poll(IDLE_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (this.closed) {
+                        return;     // closed and drained
+                    }
+                    continue;
+                }
+                
+                batch.add(first);
+                
+                this.gather(batch);
+            }
+            catch (InterruptedException e) {
+                log.warn("Group committer interrupted (will stop)");
+                Thread.currentThread().interrupt();
+                this.closed = true;
+                for (Pending pending : batch) {
+                    this.queue.add(pending);
+                }
+                batch.clear();
+                Pending pending;
+                while ((pending = this.queue.poll()) != null) {
+                    pending.future.completeExceptionally(new IllegalStateException("Group committer was interrupted"));
+                }
+                return;
+            }
+            
+            try {
+                this.commit(batch);
+            }
+            catch (Throwable t) {
+                log.error("Unhandled throwable in group committer!", t);
+                for (Pending pending : batch) {
+                    pending.future.completeExceptionally(t);
+                }
+            }
+            finally {
+                batch.clear();
+            }
+        }
+    }
+    
+    private void gather(List<Pending> batch) throws InterruptedException {
+        final long deadline = System.nanoTime() + this.windowNanos;
+        
+        while (batch.size() < this.maxBatchSize) {
+            // take what is already queued without waiting
+            this.queue.drainTo(batch, this.maxBatchSize - batch.size());
+            
+            final long remaining = deadline - System.nanoTime();
+            if (batch.size() >= this.maxBatchSize || remaining <= 0 || this.closed) {
+                return;
+            }
+            
+            final Pending next = this.queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next != null) {
+                batch.add(next);
+            }
+        }
+    }
+    
+    private void commit(List<Pending> batch) {
+        this.batches.increment();
+        this.groups.add(batch.size());
+        
+        final RuntimeException[] failures = new RuntimeException[batch.size()];
+        
+        final Transaction transaction = this.ebean.beginTransaction();
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                final EbeanServiceTransactionSavepointAdapter savepoint = new EbeanServiceTransactionSavepointAdapter(transaction);
+                try {
+                    this.run(batch.get(i), transaction);
+                    // batched statements of the group must fail here, not with the next one
+                    transaction.flush();
+                }
+                catch (RuntimeException e) {
+                    log.warn("Unable to run writes of group in batch of {} groups (will roll back only that group): {}",
+                        batch.size(), e.getMessage());
+                    
+                    failures[i] = e;
+                    
+                    try {
+                        savepoint.rollback();
+                    }
+                    catch (RuntimeException re) {
+                        log.warn("Unable to rollback group to its savepoint (will fail the batch): {}", re.getMessage());
+                        
+                        transaction.rollback();
+                        
+                        for (int j = 0; j < batch.size(); j++) {
+                            if (failures[j] != null) {
+                                batch.get(j).future.completeExceptionally(failures[j]);
+                            } else {
+                                batch.get(j).future.completeExceptionally(new ServiceTransactionException(
+                                    "Unable to commit group (rolled back with its batch after the writes of another group failed)", e));
+                            }
+                        }
+                        return;
+                    }
+                }
+            }
+            
+            try {
+                transaction.commit();
+            }
+            catch (RuntimeException e) {
+                log.error("Unable to commit batch of {} groups (outcome unknown)", batch.size(), e);
+                
+                for (int j = 0; j < batch.size(); j++) {
+                    if (failures[j] != null) {
+                        batch.get(j).future.completeExceptionally(failures[j]);
+                    } else {
+                        batch.get(j).future.completeExceptionally(new ServiceTransactionException(
+                            "Unable to commit group (outcome of its batch unknown)", e));
+                    }
+                }
+                return;
+            }
+            
+            this.commits.increment();
+        }
+        finally {
+            transaction.end();
+        }
+        
+        for (int j = 0; j < batch.size(); j++) {
+            if (failures[j] != null) {
+                batch.get(j).future.completeExceptionally(failures[j]);
+            } else {
+                batch.get(j).future.complete(null);
+            }
+        }
+    }
+    
+    private void run(Pending pending, Transaction transaction) {
+        for (int i = 0; i < pending.writes.size(); i++) {
+            pending.writes.get(i).accept(transaction);
+        }
+    }
+    
+    static private class Pending {
+        
+        private final List<Consumer<Transaction>> writes;
+        private final CompletableFuture<Void> future;
+        
+        public Pending(List<Consumer<Transaction>> writes, CompletableFuture<Void> future) {
+            this.writes = writes;
+            this.future = future;
+        }
+    
+    }
+
+}
@@ -1,18 +1,37 @@
 package com.fizzed.transactional.ebean;
 
+import com.fizzed.transactional.ServiceTransaction;
 import com.fizzed.transactional.ServiceTransactionAdapter;
+import com.fizzed.transactional.ServiceTransactionLazyAdapter;
 import com.fizzed.transactional.ServiceTransactionNoopAdapter;
+import com.fizzed.transactional.ServiceTransactionTimeoutException;
 import io.ebean.EbeanServer;
 import io.ebean.Transaction;
 import io.ebean.annotation.TxIsolation;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
 public class EbeanServiceTransactionManager {
 
     private final EbeanServer ebean;
+    private final EbeanServer readReplica;
 
     public EbeanServiceTransactionManager(EbeanServer ebean) {
+        this(ebean, null);
+    }
+
+    /**
+     * @param ebean the primary ebean server
+     * @param readReplica the ebean server read-only transactions are routed
+     *      to or null to route them to the primary
+     */
+    public EbeanServiceTransactionManager(EbeanServer ebean, EbeanServer readReplica) {
         this.ebean = ebean;
+        this.readReplica = readReplica;
+    }
+
+    public EbeanServer getReadReplica() {
+        return readReplica;
     }
 
     public Function<Boolean,ServiceTransactionAdapter> supplier() {
@@ -20,15 +39,229 @@ public class EbeanServiceTransactionManager {
     }
     
     public Function<Boolean,ServiceTransactionAdapter> supplier(TxIsolation isolation) {
+        return this.supplier(isolation, null);
+    }
+    
+    public Function<Boolean,ServiceTransactionAdapter> supplier(EbeanServiceTransactionBatching batching) {
+        return this.supplier(TxIsolation.READ_COMMITED, batching);
+    }
+    
+    /**
+     * Same as the supplier, but with JDBC batching applied to the ebean
+     * transaction of the group. Since the first transaction begins the group,
+     * batching is chosen per group (or per descriptor, by the supplier the
+     * outermost begin of that descriptor uses).
+     * 
+     * @param isolation the isolation level
+     * @param batching the batching or null for none
+     * @return the supplier
+     */
+    public Function<Boolean,ServiceTransactionAdapter> supplier(TxIsolation isolation, EbeanServiceTransactionBatching batching) {
         return (first) -> {
             // only the first transaction can do real begin, rollback, and commit
             if (!first) {
                 return new ServiceTransactionNoopAdapter();
             } else {
-                final Transaction transaction = this.ebean.beginTransaction(isolation);
-                return new EbeanServiceTransactionAdapter(transaction);
+                return new EbeanServiceTransactionAdapter(this.ebean, this.begin(isolation, batching), false);
+            }
+        };
+    }
+    
+    public Function<Boolean,ServiceTransactionAdapter> savepointSupplier() {
+        return this.savepointSupplier(TxIsolation.READ_COMMITED);
+    }
+    
+    /**
+     * Same as the supplier, but a nested transaction (of the same idempotency)
+     * sets a JDBC savepoint in the ebean transaction of the group rather than
+     * joining it. A nested rollback then only undoes the work done since its
+     * savepoint (and clears the ebean persistence context), and the group can
+     * still commit. Nested transactions must end in the reverse
+     * order they began, and the ebean transaction of the group must already be
+     * begun (so it cannot follow a lazySupplier transaction never used).
+     * 
+     * @param isolation the isolation level of the first transaction
+     * @return the supplier
+     */
+    public Function<Boolean,ServiceTransactionAdapter> savepointSupplier(TxIsolation isolation) {
+        return this.savepointSupplier(isolation, null);
+    }
+    
+    /**
+     * Same as the savepointSupplier, but with JDBC batching applied to the
+     * ebean transaction when the first transaction begins the group. Batched
+     * statements are flushed when a savepoint is set and rolled back to, so
+     * they land on the correct side of it.
+     * 
+     * @param isolation the isolation level of the first transaction
+     * @param batching the batching or null for none
+     * @return the supplier
+     */
+    public Function<Boolean,ServiceTransactionAdapter> savepointSupplier(TxIsolation isolation, EbeanServiceTransactionBatching batching) {
+        return (first) -> {
+            if (first) {
+                return new EbeanServiceTransactionAdapter(this.ebean, this.begin(isolation, batching), false);
             }
+            
+            // the transaction of the group may have come from any supplier
+            final Transaction current = this.ebean.currentTransaction();
+            if (current == null || !current.isActive()) {
+                throw new IllegalStateException("No active ebean transaction to set a savepoint in");
+            }
+            
+            return new EbeanServiceTransactionSavepointAdapter(current);
         };
     }
     
+    public Function<Boolean,ServiceTransactionAdapter> readOnlySupplier() {
+        return this.readOnlySupplier(TxIsolation.READ_COMMITED);
+    }
+    
+    /**
+     * Same as the supplier, but the ebean transaction is begun on the read
+     * replica (if one is configured), its connection is marked read-only, and
+     * its commit only ends it rather than sending a commit to the database.
+     * Only for ServiceTransactions.begin with readOnly set to true (any other
+     * begin is refused, since its writes would be discarded). A read-only
+     * begin with any other supplier is marked read-only on the primary.
+     * 
+     * @param isolation the isolation level
+     * @return the supplier
+     */
+    public Function<Boolean,ServiceTransactionAdapter> readOnlySupplier(TxIsolation isolation) {
+        return (first) -> {
+            // only the first transaction can do real begin, rollback, and commit
+            if (!first) {
+                return new ServiceTransactionNoopAdapter();
+            } else {
+                final EbeanServer server = this.readReplica != null ? this.readReplica : this.ebean;
+                final Transaction transaction = server.beginTransaction(isolation);
+                try {
+                    transaction.setReadOnly(true);
+                }
+                catch (RuntimeException e) {
+                    transaction.end();
+                    throw e;
+                }
+                return new EbeanServiceTransactionAdapter(server, transaction, true);
+            }
+        };
+    }
+    
+    public Function<Boolean,ServiceTransactionAdapter> lazySupplier() {
+        return this.lazySupplier(TxIsolation.READ_COMMITED);
+    }
+    
+    /**
+     * Same as the supplier, but the ebean transaction (and its pooled
+     * connection) is only begun on first use via transaction(ServiceTransaction).
+     * A transaction that is never used is never begun, so its commit and
+     * rollback cost nothing.
+     * 
+     * <b>Only transaction(ServiceTransaction) begins it.</b> Until then there is
+     * no current ebean transaction, so plain ebean calls (e.g. ebean.save(bean)
+     * or a find) run in autocommit outside of the group and a rollback does not
+     * undo them. Swapping supplier() for this one is only safe if every use of
+     * the group goes through transaction(ServiceTransaction) first.
+     * 
+     * @param isolation the isolation level
+     * @return the supplier
+     */
+    public Function<Boolean,ServiceTransactionAdapter> lazySupplier(TxIsolation isolation) {
+        return this.lazySupplier(isolation, null);
+    }
+    
+    public Function<Boolean,ServiceTransactionAdapter> lazySupplier(TxIsolation isolation, EbeanServiceTransactionBatching batching) {
+        return (first) -> {
+            // only the first transaction can do real begin, rollback, and commit
+            if (!first) {
+                return new ServiceTransactionNoopAdapter();
+            } else {
+                return new ServiceTransactionLazyAdapter<>(
+                    () -> new EbeanServiceTransactionAdapter(this.ebean, this.begin(isolation, batching), false));
+            }
+        };
+    }
+    
+    private Transaction begin(TxIsolation isolation, EbeanServiceTransactionBatching batching) {
+        final Transaction transaction = this.ebean.beginTransaction(isolation);
+        if (batching != null) {
+            try {
+                batching.apply(transaction);
+            }
+            catch (RuntimeException e) {
+                transaction.end();
+                throw e;
+            }
+        }
+        return transaction;
+    }
+    
+    /**
+     * Gets what is left of the deadline of the group of the service
+     * transaction as a JDBC query timeout, for Query.setTimeout, SqlQuery.setTimeout
+     * or SqlUpdate.setTimeout (ebean transactions have no timeout of their
+     * own, so each statement is bounded instead). The deadline is already
+     * applied as the network timeout of the connection of the transaction
+     * where the driver supports it, so this is for the drivers that do not
+     * (or to fail a statement cleanly before the connection times out).
+     * 
+     * <pre>
+     * ebean.find(Order.class).setTimeout(manager.queryTimeout(tx)).findList();
+     * </pre>
+     * 
+     * @param transaction the service transaction
+     * @return the seconds left (rounded up) or 0 (no timeout) if the group
+     *      has no deadline
+     * @throws ServiceTransactionTimeoutException if the deadline passed
+     */
+    public int queryTimeout(ServiceTransaction transaction) {
+        final long remaining = transaction.getGroup().getRemainingNanos();
+        
+        if (remaining == Long.MAX_VALUE) {
+            return 0;
+        }
+        
+        if (remaining <= 0L) {
+            throw new ServiceTransactionTimeoutException("Unable to run query for " + transaction.getDescriptor()
+                + " (deadline of transaction group " + transaction.getGroup().getId() + " passed)");
+        }
+        
+        final long seconds = (remaining + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1);
+        
+        return (int)Math.min(Integer.MAX_VALUE, seconds);
+    }
+    
+    /**
+     * Gets the ebean transaction backing the service transaction (or the
+     * first one of its idempotency in the group), beginning it now if it was
+     * supplied lazily and not used yet. Once begun, it is also the current
+     * ebean transaction of the thread (of a parallel task, until the task ends).
+     * 
+     * @param transaction the service transaction
+     * @return the ebean transaction
+     * @throws ServiceTransactionTimeoutException if it was not begun yet and
+     *      the deadline of its group passed
+     */
+    public Transaction transaction(ServiceTransaction transaction) {
+        ServiceTransactionAdapter adapter = transaction.getResourceAdapter();
+        
+        if (adapter instanceof ServiceTransactionLazyAdapter) {
+            final ServiceTransactionLazyAdapter<?> lazy = (ServiceTransactionLazyAdapter<?>)adapter;
+            // no connection is taken for a group out of time
+            if (!lazy.isAcquired() && transaction.getGroup().isExpired()) {
+                throw new ServiceTransactionTimeoutException("Unable to begin ebean transaction for " + transaction.getDescriptor()
+                    + " (deadline of transaction group " + transaction.getGroup().getId() + " passed)");
+            }
+            adapter = lazy.get();
+        }
+        
+        if (!(adapter instanceof EbeanServiceTransactionAdapter)) {
+            throw new IllegalStateException("Service transaction " + transaction.getDescriptor()
+                + " is not backed by an ebean transaction (did it begin with an idempotency?)");
+        }
+        
+        return ((EbeanServiceTransactionAdapter)adapter).getTransaction();
+    }
+    
 }
\ No newline at end of file
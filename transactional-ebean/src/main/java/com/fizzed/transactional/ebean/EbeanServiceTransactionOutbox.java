@@ -0,0 +1,194 @@
+package com.fizzed.transactional.ebean;
+
+import com.fizzed.transactional.ServiceTransaction;
+import io.ebean.EbeanServer;
+import io.ebean.SqlRow;
+import io.ebean.Transaction;
+import java.sql.Clob;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.persistence.PersistenceException;
+
+/**
+ * A transactional outbox: messages (side effects, e.g. events to publish) are
+ * inserted into a table in the same ebean transaction as the business data,
+ * so they are durable exactly when the data is, and are then published by an
+ * EbeanServiceTransactionOutboxRelay in the background. Publishing is at least
+ * once (a message is deleted only after it was published).
+ * 
+ * The table must exist, e.g. for H2 (adapt the types to the database):
+ * 
+ * <pre>
+ * create table service_outbox (
+ *   id bigint auto_increment primary key,
+ *   topic varchar(255) not null,
+ *   payload clob,
+ *   created_at bigint not null,
+ *   claim bigint,
+ *   claimed_until bigint,
+ *   attempts int default 0 not null
+ * );
+ * create index service_outbox_claim_ix on service_outbox (claim);
+ * 
+ * try (ServiceTransaction tx = ServiceTransactions.begin("createUser", "db", manager.supplier())) {
+ *     ebean.save(user, manager.transaction(tx));
+ *     outbox.add(tx, "user.created", json);
+ *     tx.commit();
+ * }
+ * </pre>
+ */
+public class EbeanServiceTransactionOutbox {
+    
+    private final EbeanServer ebean;
+    private final EbeanServiceTransactionManager manager;
+    private final String table;
+    private final String insertSql;
+    private final String selectSql;
+    private final String claimSql;
+    private final String claimedSql;
+    private final String deleteSql;
+    
+    public EbeanServiceTransactionOutbox(EbeanServer ebean, EbeanServiceTransactionManager manager) {
+        this(ebean, manager, "service_outbox");
+    }
+    
+    public EbeanServiceTransactionOutbox(EbeanServer ebean, EbeanServiceTransactionManager manager, String table) {
+        Objects.requireNonNull(ebean, "ebean was null");
+        Objects.requireNonNull(manager, "manager was null");
+        Objects.requireNonNull(table, "table was null");
+        
+        this.ebean = ebean;
+        this.manager = manager;
+        this.table = table;
+        this.insertSql = "insert into " + table + " (topic, payload, created_at, attempts) values (:topic, :payload, :createdAt, 0)";
+        this.selectSql = "select id from " + table + " where claimed_until is null or claimed_until < :now order by id";
+        this.claimSql = "update " + table + " set claim = :claim, claimed_until = :until, attempts = attempts + 1"
+            + " where id in (:ids) and (claimed_until is null or claimed_until < :now)";
+        this.claimedSql = "select id, topic, payload, created_at, attempts from " + table + " where claim = :claim order by id";
+        this.deleteSql = "delete from " + table + " where id in (:ids) and claim = :claim";
+    }
+    
+    public EbeanServer getEbean() {
+        return ebean;
+    }
+    
+    public String getTable() {
+        return table;
+    }
+    
+    /**
+     * Adds a message in the ebean transaction of the service transaction (so
+     * it is only published if it commits).
+     * 
+     * @param transaction the service transaction
+     * @param topic the topic
+     * @param payload the payload
+     */
+    public void add(ServiceTransaction transaction, String topic, String payload) {
+        this.add(this.manager.transaction(transaction), topic, payload);
+    }
+    
+    public void add(Transaction transaction, String topic, String payload) {
+        Objects.requireNonNull(transaction, "transaction was null");
+        Objects.requireNonNull(topic, "topic was null");
+        
+        this.ebean.execute(this.ebean.sqlUpdate(this.insertSql)
+            .setParameter("topic", topic)
+            .setParameter("payload", payload)
+            .setParameter("createdAt", System.currentTimeMillis()), transaction);
+    }
+    
+    /**
+     * Claims up to a batch of the oldest messages not claimed (or whose claim
+     * expired), so other relays skip them until the claim expires.
+     * 
+     * @param batchSize the maximum number of messages
+     * @param claimMillis how long the claim lasts
+     * @return the claimed messages, oldest first
+     */
+    List<EbeanServiceTransactionOutboxMessage> claim(int batchSize, long claimMillis) {
+        final long now = System.currentTimeMillis();
+        
+        final List<Long> ids = this.ebean.sqlQuery(this.selectSql)
+            .setParameter("now", now)
+            .setMaxRows(batchSize)
+            .mapToScalar(Long.class)
+            .findList();
+        
+        if (ids.isEmpty()) {
+            return new ArrayList<>(0);
+        }
+        
+        // a relay only gets the rows its claim won (others may race for them)
+        long claim;
+        do {
+            claim = ThreadLocalRandom.current().nextLong();
+        } while (claim == 0L);
+        
+        final int claimed = this.ebean.sqlUpdate(this.claimSql)
+            .setParameter("claim", claim)
+            .setParameter("until", now + claimMillis)
+            .setParameter("ids", ids)
+            .setParameter("now", now)
+            .execute();
+        
+        if (claimed == 0) {
+            return new ArrayList<>(0);
+        }
+        
+        final List<SqlRow> rows = this.ebean.sqlQuery(this.claimedSql)
+            .setParameter("claim", claim)
+            .findList();
+        
+        final List<EbeanServiceTransactionOutboxMessage> messages = new ArrayList<>(rows.size());
+        for (SqlRow row : rows) {
+            messages.add(new EbeanServiceTransactionOutboxMessage(row.getLong("id"), row.getString("topic"),
+                payload(row.get("payload")), row.getLong("created_at"), row.getInteger("attempts"), claim));
+        }
+        
+        return messages;
+    }
+    
+    static private String payload(Object value) {
+        // a clob column comes back as a Clob on some drivers (e.g. H2)
+        if (value instanceof Clob) {
+            final Clob clob = (Clob)value;
+            try {
+                return clob.getSubString(1, (int)clob.length());
+            }
+            catch (SQLException e) {
+                throw new PersistenceException("Unable to read outbox payload", e);
+            }
+        }
+        return value != null ? value.toString() : null;
+    }
+    
+    /**
+     * Deletes the (published) messages of a batch, but only those still held by
+     * its claim: a message whose claim expired and was claimed again belongs
+     * to the relay that claimed it now.
+     * 
+     * @param messages the messages of one claim
+     * @return the number of messages deleted
+     */
+    int delete(List<EbeanServiceTransactionOutboxMessage> messages) {
+        if (messages.isEmpty()) {
+            return 0;
+        }
+        
+        final long claim = messages.get(0).getClaim();
+        final List<Long> ids = new ArrayList<>(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            ids.add(messages.get(i).getId());
+        }
+        
+        return this.ebean.sqlUpdate(this.deleteSql)
+            .setParameter("ids", ids)
+            .setParameter("claim", claim)
+            .execute();
+    }
+    
+}
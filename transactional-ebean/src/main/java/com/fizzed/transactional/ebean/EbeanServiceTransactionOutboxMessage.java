@@ -0,0 +1,62 @@
+package com.fizzed.transactional.ebean;
+
+public class EbeanServiceTransactionOutboxMessage {
+    
+    private final long id;
+    private final String topic;
+    private final String payload;
+    private final long createdAt;
+    private final int attempts;
+    private final long claim;
+    
+    public EbeanServiceTransactionOutboxMessage(long id, String topic, String payload, long createdAt, int attempts, long claim) {
+        this.id = id;
+        this.topic = topic;
+        this.payload = payload;
+        this.createdAt = createdAt;
+        this.attempts = attempts;
+        this.claim = claim;
+    }
+    
+    public long getId() {
+        return id;
+    }
+    
+    public String getTopic() {
+        return topic;
+    }
+    
+    public String getPayload() {
+        return payload;
+    }
+    
+    /**
+     * The epoch millis the message was added at.
+     * 
+     * @return the epoch millis
+     */
+    public long getCreatedAt() {
+        return createdAt;
+    }
+    
+    /**
+     * The number of times the message was claimed for publishing (including
+     * this one), so above 1 if earlier publishes failed or timed out.
+     * 
+     * @return the attempts
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+    
+    /**
+     * The claim the message was fetched with. Once it expires the message may
+     * be claimed again (by any relay), and this claim no longer deletes it.
+     * 
+     * @return the claim
+     */
+    public long getClaim() {
+        return claim;
+    }
+    
+}
@@ -0,0 +1,255 @@
+package com.fizzed.transactional.ebean;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes the messages of an outbox in batches in the background. One
+ * thread claims batches (oldest first) while another publishes them, so the
+ * next batch is already fetched by the time the previous one is published.
+ * A published batch is deleted. A batch whose publish fails is left claimed
+ * and is claimed again (with its attempts incremented) once its claim
+ * expires. More than one relay (e.g. one per node) may share an outbox, at
+ * the cost of messages no longer being published strictly in order.
+ * 
+ * <pre>
+ * EbeanServiceTransactionOutboxRelay relay = new EbeanServiceTransactionOutboxRelay(
+ *     outbox, (messages) -&gt; kafka.sendAll(messages), 500, 100, TimeUnit.MILLISECONDS);
+ * </pre>
+ */
+public class EbeanServiceTransactionOutboxRelay implements AutoCloseable {
+    static private final Logger log = LoggerFactory.getLogger(EbeanServiceTransactionOutboxRelay.class);
+    static private final AtomicInteger INSTANCES = new AtomicInteger();
+    static private final int PIPELINE_DEPTH = 2;
+    static private final long CLAIM_MILLIS = 60000L;
+    
+    static public interface Publisher {
+        
+        /**
+         * Publishes a batch of messages (oldest first). Returns once all are
+         * published, or throws to have the batch retried later.
+         * 
+         * @param messages the messages
+         * @throws Exception if any message could not be published
+         */
+        void publish(List<EbeanServiceTransactionOutboxMessage> messages) throws Exception;
+    
+    }
+    
+    private final EbeanServiceTransactionOutbox outbox;
+    private final Publisher publisher;
+    private final int batchSize;
+    private final long pollMillis;
+    private final long claimMillis;
+    private final BlockingQueue<List<EbeanServiceTransactionOutboxMessage>> pipeline;
+    private final Semaphore wakeups;
+    private final Thread fetcher;
+    private final Thread dispatcher;
+    private final LongAdder batches;
+    private final LongAdder published;
+    private final LongAdder failures;
+    private volatile boolean closed;
+    
+    public EbeanServiceTransactionOutboxRelay(
+            EbeanServiceTransactionOutbox outbox,
+            Publisher publisher,
+            int batchSize,
+            long pollInterval,
+            TimeUnit unit) {
+        
+        this(outbox, publisher, batchSize, pollInterval, unit, CLAIM_MILLIS);
+    }
+    
+    /**
+     * @param outbox the outbox
+     * @param publisher the publisher of the batches
+     * @param batchSize the maximum number of messages per batch
+     * @param pollInterval how long to wait to fetch again when the outbox is empty
+     * @param unit the unit of the poll interval
+     * @param claimMillis how long a claimed batch is skipped by other relays,
+     *      and by this one if its publish failed (must well exceed the time to
+     *      publish a batch)
+     */
+    public EbeanServiceTransactionOutboxRelay(
+            EbeanServiceTransactionOutbox outbox,
+            Publisher publisher,
+            int batchSize,
+            long pollInterval,
+            TimeUnit unit,
+            long claimMillis) {
+        
+        Objects.requireNonNull(outbox, "outbox was null");
+        Objects.requireNonNull(publisher, "publisher was null");
+        Objects.requireNonNull(unit, "unit was null");
+        
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be > 0");
+        }
+        
+        if (pollInterval <= 0 || claimMillis <= 0) {
+            throw new IllegalArgumentException("pollInterval and claimMillis must be > 0");
+        }
+        
+        final int instance = INSTANCES.incrementAndGet();
+        
+        this.outbox = outbox;
+        this.publisher = publisher;
+        this.batchSize = batchSize;
+        this.pollMillis = Math.max(1L, unit.toMillis(pollInterval));
+        this.claimMillis = claimMillis;
+        this.pipeline = new ArrayBlockingQueue<>(PIPELINE_DEPTH);
+        this.wakeups = new Semaphore(0);
+        this.batches = new LongAdder();
+        this.published = new LongAdder();
+        this.failures = new LongAdder();
+        this.fetcher = new Thread(this::fetch, "outbox-relay-fetcher-" + instance);
+        this.fetcher.setDaemon(true);
+        this.dispatcher = new Thread(this::dispatch, "outbox-relay-dispatcher-" + instance);
+        this.dispatcher.setDaemon(true);
+        this.fetcher.start();
+        this.dispatcher.start();
+    }
+    
+    public int getBatchSize() {
+        return batchSize;
+    }
+    
+    /**
+     * Number of batches published (successfully or not).
+     * 
+     * @return the count
+     */
+    public long getBatches() {
+        return this.batches.sum();
+    }
+    
+    /**
+     * Number of messages published (and deleted).
+     * 
+     * @return the count
+     */
+    public long getPublished() {
+        return this.published.sum();
+    }
+    
+    /**
+     * Number of batches whose publish (or delete) failed.
+     * 
+     * @return the count
+     */
+    public long getFailures() {
+        return this.failures.sum();
+    }
+    
+    /**
+     * Fetches now rather than at the end of the poll interval, e.g. from an
+     * onSuccess listener of a group that added messages.
+     */
+    public void wakeup() {
+        if (this.wakeups.availablePermits() == 0) {
+            this.wakeups.release();
+        }
+    }
+    
+    /**
+     * Stops fetching and waits for the batches already fetched to publish.
+     * 
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return true if the relay stopped
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        this.close();
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        this.fetcher.join(Math.max(1L, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+        this.dispatcher.join(Math.max(1L, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+        return !this.fetcher.isAlive() && !this.dispatcher.isAlive();
+    }
+    
+    @Override
+    public void close() {
+        this.closed = true;
+        this.wakeup();
+    }
+    
+    private void fetch() {
+        try {
+            while (!this.closed) {
+                List<EbeanServiceTransactionOutboxMessage> batch;
+                try {
+                    batch = this.outbox.claim(this.batchSize, this.claimMillis);
+                }
+                catch (RuntimeException e) {
+                    log.warn("Unable to claim outbox messages (will retry): {}", e.getMessage());
+                    batch = null;
+                }
+                
+                if (batch != null && !batch.isEmpty()) {
+                    // blocks while the pipeline is full (the publisher is behind)
+                    while (!this.pipeline.offer(batch, this.pollMillis, TimeUnit.MILLISECONDS)) {
+                        if (this.closed && !this.dispatcher.isAlive()) {
+                            return;     // claims expire, another relay will get them
+                        }
+                    }
+                }
+                
+                // a full batch means there are likely more, fetch again now
+                if (batch == null || batch.size() < this.batchSize) {
+                    this.wakeups.tryAcquire(this.pollMillis, TimeUnit.MILLISECONDS);
+                    this.wakeups.drainPermits();
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            log.warn("Outbox relay fetcher interrupted (will stop)");
+            Thread.currentThread().interrupt();
+            this.closed = true;
+        }
+    }
+    
+    private void dispatch() {
+        try {
+            while (true) {
+                final List<EbeanServiceTransactionOutboxMessage> batch = this.pipeline.poll(this.pollMillis, TimeUnit.MILLISECONDS);
+                if (batch == null) {
+                    if (this.closed && !this.fetcher.isAlive() && this.pipeline.isEmpty()) {
+                        return;     // closed and drained
+                    }
+                    continue;
+                }
+                
+                this.batches.increment();
+                
+                try {
+                    this.publisher.publish(batch);
+                    final int deleted = this.outbox.delete(batch);
+                    if (deleted < batch.size()) {
+                        log.warn("Claim of {} outbox messages expired before they were published (may publish again)",
+                            batch.size() - deleted);
+                    }
+                    this.published.add(batch.size());
+                }
+                catch (Throwable t) {
+                    this.failures.increment();
+                    log.warn("Unable to publish (or delete) {} outbox messages (will retry once their claim expires): {}",
+                        batch.size(), t.getMessage());
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            log.warn("Outbox relay dispatcher interrupted (will stop)");
+            Thread.currentThread().interrupt();
+            this.closed = true;
+        }
+    }
+
+}
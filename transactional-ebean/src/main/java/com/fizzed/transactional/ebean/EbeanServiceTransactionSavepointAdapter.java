@@ -0,0 +1,96 @@
+package com.fizzed.transactional.ebean;
+
+import com.fizzed.transactional.ServiceTransactionSavepointAdapter;
+import io.ebean.Transaction;
+import io.ebeaninternal.api.SpiTransaction;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import javax.persistence.PersistenceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adapts a nested service transaction to a JDBC savepoint in the ebean
+ * transaction of its group: its rollback only rolls back to the savepoint,
+ * and its commit leaves the savepoint for the group transaction to discard.
+ * 
+ * A rollback also clears the persistence context of the ebean transaction,
+ * since beans loaded or saved since the savepoint may no longer match the
+ * database. Beans loaded before the savepoint are loaded again on next use.
+ * Ebean has no public API for that, so it is done through its internal
+ * SpiTransaction (verified against ebean 12.8.0); should an ebean release
+ * change it, the context is left as is (logged once) rather than failing the
+ * rollback.
+ */
+public class EbeanServiceTransactionSavepointAdapter implements ServiceTransactionSavepointAdapter {
+    static private final Logger log = LoggerFactory.getLogger(EbeanServiceTransactionSavepointAdapter.class);
+    
+    static private volatile boolean persistenceContextUnsupported;
+ 
+    private final Transaction transaction;
+    private final Savepoint savepoint;
+    
+    public EbeanServiceTransactionSavepointAdapter(Transaction transaction) {
+        this.transaction = transaction;
+        try {
+            // batched statements queued before the savepoint belong before it
+            transaction.flush();
+            this.savepoint = transaction.getConnection().setSavepoint();
+        } catch (SQLException e) {
+            throw new PersistenceException("Unable to create savepoint", e);
+        }
+    }
+    
+    public Transaction getTransaction() {
+        return transaction;
+    }
+    
+    public Savepoint getSavepoint() {
+        return savepoint;
+    }
+    
+    @Override
+    public void rollback() {
+        if (!transaction.isActive()) {
+            // the transaction of the group already ended, nothing to undo
+            return;
+        }
+        try {
+            // batched statements of the nested work must not run after the rollback
+            transaction.flush();
+        } catch (PersistenceException e) {
+            // only nested work was pending (flushed when the savepoint was set)
+            // and it is about to be undone anyway
+        }
+        try {
+            transaction.getConnection().rollback(savepoint);
+        } catch (SQLException e) {
+            throw new PersistenceException("Unable to rollback to savepoint", e);
+        }
+        // ebean has no notion of savepoints, so its cache would outlive the undone rows
+        clearPersistenceContext(transaction);
+    }
+    
+    @Override
+    public void commit() {
+        // the savepoint is left for the transaction of the group to discard: it
+        // may already be gone (an enclosing savepoint was rolled back) and
+        // releasing it would then fail on most databases
+    }
+    
+    static private void clearPersistenceContext(Transaction transaction) {
+        if (persistenceContextUnsupported) {
+            return;
+        }
+        try {
+            if (transaction instanceof SpiTransaction) {
+                ((SpiTransaction)transaction).getPersistenceContext().clear();
+            }
+        } catch (LinkageError e) {
+            // internal api of ebean, which may change in any release
+            persistenceContextUnsupported = true;
+            log.warn("Unable to clear persistence context on savepoint rollback (unsupported ebean version?): {}", e.toString());
+        }
+    }
+        
+}
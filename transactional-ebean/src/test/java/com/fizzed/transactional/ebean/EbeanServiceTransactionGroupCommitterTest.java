@@ -0,0 +1,126 @@
+package com.fizzed.transactional.ebean;
+
+import com.fizzed.transactional.ServiceTransaction;
+import com.fizzed.transactional.ServiceTransactionException;
+import com.fizzed.transactional.ServiceTransactions;
+import static com.fizzed.transactional.ebean.EbeanTests.count;
+import static com.fizzed.transactional.ebean.EbeanTests.insert;
+import io.ebean.EbeanServer;
+import io.ebean.Transaction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import javax.persistence.PersistenceException;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EbeanServiceTransactionGroupCommitterTest {
+    
+    private EbeanServer ebean;
+    private EbeanServiceTransactionGroupCommitter committer;
+    
+    @Before
+    public void before() {
+        this.ebean = EbeanTests.create();
+        // a full batch cuts the window short, so a batch of 3 never waits it out
+        this.committer = new EbeanServiceTransactionGroupCommitter(this.ebean, 3, 1, TimeUnit.SECONDS);
+    }
+    
+    @After
+    public void after() throws Exception {
+        this.committer.shutdown(5, TimeUnit.SECONDS);
+        this.ebean.shutdown(false, false);
+    }
+    
+    @Test
+    public void commitsGroupsTogether() throws Exception {
+        
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        
+        for (int i = 1; i <= 3; i++) {
+            final int id = i;
+            final ServiceTransaction str1 = ServiceTransactions.begin("test" + i, "db", this.committer.supplier());
+            this.committer.write(str1, (transaction) -> insert(this.ebean, transaction, id));
+            // releases the group, so the next begin starts a new one
+            futures.add(str1.commitAsync());
+        }
+        
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+        
+        assertThat(count(this.ebean), is(3));
+        assertThat(this.committer.getGroups(), is(3L));
+        assertThat(this.committer.getBatches(), is(1L));
+        assertThat(this.committer.getCommits(), is(1L));
+    }
+    
+    @Test
+    public void failedWriteFailsOnlyItsGroup() throws Exception {
+        
+        final CompletableFuture<Void> future1 = this.committer.submit(writes((transaction) -> insert(this.ebean, transaction, 1)));
+        // duplicate of the first, fails
+        final CompletableFuture<Void> future2 = this.committer.submit(writes((transaction) -> {
+            insert(this.ebean, transaction, 2);
+            insert(this.ebean, transaction, 1);
+        }));
+        final CompletableFuture<Void> future3 = this.committer.submit(writes((transaction) -> insert(this.ebean, transaction, 3)));
+        
+        future1.get(5, TimeUnit.SECONDS);
+        assertThat(cause(future2), instanceOf(PersistenceException.class));
+        future3.get(5, TimeUnit.SECONDS);
+        
+        // the failed group rolled back to its savepoint (including its first write)
+        assertThat(count(this.ebean), is(2));
+        assertThat(this.ebean.sqlQuery("select count(*) c from t where id = 2").findOne().getInteger("c"), is(0));
+        assertThat(this.committer.getBatches(), is(1L));
+        assertThat(this.committer.getCommits(), is(1L));
+    }
+    
+    @Test
+    public void failedGroupCompletesExceptionally() throws Exception {
+        
+        insert(this.ebean, null, 1);
+        
+        final ServiceTransaction str1 = ServiceTransactions.begin("test1", "db", this.committer.supplier());
+        this.committer.write(str1, (transaction) -> insert(this.ebean, transaction, 1));
+        
+        final CompletableFuture<Void> future = str1.commitAsync();
+        
+        assertThat(cause(future), instanceOf(ServiceTransactionException.class));
+        assertThat(str1.getGroup().wasSuccessful(), is(false));
+        
+        this.committer.close();
+        
+        assertThat(cause(this.committer.submit(writes((transaction) -> insert(this.ebean, transaction, 2)))),
+            instanceOf(IllegalStateException.class));
+        assertThat(count(this.ebean), is(1));
+    }
+    
+    static private List<Consumer<Transaction>> writes(Consumer<Transaction> write) {
+        return Collections.singletonList(write);
+    }
+    
+    static private Throwable cause(CompletableFuture<Void> future) {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+            return null;
+        }
+        catch (Exception e) {
+            Throwable t = e.getCause();
+            while (t instanceof CompletionException && t.getCause() != null) {
+                t = t.getCause();
+            }
+            return t;
+        }
+    }
+    
+}
@@ -0,0 +1,364 @@
+package com.fizzed.transactional.ebean;
+
+import com.fizzed.transactional.ServiceTransaction;
+import com.fizzed.transactional.ServiceTransactionException;
+import com.fizzed.transactional.ServiceTransactionOptions;
+import com.fizzed.transactional.ServiceTransactions;
+import static com.fizzed.transactional.ebean.EbeanTests.count;
+import static com.fizzed.transactional.ebean.EbeanTests.insert;
+import io.ebean.EbeanServer;
+import io.ebean.Transaction;
+import io.ebean.annotation.TxIsolation;
+import io.ebeaninternal.api.SpiTransaction;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.persistence.PersistenceException;
+import javax.sql.DataSource;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import org.h2.jdbcx.JdbcDataSource;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EbeanServiceTransactionManagerTest {
+    
+    private EbeanServer ebean;
+    private EbeanServiceTransactionManager manager;
+    
+    @Before
+    public void before() {
+        this.ebean = EbeanTests.create();
+        this.manager = new EbeanServiceTransactionManager(this.ebean);
+    }
+    
+    @After
+    public void after() {
+        this.ebean.shutdown(false, false);
+    }
+    
+    @Test
+    public void lazyRollbackUndoesWrites() {
+        
+        try (ServiceTransaction str1 = ServiceTransactions.begin("test1", "db", this.manager.lazySupplier())) {
+            // nothing is begun until it is used
+            assertThat(this.ebean.currentTransaction(), is(nullValue()));
+            
+            insert(this.ebean, this.manager.transaction(str1), 1);
+            
+            try (ServiceTransaction str2 = ServiceTransactions.begin("test2", "db", this.manager.lazySupplier())) {
+                assertThat(this.manager.transaction(str2), is(sameInstance(this.manager.transaction(str1))));
+                insert(this.ebean, this.ebean.currentTransaction(), 2);
+                str2.commit();
+            }
+            
+            // not committed, so rolled back
+        }
+        
+        assertThat(count(this.ebean), is(0));
+        
+        try (ServiceTransaction str1 = ServiceTransactions.begin("test1", "db", this.manager.lazySupplier())) {
+            insert(this.ebean, this.manager.transaction(str1), 1);
+            str1.commit();
+        }
+        
+        assertThat(count(this.ebean), is(1));
+    }
+    
+    @Test
+    public void lazyWritesBeforeFirstUseAreNotInTheTransaction() {
+        
+        try (ServiceTransaction str1 = ServiceTransactions.begin("test1", "db", this.manager.lazySupplier())) {
+            // plain ebean code with no current transaction autocommits
+            insert(this.ebean, null, 1);
+            
+            insert(this.ebean, this.manager.transaction(str1), 2);
+        }
+        
+        assertThat(count(this.ebean), is(1));
+    }
+    
+    @Test
+    public void readOnlySupplierRequiresReadOnlyBegin() {
+        
+        try {
+            ServiceTransactions.begin("test1", "db", false, this.manager.readOnlySupplier());
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        
+        assertThat(this.ebean.currentTransaction(), is(nullValue()));
+        
+        try (ServiceTransaction str1 = ServiceTransactions.begin("test1", "db", true, this.manager.readOnlySupplier())) {
+            assertThat(str1.getResourceAdapter().isReadOnly(), is(true));
+            assertThat(count(this.ebean), is(0));
+            str1.commit();
+        }
+        
+        assertThat(this.ebean.currentTransaction(), is(nullValue()));
+    }
+    
+    @Test
+    public void readOnlyBeginMarksSupplierReadOnly() {
+        
+        try (ServiceTransaction str1 = ServiceTransactions.begin("test1", "db", true, this.manager.supplier())) {
+            // (h2 does not report a connection marked read-only as such)
+            assertThat(str1.getResourceAdapter().isReadOnly(), is(true));
+            
+            // a write the begin promised not to make is not committed
+            try {
+                insert(this.ebean, this.manager.transaction(str1), 1);
+            } catch (PersistenceException e) {
+                // refused by a driver that enforces read-only connections
+            }
+            
+            str1.commit();
+        }
+        
+        assertThat(count(this.ebean), is(0));
+    }
+    
+    @Test
+    public void savepointRollbackOnlyUndoesNestedRows() {
+        
+        try (ServiceTransaction str1 = ServiceTransactions.begin("test1", "db", this.manager.savepointSupplier())) {
+            final Transaction transaction = this.manager.transaction(str1);
+            insert(this.ebean, transaction, 1);
+            
+            try (ServiceTransaction str2 = ServiceTransactions.begin("test2", "db", this.manager.savepointSupplier())) {
+                insert(this.ebean, transaction, 2);
+                ((SpiTransaction)transaction).getPersistenceContext().put(String.class, 2, "two");
+                // not committed, so rolled back to its savepoint
+            }
+            
+            // the persistence context does not outlive the undone rows
+            assertThat(((SpiTransaction)transaction).getPersistenceContext().get(String.class, 2), is(nullValue()));
+            
+            try (ServiceTransaction str3 = ServiceTransactions.begin("test3", "db", this.manager.savepointSupplier())) {
+                insert(this.ebean, transaction, 3);
+                str3.commit();
+            }
+            
+            str1.commit();
+            
+            assertThat(str1.getGroup().wasSuccessful(), is(true));
+        }
+        
+        assertThat(count(this.ebean), is(2));
+        assertThat(this.ebean.sqlQuery("select count(*) c from t where id = 2").findOne().getInteger("c"), is(0));
+    }
+    
+    @Test
+    public void savepointRollbackWithBatchingOnlyUndoesNestedRows() {
+        final EbeanServiceTransactionBatching batching = new EbeanServiceTransactionBatching().batchSize(10);
+        
+        try (ServiceTransaction str1 = ServiceTransactions.begin("test1", "db", this.manager.savepointSupplier(TxIsolation.READ_COMMITED, batching))) {
+            final Transaction transaction = this.manager.transaction(str1);
+            assertThat(transaction.isBatchMode(), is(true));
+            insert(this.ebean, transaction, 1);
+            
+            try (ServiceTransaction str2 = ServiceTransactions.begin("test2", "db", this.manager.savepointSupplier())) {
+                insert(this.ebean, transaction, 2);
+            }
+            
+            str1.commit();
+        }
+        
+        assertThat(count(this.ebean), is(1));
+    }
+    
+    @Test
+    public void batchingQueuesStatementsUntilCommit() throws Exception {
+        final EbeanServiceTransactionBatching batching = new EbeanServiceTransactionBatching().batchSize(10);
+        
+        try (ServiceTransaction str1 = ServiceTransactions.begin("test1", "db", this.manager.supplier(batching))) {
+            final Transaction transaction = this.manager.transaction(str1);
+            assertThat(transaction.isBatchMode(), is(true));
+            
+            insert(this.ebean, transaction, 1);
+            insert(this.ebean, transaction, 2);
+            insert(this.ebean, transaction, 3);
+            
+            // queued, not yet sent on the connection of the transaction
+            assertThat(countOn(transaction.getConnection()), is(0));
+            
+            str1.commit();
+        }
+        
+        assertThat(count(this.ebean), is(3));
+    }
+    
+    @Test
+    public void batchingFailedFlushEndsTransaction() {
+        final EbeanServiceTransactionBatching batching = new EbeanServiceTransactionBatching().batchSize(10);
+        
+        insert(this.ebean, null, 1);
+        
+        Transaction transaction = null;
+        try (ServiceTransaction str1 = ServiceTransactions.begin("test1", "db", this.manager.supplier(batching))) {
+            transaction = this.manager.transaction(str1);
+            insert(this.ebean, transaction, 2);
+            // a duplicate only fails when the batch is flushed by the commit
+            insert(this.ebean, transaction, 1);
+            
+            try {
+                str1.commit();
+                fail();
+            } catch (ServiceTransactionException e) {
+                assertThat(e.getCause(), is(instanceOf(PersistenceException.class)));
+            }
+            
+            assertThat(str1.getGroup().wasSuccessful(), is(false));
+        }
+        
+        assertThat(transaction.isActive(), is(false));
+        assertThat(this.ebean.currentTransaction(), is(nullValue()));
+        assertThat(count(this.ebean), is(1));
+    }
+    
+    static private int countOn(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery("select count(*) from t")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+    
+    @Test
+    public void parallelTasksAreDetachedFromPooledThread() throws Exception {
+        // one thread, so every task (and the checks after) run on the same pooled thread
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final List<Callable<Integer>> tasks = new ArrayList<>();
+            for (int i = 2; i <= 3; i++) {
+                final int id = i;
+                tasks.add(() -> {
+                    try (ServiceTransaction str = ServiceTransactions.begin("task" + id, "db" + id, this.manager.supplier())) {
+                        // begun on the pooled thread, so it is its current ebean transaction
+                        assertThat(this.ebean.currentTransaction(), is(sameInstance(this.manager.transaction(str))));
+                        insert(this.ebean, this.ebean.currentTransaction(), id);
+                        str.commit();
+                        return id;
+                    }
+                });
+            }
+            
+            try (ServiceTransaction str1 = ServiceTransactions.begin("test1", "db", this.manager.supplier())) {
+                insert(this.ebean, this.manager.transaction(str1), 1);
+                
+                assertThat(ServiceTransactions.parallel(tasks, executor), contains(2, 3));
+                
+                // the open transactions of the group are no longer bound to the pooled thread
+                assertThat(executor.submit(() -> this.ebean.currentTransaction()).get(), is(nullValue()));
+                
+                // so its unrelated work runs on its own rather than joining the group
+                executor.submit(() -> insert(this.ebean, null, 4)).get();
+                assertThat(executor.submit(() -> count(this.ebean)).get(), is(1));
+                
+                str1.commit();
+            }
+            
+            assertThat(count(this.ebean), is(4));
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void deadlineBoundsConnectionOfTransaction() throws Exception {
+        final List<Integer> timeouts = Collections.synchronizedList(new ArrayList<>());
+        
+        final EbeanServer recording = EbeanTests.create((url) -> {
+            final JdbcDataSource h2 = new JdbcDataSource();
+            h2.setURL(url);
+            h2.setUser("sa");
+            return recordNetworkTimeouts(h2, timeouts);
+        });
+        try {
+            final EbeanServiceTransactionManager manager = new EbeanServiceTransactionManager(recording);
+            
+            try (ServiceTransaction str1 = ServiceTransactions.begin("test1", manager.supplier(), new ServiceTransactionOptions().idempotency("db").timeout(1, TimeUnit.HOURS))) {
+                insert(recording, manager.transaction(str1), 1);
+                
+                assertThat(timeouts.size(), is(1));
+                assertThat(timeouts.get(0) > TimeUnit.MINUTES.toMillis(59), is(true));
+                assertThat(timeouts.get(0) <= TimeUnit.HOURS.toMillis(1), is(true));
+                
+                str1.commit();
+            }
+            
+            // restored before the connection was returned
+            assertThat(timeouts.size(), is(2));
+            assertThat(timeouts.get(1), is(0));
+            
+            // no deadline, no timeout
+            try (ServiceTransaction str1 = ServiceTransactions.begin("test1", "db", manager.supplier())) {
+                insert(recording, manager.transaction(str1), 2);
+                str1.commit();
+            }
+            
+            assertThat(timeouts.size(), is(2));
+            assertThat(count(recording), is(2));
+        }
+        finally {
+            recording.shutdown(false, false);
+        }
+    }
+    
+    static private DataSource recordNetworkTimeouts(DataSource dataSource, List<Integer> timeouts) {
+        return (DataSource)Proxy.newProxyInstance(EbeanTests.class.getClassLoader(), new Class<?>[] { DataSource.class },
+            (proxy, method, args) -> {
+                final Object value = invoke(dataSource, method, args);
+                if (value instanceof Connection) {
+                    return recordNetworkTimeouts((Connection)value, timeouts);
+                }
+                return value;
+            });
+    }
+    
+    static private Connection recordNetworkTimeouts(Connection connection, List<Integer> timeouts) {
+        // h2 ignores network timeouts, so remember the last one set
+        final AtomicInteger current = new AtomicInteger();
+        return (Connection)Proxy.newProxyInstance(EbeanTests.class.getClassLoader(), new Class<?>[] { Connection.class },
+            (proxy, method, args) -> {
+                if (method.getName().equals("setNetworkTimeout")) {
+                    current.set((Integer)args[1]);
+                    timeouts.add((Integer)args[1]);
+                    return null;
+                }
+                if (method.getName().equals("getNetworkTimeout")) {
+                    return current.get();
+                }
+                return invoke(connection, method, args);
+            });
+    }
+    
+    static private Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+    
+}
@@ -0,0 +1,169 @@
+package com.fizzed.transactional.ebean;
+
+import com.fizzed.transactional.ServiceTransaction;
+import com.fizzed.transactional.ServiceTransactions;
+import io.ebean.EbeanServer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EbeanServiceTransactionOutboxTest {
+    
+    private EbeanServer ebean;
+    private EbeanServiceTransactionManager manager;
+    private EbeanServiceTransactionOutbox outbox;
+    
+    @Before
+    public void before() {
+        this.ebean = EbeanTests.create();
+        this.ebean.sqlUpdate("create table service_outbox ("
+            + " id bigint auto_increment primary key,"
+            + " topic varchar(255) not null,"
+            + " payload clob,"
+            + " created_at bigint not null,"
+            + " claim bigint,"
+            + " claimed_until bigint,"
+            + " attempts int default 0 not null)").execute();
+        this.manager = new EbeanServiceTransactionManager(this.ebean);
+        this.outbox = new EbeanServiceTransactionOutbox(this.ebean, this.manager);
+    }
+    
+    @After
+    public void after() {
+        this.ebean.shutdown(false, false);
+    }
+    
+    @Test
+    public void addIsOnlyVisibleOnceCommitted() {
+        
+        try (ServiceTransaction str1 = ServiceTransactions.begin("test1", "db", this.manager.supplier())) {
+            this.outbox.add(str1, "test", "rolled back");
+            // not committed, so rolled back
+        }
+        
+        assertThat(this.outbox.claim(10, 60000L).isEmpty(), is(true));
+        
+        try (ServiceTransaction str1 = ServiceTransactions.begin("test1", "db", this.manager.supplier())) {
+            this.outbox.add(str1, "test", "committed");
+            str1.commit();
+        }
+        
+        final List<EbeanServiceTransactionOutboxMessage> messages = this.outbox.claim(10, 60000L);
+        assertThat(messages.size(), is(1));
+        assertThat(messages.get(0).getPayload(), is("committed"));
+        assertThat(messages.get(0).getAttempts(), is(1));
+    }
+    
+    @Test
+    public void claimedMessagesAreSkippedByOtherClaims() {
+        this.addCommitted(3);
+        
+        final List<EbeanServiceTransactionOutboxMessage> batch1 = this.outbox.claim(10, 60000L);
+        final List<EbeanServiceTransactionOutboxMessage> batch2 = this.outbox.claim(10, 60000L);
+        
+        assertThat(batch1.size(), is(3));
+        assertThat(batch2.isEmpty(), is(true));
+    }
+    
+    @Test
+    public void relaysSharingAnOutboxPublishEachMessageOnce() throws Exception {
+        final int count = 200;
+        this.addCommitted(count);
+        
+        final List<Long> ids = Collections.synchronizedList(new ArrayList<>());
+        final EbeanServiceTransactionOutboxRelay.Publisher publisher = (messages) -> {
+            for (EbeanServiceTransactionOutboxMessage message : messages) {
+                ids.add(message.getId());
+            }
+        };
+        
+        try (EbeanServiceTransactionOutboxRelay relay1 = new EbeanServiceTransactionOutboxRelay(
+                    this.outbox, publisher, 10, 10, TimeUnit.MILLISECONDS);
+                EbeanServiceTransactionOutboxRelay relay2 = new EbeanServiceTransactionOutboxRelay(
+                    this.outbox, publisher, 10, 10, TimeUnit.MILLISECONDS)) {
+            
+            this.await(() -> relay1.getPublished() + relay2.getPublished() >= count);
+            
+            assertThat(relay1.getPublished() + relay2.getPublished(), is((long)count));
+        }
+        
+        assertThat(ids.size(), is(count));
+        assertThat(new HashSet<>(ids).size(), is(count));
+        assertThat(this.outbox.claim(10, 60000L).isEmpty(), is(true));
+    }
+    
+    @Test
+    public void failedPublishIsReclaimedOnceItsClaimExpires() throws Exception {
+        this.addCommitted(1);
+        
+        final AtomicInteger calls = new AtomicInteger();
+        final List<Integer> attempts = Collections.synchronizedList(new ArrayList<>());
+        final EbeanServiceTransactionOutboxRelay.Publisher publisher = (messages) -> {
+            attempts.add(messages.get(0).getAttempts());
+            if (calls.incrementAndGet() == 1) {
+                throw new IllegalStateException("Unable to publish");
+            }
+        };
+        
+        try (EbeanServiceTransactionOutboxRelay relay = new EbeanServiceTransactionOutboxRelay(
+                this.outbox, publisher, 10, 10, TimeUnit.MILLISECONDS, 200L)) {
+            
+            this.await(() -> relay.getPublished() >= 1);
+            
+            assertThat(relay.getFailures(), is(1L));
+            assertThat(relay.getPublished(), is(1L));
+        }
+        
+        assertThat(attempts.size(), is(2));
+        assertThat(attempts.get(0), is(1));
+        assertThat(attempts.get(1), is(2));
+        assertThat(this.outbox.claim(10, 60000L).isEmpty(), is(true));
+    }
+    
+    @Test
+    public void expiredClaimDoesNotDeleteReclaimedMessages() throws Exception {
+        this.addCommitted(2);
+        
+        final List<EbeanServiceTransactionOutboxMessage> expired = this.outbox.claim(10, 1L);
+        Thread.sleep(10L);
+        final List<EbeanServiceTransactionOutboxMessage> current = this.outbox.claim(10, 60000L);
+        
+        assertThat(current.size(), is(2));
+        
+        // the late relay must not delete what the other one now holds
+        assertThat(this.outbox.delete(expired), is(0));
+        assertThat(this.outbox.delete(current), is(2));
+    }
+    
+    private void addCommitted(int count) {
+        try (ServiceTransaction str1 = ServiceTransactions.begin("test1", "db", this.manager.supplier())) {
+            for (int i = 0; i < count; i++) {
+                this.outbox.add(str1, "test", "message" + i);
+            }
+            str1.commit();
+        }
+    }
+    
+    private void await(Condition condition) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.test()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("Timed out waiting for condition");
+            }
+            Thread.sleep(10L);
+        }
+    }
+    
+    static private interface Condition {
+        boolean test();
+    }
+
+}
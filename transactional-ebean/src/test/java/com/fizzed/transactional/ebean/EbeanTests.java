@@ -0,0 +1,80 @@
+package com.fizzed.transactional.ebean;
+
+import io.ebean.EbeanServer;
+import io.ebean.EbeanServerFactory;
+import io.ebean.SqlUpdate;
+import io.ebean.Transaction;
+import io.ebean.config.ServerConfig;
+import io.ebean.datasource.DataSourceConfig;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import javax.sql.DataSource;
+
+/**
+ * An ebean server on its own in-memory H2 database with a table t (id int).
+ */
+class EbeanTests {
+    
+    static private final AtomicInteger DATABASES = new AtomicInteger();
+    
+    static EbeanServer create() {
+        final String name = "ebean" + DATABASES.incrementAndGet();
+        
+        final DataSourceConfig dataSourceConfig = new DataSourceConfig();
+        dataSourceConfig.setDriver("org.h2.Driver");
+        dataSourceConfig.setUrl(url(name));
+        dataSourceConfig.setUsername("sa");
+        dataSourceConfig.setPassword("");
+        
+        final ServerConfig config = new ServerConfig();
+        config.setDataSourceConfig(dataSourceConfig);
+        
+        return create(name, config);
+    }
+    
+    /**
+     * Same as create, but connections are taken from the data source (given
+     * the url of a new database), e.g. to wrap them.
+     */
+    static EbeanServer create(Function<String,DataSource> dataSource) {
+        final String name = "ebean" + DATABASES.incrementAndGet();
+        
+        final ServerConfig config = new ServerConfig();
+        config.setDataSource(dataSource.apply(url(name)));
+        
+        return create(name, config);
+    }
+    
+    static private String url(String name) {
+        return "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1";
+    }
+    
+    static private EbeanServer create(String name, ServerConfig config) {
+        config.setName(name);
+        config.setRegister(false);
+        config.setDefaultServer(false);
+        
+        final EbeanServer ebean = EbeanServerFactory.create(config);
+        
+        ebean.sqlUpdate("create table t (id int primary key)").execute();
+        
+        return ebean;
+    }
+    
+    /**
+     * Inserts a row in the transaction, or without one (autocommit) if null.
+     */
+    static void insert(EbeanServer ebean, Transaction transaction, int id) {
+        final SqlUpdate update = ebean.sqlUpdate("insert into t (id) values (:id)").setParameter("id", id);
+        if (transaction != null) {
+            ebean.execute(update, transaction);
+        } else {
+            update.execute();
+        }
+    }
+    
+    static int count(EbeanServer ebean) {
+        return ebean.sqlQuery("select count(*) c from t").findOne().getInteger("c");
+    }
+    
+}
@@ -0,0 +1,187 @@
+package com.fizzed.transactional.jdbc;
+
+import com.fizzed.transactional.ServiceTransactionAdapter;
+import com.fizzed.transactional.ServiceTransactionException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adapts a JDBC connection checked out for a group (with autocommit off). Its
+ * commit or rollback also releases the connection: the autocommit and
+ * isolation it had when checked out are restored (only if they were changed)
+ * and it is closed (returned to its pool). The same goes for the read-only
+ * flag and network timeout set by a read-only begin or a group deadline.
+ */
+public class JdbcServiceTransactionAdapter implements ServiceTransactionAdapter {
+    static private final Logger log = LoggerFactory.getLogger(JdbcServiceTransactionAdapter.class);
+    static private final Executor DIRECT = Runnable::run;
+ 
+    private final Connection connection;
+    private final boolean restoreAutoCommit;
+    private final int restoreIsolation;
+    private boolean readOnly;
+    private boolean restoreReadOnly;
+    private boolean networkTimeout;
+    private int previousNetworkTimeout;
+    private boolean released;
+    
+    /**
+     * @param connection the connection with autocommit off
+     * @param restoreAutoCommit true to turn autocommit back on when released
+     * @param restoreIsolation the isolation to restore when released or -1
+     *      if it was not changed
+     */
+    public JdbcServiceTransactionAdapter(Connection connection, boolean restoreAutoCommit, int restoreIsolation) {
+        this.connection = connection;
+        this.restoreAutoCommit = restoreAutoCommit;
+        this.restoreIsolation = restoreIsolation;
+    }
+    
+    public Connection getConnection() {
+        if (this.released) {
+            throw new IllegalStateException("Connection already released (transaction inactive)");
+        }
+        return connection;
+    }
+    
+    public boolean isReleased() {
+        return released;
+    }
+    
+    @Override
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+    
+    /**
+     * Marks the connection read-only, and its commit only rolls it back, so a
+     * write is discarded rather than committed (even by drivers that only take
+     * the flag as a hint).
+     */
+    @Override
+    public void markReadOnly() {
+        if (this.readOnly) {
+            return;
+        }
+        try {
+            if (!this.connection.isReadOnly()) {
+                this.connection.setReadOnly(true);
+                this.restoreReadOnly = true;
+            }
+            this.readOnly = true;
+        } catch (SQLException e) {
+            throw new ServiceTransactionException("Unable to mark jdbc connection read-only", e);
+        }
+    }
+    
+    /**
+     * Applies the deadline of the group as the JDBC network timeout of the
+     * connection: every statement it runs fails once the deadline passes,
+     * rather than blocking (e.g. on a lock). The previous network timeout is
+     * restored before the commit or rollback, so those are not bounded. A
+     * driver that does not support network timeouts is left alone.
+     * 
+     * @param deadlineNanos the deadline, in System.nanoTime terms
+     */
+    @Override
+    public void applyDeadline(long deadlineNanos) {
+        final long remaining = deadlineNanos - System.nanoTime();
+        // 0 is no timeout, so an expired deadline gets the smallest one
+        final int millis = (int)Math.max(1L, Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMillis(remaining)));
+        
+        try {
+            final int previous = this.connection.getNetworkTimeout();
+            this.connection.setNetworkTimeout(DIRECT, millis);
+            this.previousNetworkTimeout = previous;
+            this.networkTimeout = true;
+        } catch (SQLFeatureNotSupportedException e) {
+            // nothing to bound it with
+        } catch (SQLException e) {
+            throw new ServiceTransactionException("Unable to set network timeout of jdbc connection", e);
+        }
+    }
+    
+    private void restoreNetworkTimeout() {
+        if (!this.networkTimeout || this.released) {
+            return;
+        }
+        
+        this.networkTimeout = false;
+        
+        try {
+            this.connection.setNetworkTimeout(DIRECT, this.previousNetworkTimeout);
+        } catch (SQLException e) {
+            log.warn("Unable to restore network timeout of jdbc connection: {}", e.getMessage());
+        }
+    }
+    
+    @Override
+    public void rollback() {
+        if (this.released) {
+            return;
+        }
+        this.restoreNetworkTimeout();
+        try {
+            this.connection.rollback();
+        } catch (SQLException e) {
+            throw new ServiceTransactionException("Unable to rollback jdbc connection", e);
+        } finally {
+            this.release();
+        }
+    }
+    
+    @Override
+    public void commit() {
+        if (this.released) {
+            return;
+        }
+        if (this.readOnly) {
+            // nothing it did may be made durable
+            this.rollback();
+            return;
+        }
+        this.restoreNetworkTimeout();
+        try {
+            this.connection.commit();
+        } catch (SQLException e) {
+            // do not leave whatever the commit did not finish for the pool to decide
+            try {
+                this.connection.rollback();
+            } catch (SQLException re) {
+                e.addSuppressed(re);
+            }
+            throw new ServiceTransactionException("Unable to commit jdbc connection", e);
+        } finally {
+            this.release();
+        }
+    }
+    
+    private void release() {
+        this.released = true;
+        try {
+            if (this.restoreIsolation >= 0) {
+                this.connection.setTransactionIsolation(this.restoreIsolation);
+            }
+            if (this.restoreReadOnly) {
+                this.connection.setReadOnly(false);
+            }
+            if (this.restoreAutoCommit) {
+                this.connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            log.warn("Unable to restore jdbc connection (will still close it): {}", e.getMessage());
+        } finally {
+            try {
+                this.connection.close();
+            } catch (SQLException e) {
+                log.warn("Unable to close jdbc connection: {}", e.getMessage());
+            }
+        }
+    }
+        
+}
@@ -0,0 +1,149 @@
+package com.fizzed.transactional.jdbc;
+
+import com.fizzed.transactional.ServiceTransaction;
+import com.fizzed.transactional.ServiceTransactionAdapter;
+import com.fizzed.transactional.ServiceTransactionException;
+import com.fizzed.transactional.ServiceTransactionLazyAdapter;
+import com.fizzed.transactional.ServiceTransactionNoopAdapter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Objects;
+import java.util.function.Function;
+import javax.sql.DataSource;
+
+/**
+ * Transactions on a plain JDBC DataSource (e.g. for jOOQ or raw JDBC). The
+ * first transaction of a group (per idempotency) checks out one connection
+ * and keeps it for the whole group. Nested transactions reuse it with no
+ * further checkout, and get it with connection(ServiceTransaction).
+ * 
+ * <pre>
+ * JdbcServiceTransactionManager manager = new JdbcServiceTransactionManager(dataSource);
+ * 
+ * try (ServiceTransaction tx = ServiceTransactions.begin("createUser", "db", manager.supplier())) {
+ *     try (PreparedStatement ps = manager.connection(tx).prepareStatement("...")) {
+ *         ...
+ *     }
+ *     tx.commit();
+ * }
+ * </pre>
+ */
+public class JdbcServiceTransactionManager {
+    
+    private final DataSource dataSource;
+    
+    public JdbcServiceTransactionManager(DataSource dataSource) {
+        Objects.requireNonNull(dataSource, "dataSource was null");
+        this.dataSource = dataSource;
+    }
+    
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+    
+    public Function<Boolean,ServiceTransactionAdapter> supplier() {
+        return this.supplier(Connection.TRANSACTION_READ_COMMITTED);
+    }
+    
+    /**
+     * @param isolation the isolation level (e.g. Connection.TRANSACTION_READ_COMMITTED)
+     *      or -1 to keep the one of the connection
+     * @return the supplier
+     */
+    public Function<Boolean,ServiceTransactionAdapter> supplier(int isolation) {
+        return (first) -> {
+            // only the first transaction can do real begin, rollback, and commit
+            if (!first) {
+                return new ServiceTransactionNoopAdapter();
+            } else {
+                return this.begin(isolation);
+            }
+        };
+    }
+    
+    public Function<Boolean,ServiceTransactionAdapter> lazySupplier() {
+        return this.lazySupplier(Connection.TRANSACTION_READ_COMMITTED);
+    }
+    
+    /**
+     * Same as the supplier, but the connection is only checked out on first
+     * use via connection(ServiceTransaction). A transaction that is never used
+     * never checks one out, so its commit and rollback cost nothing.
+     * 
+     * @param isolation the isolation level or -1 to keep the one of the connection
+     * @return the supplier
+     */
+    public Function<Boolean,ServiceTransactionAdapter> lazySupplier(int isolation) {
+        return (first) -> {
+            // only the first transaction can do real begin, rollback, and commit
+            if (!first) {
+                return new ServiceTransactionNoopAdapter();
+            } else {
+                return new ServiceTransactionLazyAdapter<>(() -> this.begin(isolation));
+            }
+        };
+    }
+    
+    private JdbcServiceTransactionAdapter begin(int isolation) {
+        final Connection connection;
+        try {
+            connection = this.dataSource.getConnection();
+        } catch (SQLException e) {
+            throw new ServiceTransactionException("Unable to get jdbc connection", e);
+        }
+        
+        try {
+            // pools hand out connections as they were returned, so the settings
+            // are only changed (and later restored) when they differ, which
+            // usually saves a round trip each
+            int restoreIsolation = -1;
+            if (isolation >= 0) {
+                final int current = connection.getTransactionIsolation();
+                if (current != isolation) {
+                    connection.setTransactionIsolation(isolation);
+                    restoreIsolation = current;
+                }
+            }
+            
+            final boolean restoreAutoCommit = connection.getAutoCommit();
+            if (restoreAutoCommit) {
+                connection.setAutoCommit(false);
+            }
+            
+            return new JdbcServiceTransactionAdapter(connection, restoreAutoCommit, restoreIsolation);
+        }
+        catch (SQLException | RuntimeException e) {
+            try {
+                connection.close();
+            } catch (SQLException ce) {
+                e.addSuppressed(ce);
+            }
+            throw new ServiceTransactionException("Unable to begin jdbc transaction", e);
+        }
+    }
+    
+    /**
+     * Gets the connection backing the service transaction (or the first one of
+     * its idempotency in the group), checking it out now if it was supplied
+     * lazily and not used yet. The connection must not be closed or have its
+     * autocommit changed by the caller.
+     * 
+     * @param transaction the service transaction
+     * @return the connection
+     */
+    public Connection connection(ServiceTransaction transaction) {
+        ServiceTransactionAdapter adapter = transaction.getResourceAdapter();
+        
+        if (adapter instanceof ServiceTransactionLazyAdapter) {
+            adapter = ((ServiceTransactionLazyAdapter<?>)adapter).get();
+        }
+        
+        if (!(adapter instanceof JdbcServiceTransactionAdapter)) {
+            throw new IllegalStateException("Service transaction " + transaction.getDescriptor()
+                + " is not backed by a jdbc connection (did it begin with an idempotency?)");
+        }
+        
+        return ((JdbcServiceTransactionAdapter)adapter).getConnection();
+    }
+    
+}
@@ -0,0 +1,248 @@
+package com.fizzed.transactional.jdbc;
+
+import com.fizzed.transactional.ServiceTransaction;
+import com.fizzed.transactional.ServiceTransactionException;
+import com.fizzed.transactional.ServiceTransactionGroup;
+import com.fizzed.transactional.ServiceTransactionOptions;
+import com.fizzed.transactional.ServiceTransactions;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.junit.Assert.fail;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JdbcServiceTransactionManagerTest {
+    
+    static private final AtomicInteger DATABASES = new AtomicInteger();
+    
+    private Connection physical;
+    private CheckoutDataSource dataSource;
+    private JdbcServiceTransactionManager manager;
+    
+    @Before
+    public void before() throws SQLException {
+        final JdbcDataSource h2 = new JdbcDataSource();
+        h2.setURL("jdbc:h2:mem:jdbc" + DATABASES.incrementAndGet() + ";DB_CLOSE_DELAY=-1");
+        this.physical = h2.getConnection();
+        try (Statement st = this.physical.createStatement()) {
+            st.execute("create table t (id int primary key)");
+        }
+        this.dataSource = new CheckoutDataSource(this.physical);
+        this.manager = new JdbcServiceTransactionManager(this.dataSource);
+    }
+    
+    @After
+    public void after() throws SQLException {
+        this.physical.close();
+    }
+    
+    @Test
+    public void commitWithOneConnectionPerGroup() throws SQLException {
+        
+        try (ServiceTransaction str1 = ServiceTransactions.begin("test1", "db", this.manager.supplier())) {
+            this.insert(str1, 1);
+            
+            try (ServiceTransaction str2 = ServiceTransactions.begin("test2", "db", this.manager.supplier())) {
+                assertThat(this.manager.connection(str2), sameInstance(this.manager.connection(str1)));
+                this.insert(str2, 2);
+                str2.commit();
+            }
+            
+            assertThat(this.dataSource.checkouts.get(), is(1));
+            assertThat(this.dataSource.open.get(), is(1));
+            
+            str1.commit();
+        }
+        
+        assertThat(this.count(), is(2));
+        assertThat(this.dataSource.checkouts.get(), is(1));
+        assertThat(this.dataSource.open.get(), is(0));
+        assertThat(this.physical.getAutoCommit(), is(true));
+    }
+    
+    @Test
+    public void rollbackRestoresConnection() throws SQLException {
+        
+        final int isolation = this.physical.getTransactionIsolation();
+        
+        final ServiceTransactionGroup group;
+        try (ServiceTransaction str1 = ServiceTransactions.begin("test1", "db", this.manager.supplier(Connection.TRANSACTION_SERIALIZABLE))) {
+            group = str1.getGroup();
+            assertThat(this.manager.connection(str1).getTransactionIsolation(), is(Connection.TRANSACTION_SERIALIZABLE));
+            assertThat(this.manager.connection(str1).getAutoCommit(), is(false));
+            
+            this.insert(str1, 1);
+            
+            try (ServiceTransaction str2 = ServiceTransactions.begin("test2", "db", this.manager.supplier())) {
+                this.insert(str2, 2);
+                // no commit
+            }
+            
+            // the nested rollback means the group rolls back rather than commits
+            str1.commit();
+        }
+        
+        assertThat(group.wasSuccessful(), is(false));
+        assertThat(this.count(), is(0));
+        assertThat(this.dataSource.open.get(), is(0));
+        assertThat(this.physical.getAutoCommit(), is(true));
+        assertThat(this.physical.getTransactionIsolation(), is(isolation));
+    }
+    
+    @Test
+    public void lazyNeverUsedNeverChecksOut() {
+        
+        try (ServiceTransaction str1 = ServiceTransactions.begin("test1", "db", this.manager.lazySupplier())) {
+            str1.commit();
+        }
+        
+        assertThat(this.dataSource.checkouts.get(), is(0));
+        
+        try (ServiceTransaction str1 = ServiceTransactions.begin("test1", "db", this.manager.lazySupplier())) {
+            this.insert(str1, 1);
+            str1.commit();
+        }
+        
+        assertThat(this.dataSource.checkouts.get(), is(1));
+        assertThat(this.dataSource.open.get(), is(0));
+    }
+    
+    @Test
+    public void readOnlyDiscardsWritesAndRestoresConnection() throws SQLException {
+        
+        try (ServiceTransaction str1 = ServiceTransactions.begin("test1", "db", true, this.manager.supplier())) {
+            assertThat(this.dataSource.readOnly, contains(true));
+            
+            // h2 ignores the flag, so the write runs
+            this.insert(str1, 1);
+            
+            str1.commit();
+            
+            assertThat(str1.getGroup().wasSuccessful(), is(true));
+        }
+        
+        assertThat(this.count(), is(0));
+        assertThat(this.dataSource.open.get(), is(0));
+        // restored before the connection was returned
+        assertThat(this.dataSource.readOnly, contains(true, false));
+    }
+    
+    @Test
+    public void deadlineBoundsConnection() throws SQLException {
+        
+        try (ServiceTransaction str1 = ServiceTransactions.begin("test1", this.manager.supplier(), new ServiceTransactionOptions().idempotency("db").timeout(1, TimeUnit.HOURS))) {
+            this.insert(str1, 1);
+            
+            assertThat(this.dataSource.timeouts.size(), is(1));
+            assertThat(this.dataSource.timeouts.get(0) > TimeUnit.MINUTES.toMillis(59), is(true));
+            assertThat(this.dataSource.timeouts.get(0) <= TimeUnit.HOURS.toMillis(1), is(true));
+            
+            str1.commit();
+        }
+        
+        // restored before the connection was returned
+        assertThat(this.dataSource.timeouts.size(), is(2));
+        assertThat(this.dataSource.timeouts.get(1), is(0));
+        
+        // no deadline, no timeout
+        try (ServiceTransaction str1 = ServiceTransactions.begin("test1", "db", this.manager.supplier())) {
+            this.insert(str1, 2);
+            str1.commit();
+        }
+        
+        assertThat(this.dataSource.timeouts.size(), is(2));
+        assertThat(this.count(), is(2));
+    }
+    
+    @Test
+    public void lazyFailingToApplyDeadlineReturnsConnection() throws SQLException {
+        
+        this.dataSource.failNetworkTimeout = true;
+        
+        try (ServiceTransaction str1 = ServiceTransactions.begin("test1", this.manager.lazySupplier(), new ServiceTransactionOptions().idempotency("db").timeout(1, TimeUnit.HOURS))) {
+            try {
+                this.manager.connection(str1);
+                fail();
+            } catch (ServiceTransactionException e) {
+                // expected
+            }
+        }
+        
+        assertThat(this.dataSource.checkouts.get(), is(1));
+        assertThat(this.dataSource.open.get(), is(0));
+        assertThat(this.physical.getAutoCommit(), is(true));
+    }
+    
+    private void insert(ServiceTransaction transaction, int id) {
+        try (Statement st = this.manager.connection(transaction).createStatement()) {
+            st.executeUpdate("insert into t (id) values (" + id + ")");
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    private int count() throws SQLException {
+        try (Statement st = this.physical.createStatement(); ResultSet rs = st.executeQuery("select count(*) from t")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+    
+    /**
+     * Hands out the same physical connection (like a pool of one), with close
+     * returning it rather than closing it. The read-only flags and network
+     * timeouts set on it are recorded.
+     */
+    static private class CheckoutDataSource extends JdbcDataSource {
+        
+        private final Connection physical;
+        private final AtomicInteger checkouts = new AtomicInteger();
+        private final AtomicInteger open = new AtomicInteger();
+        private final List<Boolean> readOnly = Collections.synchronizedList(new ArrayList<>());
+        private final List<Integer> timeouts = Collections.synchronizedList(new ArrayList<>());
+        private volatile boolean failNetworkTimeout;
+        
+        public CheckoutDataSource(Connection physical) {
+            this.physical = physical;
+        }
+        
+        @Override
+        public Connection getConnection() {
+            this.checkouts.incrementAndGet();
+            this.open.incrementAndGet();
+            return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+                (proxy, method, args) -> {
+                    if (method.getName().equals("close")) {
+                        this.open.decrementAndGet();
+                        return null;
+                    }
+                    if (method.getName().equals("setReadOnly")) {
+                        this.readOnly.add((Boolean)args[0]);
+                    }
+                    if (method.getName().equals("setNetworkTimeout")) {
+                        if (this.failNetworkTimeout) {
+                            throw new SQLException("Unable to set network timeout");
+                        }
+                        this.timeouts.add((Integer)args[1]);
+                    }
+                    return method.invoke(this.physical, args);
+                });
+        }
+        
+    }
+    
+}
@@ -0,0 +1,113 @@
+package com.fizzed.transactional.jfr;
+
+import com.fizzed.transactional.OptimisticExceptionClassifier.Conflict;
+import com.fizzed.transactional.ServiceTransactionTracer;
+import jdk.jfr.EventType;
+
+/**
+ * Emits Java Flight Recorder events for groups, real commits and rollbacks,
+ * listeners and optimistic conflicts. The events are off by default, and are
+ * enabled (and their thresholds set) through the JFR settings of a recording,
+ * e.g. com.fizzed.transactional.Group#enabled=true. While an event is disabled
+ * nothing is allocated for it.
+ * 
+ * <pre>
+ * ServiceTransactions.setTracer(new JfrServiceTransactionTracer());
+ * </pre>
+ */
+public class JfrServiceTransactionTracer implements ServiceTransactionTracer {
+    
+    static private final EventType GROUP = EventType.getEventType(ServiceTransactionGroupEvent.class);
+    static private final EventType REAL_COMPLETION = EventType.getEventType(ServiceTransactionRealCompletionEvent.class);
+    static private final EventType LISTENERS = EventType.getEventType(ServiceTransactionListenersEvent.class);
+    static private final EventType OPTIMISTIC_CONFLICT = EventType.getEventType(OptimisticConflictEvent.class);
+    
+    @Override
+    public Object groupStarted(long groupId, String descriptor) {
+        if (!GROUP.isEnabled()) {
+            return null;
+        }
+        
+        final ServiceTransactionGroupEvent event = new ServiceTransactionGroupEvent();
+        event.groupId = groupId;
+        event.descriptor = descriptor;
+        event.begin();
+        return event;
+    }
+    
+    @Override
+    public void groupCompleted(Object span, int depth, boolean success) {
+        if (span instanceof ServiceTransactionGroupEvent) {
+            final ServiceTransactionGroupEvent event = (ServiceTransactionGroupEvent)span;
+            event.end();
+            if (event.shouldCommit()) {
+                event.depth = depth;
+                event.success = success;
+                event.commit();
+            }
+        }
+    }
+
+    @Override
+    public Object realCompletionStarted(long groupId, int index, String descriptor, boolean commit) {
+        if (!REAL_COMPLETION.isEnabled()) {
+            return null;
+        }
+        
+        final ServiceTransactionRealCompletionEvent event = new ServiceTransactionRealCompletionEvent();
+        event.groupId = groupId;
+        event.index = index;
+        event.descriptor = descriptor;
+        event.commit = commit;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void realCompletionEnded(Object span, Throwable cause) {
+        if (span instanceof ServiceTransactionRealCompletionEvent) {
+            final ServiceTransactionRealCompletionEvent event = (ServiceTransactionRealCompletionEvent)span;
+            event.end();
+            if (event.shouldCommit()) {
+                event.failure = cause != null ? cause.toString() : null;
+                event.commit();
+            }
+        }
+    }
+
+    @Override
+    public Object listenersStarted(long groupId, int count) {
+        if (!LISTENERS.isEnabled()) {
+            return null;
+        }
+        
+        final ServiceTransactionListenersEvent event = new ServiceTransactionListenersEvent();
+        event.groupId = groupId;
+        event.count = count;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void listenersEnded(Object span) {
+        if (span instanceof ServiceTransactionListenersEvent) {
+            ((ServiceTransactionListenersEvent)span).commit();
+        }
+    }
+
+    @Override
+    public void optimisticConflict(String message, int attempt, int attempts, Conflict conflict, long delayNanos) {
+        if (!OPTIMISTIC_CONFLICT.isEnabled()) {
+            return;
+        }
+        
+        final OptimisticConflictEvent event = new OptimisticConflictEvent();
+        event.operation = message;
+        event.attempt = attempt;
+        event.attempts = attempts;
+        event.conflict = conflict.name();
+        event.backoff = delayNanos;
+        event.commit();
+    }
+    
+}
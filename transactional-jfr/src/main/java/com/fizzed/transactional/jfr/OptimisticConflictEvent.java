@@ -0,0 +1,33 @@
+package com.fizzed.transactional.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+@Name("com.fizzed.transactional.OptimisticConflict")
+@Label("Optimistic Conflict")
+@Description("An attempt of an optimistic operation conflicted")
+@Category({ "Fizzed", "Transactional" })
+@Enabled(false)
+public class OptimisticConflictEvent extends jdk.jfr.Event {
+    
+    @Label("Operation")
+    String operation;
+    
+    @Label("Attempt")
+    int attempt;
+    
+    @Label("Attempts")
+    int attempts;
+    
+    @Label("Conflict")
+    String conflict;
+    
+    @Label("Backoff")
+    @Timespan(Timespan.NANOSECONDS)
+    long backoff;
+    
+}
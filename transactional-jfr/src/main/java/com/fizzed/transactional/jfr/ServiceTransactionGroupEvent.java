@@ -0,0 +1,30 @@
+package com.fizzed.transactional.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("com.fizzed.transactional.Group")
+@Label("Transaction Group")
+@Description("A service transaction group, from its first begin to its completion")
+@Category({ "Fizzed", "Transactional" })
+@Enabled(false)
+@StackTrace(false)
+public class ServiceTransactionGroupEvent extends jdk.jfr.Event {
+    
+    @Label("Group Id")
+    long groupId;
+    
+    @Label("Descriptor")
+    String descriptor;
+    
+    @Label("Depth")
+    int depth;
+    
+    @Label("Success")
+    boolean success;
+    
+}
@@ -0,0 +1,24 @@
+package com.fizzed.transactional.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("com.fizzed.transactional.Listeners")
+@Label("Transaction Listeners")
+@Description("The listeners of a completed service transaction group running")
+@Category({ "Fizzed", "Transactional" })
+@Enabled(false)
+@StackTrace(false)
+public class ServiceTransactionListenersEvent extends jdk.jfr.Event {
+    
+    @Label("Group Id")
+    long groupId;
+    
+    @Label("Count")
+    int count;
+    
+}
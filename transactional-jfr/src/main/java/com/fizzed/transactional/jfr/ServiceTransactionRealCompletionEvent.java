@@ -0,0 +1,34 @@
+package com.fizzed.transactional.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("com.fizzed.transactional.RealCompletion")
+@Label("Transaction Real Commit/Rollback")
+@Description("The real commit (or rollback) of the adapter of a service transaction")
+@Category({ "Fizzed", "Transactional" })
+@Enabled(false)
+@StackTrace(false)
+public class ServiceTransactionRealCompletionEvent extends jdk.jfr.Event {
+    
+    @Label("Group Id")
+    long groupId;
+    
+    @Label("Index")
+    int index;
+    
+    @Label("Descriptor")
+    String descriptor;
+    
+    @Label("Commit")
+    @Description("True if a commit, false if a rollback")
+    boolean commit;
+    
+    @Label("Failure")
+    String failure;
+    
+}
@@ -0,0 +1,54 @@
+package com.fizzed.transactional.jfr;
+
+import com.fizzed.transactional.ServiceTransaction;
+import com.fizzed.transactional.ServiceTransactions;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasItems;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.hasItem;
+import org.junit.Test;
+
+public class JfrServiceTransactionTracerTest {
+    
+    @Test
+    public void emitsEnabledEvents() throws Exception {
+        final Path file = Files.createTempFile("transactional", ".jfr");
+        
+        ServiceTransactions.setTracer(new JfrServiceTransactionTracer());
+        try (Recording recording = new Recording()) {
+            recording.enable("com.fizzed.transactional.Group");
+            recording.enable("com.fizzed.transactional.RealCompletion");
+            recording.start();
+            
+            try (ServiceTransaction tx = ServiceTransactions.begin("test1")) {
+                tx.onSuccess(() -> {});
+                tx.commit();
+            }
+            
+            recording.stop();
+            recording.dump(file);
+            
+            final List<String> names = RecordingFile.readAllEvents(file).stream()
+                .map(RecordedEvent::getEventType)
+                .map(t -> t.getName())
+                .collect(Collectors.toList());
+            
+            assertThat(names, hasItems("com.fizzed.transactional.Group", "com.fizzed.transactional.RealCompletion"));
+            
+            // not enabled in the recording
+            assertThat(names, not(hasItem("com.fizzed.transactional.Listeners")));
+        }
+        finally {
+            ServiceTransactions.setTracer(null);
+            Files.deleteIfExists(file);
+        }
+    }
+    
+}